@@ -20,4 +20,6 @@ public @interface Counted {
     String[] labels() default {};
 
     String doc() default "";
+
+    int maxSeries() default 0;
 }
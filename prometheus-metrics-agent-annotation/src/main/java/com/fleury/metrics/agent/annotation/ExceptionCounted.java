@@ -21,5 +21,7 @@ public @interface ExceptionCounted {
 
     String doc() default "";
 
+    int maxSeries() default 0;
+
     String[] include() default {};
 }
@@ -26,4 +26,6 @@ public @interface Gauged {
     String[] labels() default {};
 
     String doc() default "";
+
+    int maxSeries() default 0;
 }
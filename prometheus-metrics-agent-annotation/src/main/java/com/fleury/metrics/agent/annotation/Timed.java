@@ -20,4 +20,12 @@ public @interface Timed {
     String[] labels() default {};
 
     String doc() default "";
+
+    int maxSeries() default 0;
+
+    double[] buckets() default {};
+
+    double[] linearBuckets() default {};
+
+    double[] exponentialBuckets() default {};
 }
@@ -0,0 +1,491 @@
+package com.fleury.metrics.agent.aot;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.transformer.AnnotatedMetricClassTransformer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Instruments the classes of jars, WARs and directories ahead of time with the transformer and configuration of the
+ * agent, which is still needed at runtime for the registry and reporting.
+ *
+ * @author Will Fleury
+ */
+public class AotInstrumenter {
+
+    private static final Logger LOGGER = Logger.getLogger(AotInstrumenter.class.getName());
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    /**
+     * System settings which instrument classes for the agent's JVM only, e.g. referring to metrics by index.
+     */
+    private static final List<String> RUNTIME_ONLY_SETTINGS = Arrays.asList(
+            "dynamicMetrics", "configReloadInterval", "transformCacheDir");
+
+    /**
+     * Classes transformed by a single fork join task before it is split further.
+     */
+    private static final int THRESHOLD = 16;
+
+    private final Configuration config;
+    private final List<File> classpath;
+    private final int parallelism;
+
+    /**
+     * @throws IllegalArgumentException if the configuration has any of the runtime only settings
+     */
+    public AotInstrumenter(Configuration config, List<File> classpath, int parallelism) {
+        for (String setting : RUNTIME_ONLY_SETTINGS) {
+            if (config.getSystem().get(setting) != null) {
+                throw new IllegalArgumentException(
+                        "The system setting " + setting + " is not supported when instrumenting ahead of time");
+            }
+        }
+
+        this.config = config;
+        this.classpath = classpath;
+        this.parallelism = parallelism;
+    }
+
+    public Report instrument(List<File> inputs, File outputDirectory) throws IOException {
+        List<Archive> archives = new ArrayList<Archive>();
+        for (File input : inputs) {
+            archives.add(input.isDirectory() ? readDirectory(input) : readArchive(input.getName(), read(input)));
+        }
+
+        List<Entry> classes = new ArrayList<Entry>();
+        Map<String, byte[]> classBytes = new HashMap<String, byte[]>();
+        for (Archive archive : archives) {
+            indexClasses(archive, classes, classBytes);
+        }
+
+        Report report = new Report(classes.size());
+
+        ClassLoader loader = new ArchiveClassLoader(classBytes, new URLClassLoader(toUrls(classpath),
+                AotInstrumenter.class.getClassLoader()));
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new TransformTask(new AnnotatedMetricClassTransformer(config, true, null, false), loader, report, classes,
+                    0, classes.size()));
+        } finally {
+            pool.shutdown();
+        }
+
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Unable to create output directory " + outputDirectory);
+        }
+
+        for (int i = 0; i < archives.size(); i++) {
+            write(inputs.get(i), archives.get(i), new File(outputDirectory, inputs.get(i).getName()));
+        }
+
+        return report;
+    }
+
+    private static Archive readDirectory(File directory) throws IOException {
+        Archive archive = new Archive(directory.getName(), true);
+        readDirectory(archive, directory, "");
+        return archive;
+    }
+
+    private static void readDirectory(Archive archive, File directory, String path) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            String name = path + file.getName();
+
+            if (file.isDirectory()) {
+                readDirectory(archive, file, name + "/");
+            } else {
+                Entry entry = new Entry(name, file.lastModified(), ZipEntry.DEFLATED, null);
+                entry.file = file;
+
+                if (isClass(name)) {
+                    entry.bytes = read(file);
+                } else if (isArchive(name)) {
+                    entry.bytes = read(file);
+                    entry.nested = readNestedArchive(name, entry.bytes);
+                }
+
+                archive.entries.add(entry);
+            }
+        }
+    }
+
+    private static Archive readArchive(String name, byte[] bytes) throws IOException {
+        Archive archive = new Archive(name, false);
+
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes));
+        try {
+            for (ZipEntry zipEntry; (zipEntry = in.getNextEntry()) != null; ) {
+                Entry entry = new Entry(zipEntry.getName(), zipEntry.getTime(), zipEntry.getMethod(), read(in));
+
+                if (isArchive(entry.name)) {
+                    entry.nested = readNestedArchive(entry.name, entry.bytes);
+                }
+
+                archive.entries.add(entry);
+            }
+        } finally {
+            in.close();
+        }
+
+        return archive;
+    }
+
+    /**
+     * @return null if the entry does not hold any zip entries, i.e. it only looked like an archive
+     */
+    private static Archive readNestedArchive(String name, byte[] bytes) throws IOException {
+        try {
+            Archive nested = readArchive(name, bytes);
+            return nested.entries.isEmpty() ? null : nested;
+        } catch (ZipException e) {
+            LOGGER.log(FINE, "Unable to read " + name + " as an archive", e);
+            return null;
+        }
+    }
+
+    private static void indexClasses(Archive archive, List<Entry> classes, Map<String, byte[]> classBytes) {
+        for (Entry entry : archive.entries) {
+            if (entry.nested != null) {
+                indexClasses(entry.nested, classes, classBytes);
+            } else if (isClass(entry.name) && entry.bytes != null) {
+                try {
+                    entry.className = new ClassReader(entry.bytes).getClassName();
+                } catch (RuntimeException e) {
+                    // e.g. class file version newer than ASM supports, left as is as the agent would
+                    LOGGER.log(FINE, "Unable to read class " + entry.name + " in " + archive.name, e);
+                    continue;
+                }
+
+                classes.add(entry);
+                if (!classBytes.containsKey(entry.className)) {
+                    classBytes.put(entry.className, entry.bytes);
+                }
+            }
+        }
+    }
+
+    private static void write(File input, Archive archive, File output) throws IOException {
+        if (!archive.directory) {
+            if (archive.isChanged()) {
+                write(output, writeArchive(archive));
+            } else {
+                copy(input, output);
+            }
+            return;
+        }
+
+        for (Entry entry : archive.entries) {
+            File file = new File(output, entry.name);
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create directory " + parent);
+            }
+
+            if (entry.isChanged()) {
+                write(file, entryBytes(entry));
+                file.setLastModified(entry.time);
+            } else {
+                copy(entry.file, file);
+            }
+        }
+    }
+
+    private static byte[] writeArchive(Archive archive) throws IOException {
+        boolean changed = archive.isChanged();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        try {
+            for (Entry entry : archive.entries) {
+                // the signature no longer matches the instrumented classes, so the archive is left unsigned
+                if (changed && isSignature(entry.name)) {
+                    LOGGER.log(WARNING, "Removing signature {0} from {1} as its classes were instrumented",
+                            new Object[] {entry.name, archive.name});
+                    continue;
+                }
+
+                byte[] data = entryBytes(entry);
+
+                ZipEntry zipEntry = new ZipEntry(entry.name);
+                zipEntry.setTime(entry.time);
+                if (entry.method == ZipEntry.STORED) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(data.length);
+                    zipEntry.setCompressedSize(data.length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+
+                out.putNextEntry(zipEntry);
+                out.write(data);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] entryBytes(Entry entry) throws IOException {
+        if (entry.transformed != null) {
+            return entry.transformed;
+        }
+
+        if (entry.nested != null && entry.nested.isChanged()) {
+            return writeArchive(entry.nested);
+        }
+
+        return entry.bytes;
+    }
+
+    private static boolean isClass(String name) {
+        return name.endsWith(CLASS_SUFFIX);
+    }
+
+    private static boolean isArchive(String name) {
+        return name.endsWith(".jar") || name.endsWith(".war");
+    }
+
+    private static boolean isSignature(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0) {
+            return false;
+        }
+
+        return name.endsWith(".SF") || name.endsWith(".DSA") || name.endsWith(".RSA") || name.endsWith(".EC");
+    }
+
+    private static URL[] toUrls(List<File> files) throws IOException {
+        URL[] urls = new URL[files.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = files.get(i).toURI().toURL();
+        }
+        return urls;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The outcome of instrumenting the inputs, listing the instrumented classes so they can be reviewed and any
+     * classes which failed to be instrumented (which are written as they were).
+     */
+    public static class Report {
+
+        private final int classes;
+        private final List<String> instrumented = new ArrayList<String>();
+        private final Map<String, Throwable> failures = new TreeMap<String, Throwable>();
+
+        Report(int classes) {
+            this.classes = classes;
+        }
+
+        synchronized void instrumented(String className) {
+            instrumented.add(className);
+        }
+
+        synchronized void failed(String className, Throwable cause) {
+            failures.put(className, cause);
+        }
+
+        public int getClasses() {
+            return classes;
+        }
+
+        public synchronized List<String> getInstrumented() {
+            List<String> sorted = new ArrayList<String>(instrumented);
+            Collections.sort(sorted);
+            return sorted;
+        }
+
+        public synchronized Map<String, Throwable> getFailures() {
+            return new TreeMap<String, Throwable>(failures);
+        }
+    }
+
+    private static class TransformTask extends RecursiveAction {
+
+        private final AnnotatedMetricClassTransformer transformer;
+        private final ClassLoader loader;
+        private final Report report;
+        private final List<Entry> classes;
+        private final int from;
+        private final int to;
+
+        TransformTask(AnnotatedMetricClassTransformer transformer, ClassLoader loader, Report report,
+                List<Entry> classes, int from, int to) {
+            this.transformer = transformer;
+            this.loader = loader;
+            this.report = report;
+            this.classes = classes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    transform(classes.get(i));
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new TransformTask(transformer, loader, report, classes, from, middle),
+                    new TransformTask(transformer, loader, report, classes, middle, to));
+        }
+
+        private void transform(Entry entry) {
+            try {
+                byte[] bytes = transformer.transform(loader, entry.className, null, null, entry.bytes);
+
+                if (bytes != entry.bytes) {
+                    entry.transformed = bytes;
+                    report.instrumented(entry.className);
+                    LOGGER.log(FINE, "Instrumented {0}", entry.className);
+                }
+            } catch (Exception e) {
+                report.failed(entry.className, e);
+                LOGGER.log(WARNING, "Failed to instrument " + entry.className, e);
+            }
+        }
+    }
+
+    /**
+     * Resolves the classes of the inputs, as read before any was instrumented, ahead of its parent.
+     */
+    private static class ArchiveClassLoader extends ClassLoader {
+
+        private final Map<String, byte[]> classes;
+
+        ArchiveClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+            super(parent);
+            this.classes = classes;
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            if (isClass(name)) {
+                byte[] bytes = classes.get(name.substring(0, name.length() - CLASS_SUFFIX.length()));
+                if (bytes != null) {
+                    return new ByteArrayInputStream(bytes);
+                }
+            }
+
+            return super.getResourceAsStream(name);
+        }
+    }
+
+    private static class Archive {
+
+        private final String name;
+        private final boolean directory;
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        Archive(String name, boolean directory) {
+            this.name = name;
+            this.directory = directory;
+        }
+
+        boolean isChanged() {
+            for (Entry entry : entries) {
+                if (entry.isChanged()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Entry {
+
+        private final String name;
+        private final long time;
+        private final int method;
+        private byte[] bytes;
+        private File file;
+        private Archive nested;
+        private String className;
+        private byte[] transformed;
+
+        Entry(String name, long time, int method, byte[] bytes) {
+            this.name = name;
+            this.time = time;
+            this.method = method;
+            this.bytes = bytes;
+        }
+
+        boolean isChanged() {
+            return transformed != null || (nested != null && nested.isChanged());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.fleury.metrics.agent.aot;
+
+import com.fleury.metrics.agent.config.Configuration;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Instruments the packaged artifact of the project (or the configured inputs) ahead of time, see
+ * {@link AotInstrumenter}.
+ *
+ * @author Will Fleury
+ */
+@Mojo(name = "instrument",
+        defaultPhase = LifecyclePhase.PACKAGE,
+        requiresDependencyResolution = ResolutionScope.COMPILE,
+        threadSafe = true)
+public class InstrumentMojo extends AbstractMojo {
+
+    /**
+     * The jars, WARs or directories to instrument, by default the packaged artifact of the project.
+     */
+    @Parameter
+    private List<File> inputs;
+
+    @Parameter(defaultValue = "${project.build.directory}/${project.build.finalName}.${project.packaging}",
+            readonly = true)
+    private File artifact;
+
+    @Parameter(defaultValue = "${project.build.directory}/metrics-agent-aot", property = "metrics.aot.outputDirectory")
+    private File outputDirectory;
+
+    /**
+     * The agent configuration, as passed to the agent via agent-config.
+     */
+    @Parameter(property = "metrics.aot.config")
+    private File config;
+
+    /**
+     * Threads instrumenting classes, by default one per processor.
+     */
+    @Parameter(property = "metrics.aot.parallelism")
+    private int parallelism;
+
+    @Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+    private List<String> classpathElements;
+
+    @Parameter(defaultValue = "false", property = "metrics.aot.skip")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (skip) {
+            getLog().info("Skipping ahead of time instrumentation");
+            return;
+        }
+
+        List<File> files = inputs == null || inputs.isEmpty() ? Collections.singletonList(artifact) : inputs;
+        for (File file : files) {
+            if (!file.exists()) {
+                throw new MojoExecutionException("Input " + file + " does not exist");
+            }
+        }
+
+        List<File> classpath = new ArrayList<File>();
+        for (String element : classpathElements) {
+            classpath.add(new File(element));
+        }
+
+        AotInstrumenter instrumenter = new AotInstrumenter(
+                Configuration.createConfig(config == null ? null : config.getPath()),
+                classpath,
+                parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+
+        AotInstrumenter.Report report;
+        try {
+            report = instrumenter.instrument(files, outputDirectory);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to instrument " + files, e);
+        }
+
+        for (String className : report.getInstrumented()) {
+            getLog().debug("Instrumented " + className);
+        }
+        for (Map.Entry<String, Throwable> failure : report.getFailures().entrySet()) {
+            getLog().error("Failed to instrument " + failure.getKey(), failure.getValue());
+        }
+
+        getLog().info("Instrumented " + report.getInstrumented().size() + " of " + report.getClasses()
+                + " classes into " + outputDirectory);
+
+        if (!report.getFailures().isEmpty()) {
+            throw new MojoFailureException("Failed to instrument " + report.getFailures().size() + " classes");
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.fleury.metrics.agent.aot;
+
+import com.fleury.metrics.agent.config.Configuration;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line entry point of the {@link AotInstrumenter}.
+ *
+ * <pre>
+ * java -cp metrics-agent.jar:prometheus-metrics-agent-aot.jar com.fleury.metrics.agent.aot.Main \
+ *     --output target/aot [--config agent.yaml] [--classpath lib/a.jar:lib/b.jar] [--parallelism 4] myapp.war ...
+ * </pre>
+ *
+ * Exits with status 1 if any class failed to be instrumented and 2 if the arguments are invalid.
+ *
+ * @author Will Fleury
+ */
+public class Main {
+
+    private static final String USAGE = "Usage: Main --output <dir> [--config <agent config>] "
+            + "[--classpath <path>] [--parallelism <threads>] <jar|war|dir>...";
+
+    public static void main(String[] args) throws Exception {
+        String output = null;
+        String config = null;
+        String classpath = null;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        List<File> inputs = new ArrayList<File>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+
+                if (arg.equals("--output")) {
+                    output = args[++i];
+                } else if (arg.equals("--config")) {
+                    config = args[++i];
+                } else if (arg.equals("--classpath")) {
+                    classpath = args[++i];
+                } else if (arg.equals("--parallelism")) {
+                    parallelism = Integer.parseInt(args[++i]);
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    inputs.add(new File(arg));
+                }
+            }
+
+            if (output == null || inputs.isEmpty()) {
+                throw new IllegalArgumentException("An output directory and at least one input are required");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() == null ? e : e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        AotInstrumenter instrumenter = new AotInstrumenter(
+                Configuration.createConfig(config), toFiles(classpath), parallelism);
+
+        AotInstrumenter.Report report = instrumenter.instrument(inputs, new File(output));
+
+        for (String className : report.getInstrumented()) {
+            System.out.println("Instrumented " + className);
+        }
+        for (Map.Entry<String, Throwable> failure : report.getFailures().entrySet()) {
+            System.err.println("Failed to instrument " + failure.getKey() + ": " + failure.getValue());
+        }
+        System.out.println("Instrumented " + report.getInstrumented().size() + " of " + report.getClasses()
+                + " classes into " + output);
+
+        if (!report.getFailures().isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    private static List<File> toFiles(String path) {
+        List<File> files = new ArrayList<File>();
+        if (path != null) {
+            for (String element : path.split(File.pathSeparator)) {
+                if (!element.isEmpty()) {
+                    files.add(new File(element));
+                }
+            }
+        }
+        return files;
+    }
+}
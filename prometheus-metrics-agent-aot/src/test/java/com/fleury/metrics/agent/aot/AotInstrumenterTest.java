@@ -0,0 +1,254 @@
+package com.fleury.metrics.agent.aot;
+
+import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.transformer.InstrumentedAttribute;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class AotInstrumenterTest {
+
+    private static final String COUNTED_CLASS = Type.getInternalName(CountedClass.class);
+    private static final String NESTED_CLASS = Type.getInternalName(NestedCountedClass.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldInstrumentClassesOfWarAndNestedJars() throws Exception {
+        File war = war();
+
+        AotInstrumenter.Report report = instrument(war, folder.newFolder("out"));
+
+        assertEquals(3, report.getClasses());
+        assertEquals(Arrays.asList(COUNTED_CLASS, NESTED_CLASS), report.getInstrumented());
+        assertTrue(report.getFailures().isEmpty());
+
+        Map<String, byte[]> entries = unzip(FileUtils.readFileToByteArray(new File(folder.getRoot(), "out/app.war")));
+        assertEquals(Arrays.asList("META-INF/MANIFEST.MF", "index.html", "WEB-INF/classes/" + COUNTED_CLASS + ".class",
+                "WEB-INF/classes/" + plainClassPath(), "WEB-INF/lib/nested.jar"), Arrays.asList(entries.keySet().toArray()));
+        assertEquals("<html/>", new String(entries.get("index.html"), "UTF-8"));
+
+        assertTrue(isInstrumented(entries.get("WEB-INF/classes/" + COUNTED_CLASS + ".class")));
+        assertArrayEquals(bytes(PlainClass.class), entries.get("WEB-INF/classes/" + plainClassPath()));
+
+        Map<String, byte[]> nested = unzip(entries.get("WEB-INF/lib/nested.jar"));
+        assertTrue(isInstrumented(nested.get(NESTED_CLASS + ".class")));
+    }
+
+    @Test
+    public void shouldRecordMetricsFromInstrumentedClass() throws Exception {
+        instrument(war(), folder.newFolder("out"));
+
+        Map<String, byte[]> entries = unzip(FileUtils.readFileToByteArray(new File(folder.getRoot(), "out/app.war")));
+        Class<?> clazz = new DefiningClassLoader().define(
+                CountedClass.class.getName(), entries.get("WEB-INF/classes/" + COUNTED_CLASS + ".class"));
+
+        Object obj = clazz.newInstance();
+        clazz.getMethod("counted").invoke(obj);
+        clazz.getMethod("counted").invoke(obj);
+
+        assertEquals(2, CollectorRegistry.defaultRegistry.getSampleValue("aot_counted"), 0);
+    }
+
+    @Test
+    public void shouldWriteSameOutputForSameInput() throws Exception {
+        File war = war();
+
+        instrument(war, folder.newFolder("first"));
+        instrument(war, folder.newFolder("second"));
+
+        assertArrayEquals(
+                FileUtils.readFileToByteArray(new File(folder.getRoot(), "first/app.war")),
+                FileUtils.readFileToByteArray(new File(folder.getRoot(), "second/app.war")));
+    }
+
+    @Test
+    public void shouldCopyArchiveWithoutMetricsAsIs() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(plainClassPath(), bytes(PlainClass.class));
+        File jar = write(folder.newFile("plain.jar"), zip(entries, false));
+
+        AotInstrumenter.Report report = instrument(jar, folder.newFolder("out"));
+
+        assertTrue(report.getInstrumented().isEmpty());
+        assertArrayEquals(FileUtils.readFileToByteArray(jar),
+                FileUtils.readFileToByteArray(new File(folder.getRoot(), "out/plain.jar")));
+    }
+
+    @Test
+    public void shouldInstrumentExplodedWar() throws Exception {
+        File exploded = folder.newFolder("exploded");
+        FileUtils.writeStringToFile(new File(exploded, "index.html"), "<html/>", "UTF-8");
+        FileUtils.writeByteArrayToFile(new File(exploded, "WEB-INF/classes/" + COUNTED_CLASS + ".class"),
+                bytes(CountedClass.class));
+
+        AotInstrumenter.Report report = instrument(exploded, folder.newFolder("out"));
+
+        assertEquals(Collections.singletonList(COUNTED_CLASS), report.getInstrumented());
+        assertTrue(isInstrumented(FileUtils.readFileToByteArray(
+                new File(folder.getRoot(), "out/exploded/WEB-INF/classes/" + COUNTED_CLASS + ".class"))));
+        assertEquals("<html/>", FileUtils.readFileToString(
+                new File(folder.getRoot(), "out/exploded/index.html"), "UTF-8"));
+        assertFalse(isInstrumented(bytes(CountedClass.class)));
+    }
+
+    @Test
+    public void shouldRejectRuntimeOnlySettings() throws Exception {
+        for (String setting : Arrays.asList("dynamicMetrics: true", "configReloadInterval: 1000",
+                "transformCacheDir: /tmp/cache")) {
+            Configuration config = Configuration.createConfig(
+                    new ByteArrayInputStream(("system:\n  " + setting + "\n").getBytes("UTF-8")));
+
+            try {
+                new AotInstrumenter(config, Collections.<File>emptyList(), 2);
+                fail(setting);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    private static AotInstrumenter.Report instrument(File input, File output) throws IOException {
+        AotInstrumenter instrumenter = new AotInstrumenter(emptyConfiguration(), Collections.<File>emptyList(), 2);
+        return instrumenter.instrument(Collections.singletonList(input), output);
+    }
+
+    private File war() throws IOException {
+        Map<String, byte[]> lib = new LinkedHashMap<String, byte[]>();
+        lib.put(NESTED_CLASS + ".class", bytes(NestedCountedClass.class));
+
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n\r\n".getBytes("UTF-8"));
+        entries.put("index.html", "<html/>".getBytes("UTF-8"));
+        entries.put("WEB-INF/classes/" + COUNTED_CLASS + ".class", bytes(CountedClass.class));
+        entries.put("WEB-INF/classes/" + plainClassPath(), bytes(PlainClass.class));
+        entries.put("WEB-INF/lib/nested.jar", zip(lib, false));
+
+        return write(new File(folder.getRoot(), "app.war"), zip(entries, true));
+    }
+
+    private static String plainClassPath() {
+        return Type.getInternalName(PlainClass.class) + ".class";
+    }
+
+    private static boolean isInstrumented(byte[] classfileBuffer) {
+        return InstrumentedAttribute.isPresent(new ClassReader(classfileBuffer));
+    }
+
+    private static byte[] bytes(Class<?> clazz) throws IOException {
+        return IOUtils.toByteArray(clazz.getClassLoader().getResourceAsStream(Type.getInternalName(clazz) + ".class"));
+    }
+
+    /**
+     * Nested jars are stored uncompressed, as e.g. Spring Boot requires.
+     */
+    private static byte[] zip(Map<String, byte[]> entries, boolean storeJars) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            ZipEntry zipEntry = new ZipEntry(entry.getKey());
+            zipEntry.setTime(1500000000000L);
+
+            if (storeJars && entry.getKey().endsWith(".jar")) {
+                CRC32 crc = new CRC32();
+                crc.update(entry.getValue());
+                zipEntry.setMethod(ZipEntry.STORED);
+                zipEntry.setSize(entry.getValue().length);
+                zipEntry.setCrc(crc.getValue());
+            }
+
+            out.putNextEntry(zipEntry);
+            out.write(entry.getValue());
+            out.closeEntry();
+        }
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, byte[]> unzip(byte[] bytes) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes));
+        for (ZipEntry entry; (entry = in.getNextEntry()) != null; ) {
+            entries.put(entry.getName(), IOUtils.toByteArray(in));
+        }
+        in.close();
+
+        return entries;
+    }
+
+    private static File write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static class DefiningClassLoader extends ClassLoader {
+
+        DefiningClassLoader() {
+            super(AotInstrumenterTest.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    public static class CountedClass {
+
+        @Counted(name = "aot_counted")
+        public void counted() {
+        }
+    }
+
+    public static class NestedCountedClass {
+
+        @Counted(name = "aot_nested_counted")
+        public void counted() {
+        }
+    }
+
+    public static class PlainClass {
+
+        public int plain() {
+            return 5;
+        }
+    }
+}
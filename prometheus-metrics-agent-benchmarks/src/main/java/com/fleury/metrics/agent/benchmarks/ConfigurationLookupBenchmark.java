@@ -0,0 +1,109 @@
+package com.fleury.metrics.agent.benchmarks;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The configuration lookups made by the transformer for every class loaded, over class names of which only a small
+ * fraction is configured.
+ *
+ * @author Will Fleury
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigurationLookupBenchmark {
+
+    private static final String[] PACKAGES = {
+        "org/springframework/beans/factory/support/",
+        "org/springframework/context/annotation/",
+        "org/apache/catalina/core/",
+        "org/hibernate/engine/spi/",
+        "com/fasterxml/jackson/databind/ser/",
+        "java/util/concurrent/",
+        "sun/reflect/generics/",
+        "com/example/app/service/",
+        "com/example/app/web/",
+        "com/example/app/internal/"
+    };
+
+    private static final int LOADED_CLASSES = 40000;
+
+    @Param({"300"})
+    public int configuredKeys;
+
+    @Param({"20", "200"})
+    public int listPrefixes;
+
+    private Configuration config;
+    private String[] classNames;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+
+        List<String> whiteList = new ArrayList<String>();
+        List<String> blackList = new ArrayList<String>();
+        for (int i = 0; i < listPrefixes; i++) {
+            whiteList.add(PACKAGES[random.nextInt(PACKAGES.length)] + "Class" + i);
+            blackList.add(PACKAGES[random.nextInt(PACKAGES.length)] + "Excluded" + i);
+        }
+        whiteList.add("com/example/app/");
+        blackList.add("com/example/app/internal/");
+
+        config = new Configuration(null, null, null, whiteList, blackList);
+
+        Metric metric = Metric.builder().type(MetricType.Counted).name("benchmark").createMetric();
+        for (int i = 0; i < configuredKeys; i++) {
+            String className = "com/example/app/service/Service" + (i / 3);
+            config.addMetric(new Configuration.Key(className, "method" + i, "()V"), metric);
+        }
+
+        classNames = new String[LOADED_CLASSES];
+        for (int i = 0; i < classNames.length; i++) {
+            classNames[i] = PACKAGES[random.nextInt(PACKAGES.length)] + "Service" + random.nextInt(LOADED_CLASSES);
+        }
+    }
+
+    @Benchmark
+    public boolean isMetric() {
+        return config.isMetric(nextClassName());
+    }
+
+    @Benchmark
+    public boolean isEligible() {
+        return config.isEligible(nextClassName());
+    }
+
+    @Benchmark
+    public boolean transformerCheck() {
+        String className = nextClassName();
+        return config.isMetric(className) && config.isEligible(className);
+    }
+
+    private String nextClassName() {
+        int index = next;
+        next = index + 1 == classNames.length ? 0 : index + 1;
+        return classNames[index];
+    }
+}
@@ -0,0 +1,111 @@
+package com.fleury.metrics.agent.benchmarks;
+
+import com.fleury.metrics.agent.reporter.TimerHistogram;
+import com.fleury.metrics.agent.reporter.http.TextExpositionWriter;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering a scrape of labelled counters and timers via the simpleclient TextFormat and the TextExpositionWriter,
+ * run with {@code -prof gc} to compare the allocation.
+ *
+ * @author Will Fleury
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpositionBenchmark {
+
+    // the buckets, count and sum of each timer child
+    private static final int TIMER_SERIES = TimerHistogram.DEFAULT_BUCKETS.length + 3;
+
+    @Param({"10000", "100000"})
+    public int series;
+
+    private CollectorRegistry registry;
+    private TextExpositionWriter writer;
+    private CountingOutputStream out;
+
+    @Setup
+    public void setup() throws IOException {
+        registry = new CollectorRegistry();
+        Counter counter = Counter.build().name("calls_total").help("Calls").labelNames("service", "method")
+                .register(registry);
+        TimerHistogram timer = TimerHistogram.build().name("latency_seconds").help("Latency")
+                .labelNames("service", "method").register(registry);
+
+        Random random = new Random(42);
+        int children = series / (1 + TIMER_SERIES);
+        for (int i = 0; i < children; i++) {
+            String service = "service" + (i % 100);
+            String method = "method" + i;
+
+            counter.labels(service, method).inc(random.nextInt(100000));
+            for (int j = 0; j < 10; j++) {
+                timer.labels(service, method).observeNanos((long) Math.pow(10, 4 + random.nextDouble() * 6));
+            }
+        }
+
+        writer = new TextExpositionWriter();
+        out = new CountingOutputStream();
+
+        // the encodings are created by the first scrape
+        writer.write(out, registry.metricFamilySamples());
+    }
+
+    @Benchmark
+    public long textFormat() throws IOException {
+        out.count = 0;
+        Writer textWriter = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        TextFormat.write004(textWriter, registry.metricFamilySamples());
+        textWriter.flush();
+        return out.count;
+    }
+
+    @Benchmark
+    public long expositionWriter() throws IOException {
+        out.count = 0;
+        writer.write(out, registry.metricFamilySamples());
+        return out.count;
+    }
+
+    /**
+     * Discards the bytes written, as the endpoint hands them to the socket.
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.fleury.metrics.agent.benchmarks;
+
+import static org.objectweb.asm.ClassReader.EXPAND_FRAMES;
+import static org.objectweb.asm.ClassReader.SKIP_CODE;
+import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
+import static org.objectweb.asm.ClassReader.SKIP_FRAMES;
+import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
+import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import com.fleury.metrics.agent.transformer.ASMClassWriter;
+import com.fleury.metrics.agent.transformer.AnnotatedMetricClassTransformer;
+import com.fleury.metrics.agent.transformer.util.PropertyGetterResolver;
+import com.fleury.metrics.agent.transformer.visitors.AnnotationClassVisitor;
+import com.fleury.metrics.agent.transformer.visitors.MetricClassVisitor;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transform throughput over the classes of the <code>corpus</code> jars (by default those of Jackson and ASM), with
+ * a Counted metric on a method of each class when <code>instrumented</code> is set.
+ *
+ * @author Will Fleury
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark {
+
+    @Param({""})
+    public String corpus;
+
+    @Param({"false", "true"})
+    public boolean instrumented;
+
+    private List<String> classNames;
+    private List<byte[]> classes;
+    private ClassLoader loader;
+    private Configuration config;
+    private AnnotatedMetricClassTransformer transformer;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        List<File> jars = corpusJars();
+
+        URL[] urls = new URL[jars.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = jars.get(i).toURI().toURL();
+        }
+        loader = new URLClassLoader(urls, getClass().getClassLoader());
+
+        classNames = new ArrayList<String>();
+        classes = new ArrayList<byte[]>();
+        for (File jar : jars) {
+            readClasses(jar);
+        }
+
+        config = new Configuration(null, null, null, null, null);
+        if (instrumented) {
+            configureMetrics();
+        }
+
+        transformer = new AnnotatedMetricClassTransformer(config);
+    }
+
+    @Benchmark
+    public byte[] transform() throws Exception {
+        int index = nextIndex();
+        return transformer.transform(loader, classNames.get(index), null, null, classes.get(index));
+    }
+
+    @Benchmark
+    public byte[] previousTransform() {
+        int index = nextIndex();
+        String className = classNames.get(index);
+        byte[] classfileBuffer = classes.get(index);
+
+        try {
+            ClassReader cr = new ClassReader(classfileBuffer);
+            cr.accept(new AnnotationClassVisitor(new ASMClassWriter(0, loader), config), 0);
+
+            if (config.isMetric(className) && config.isEligible(className)) {
+                ASMClassWriter cw = new ASMClassWriter(COMPUTE_FRAMES | COMPUTE_MAXS, loader);
+                cr.accept(new MetricClassVisitor(cw, config, new PropertyGetterResolver(cw)), EXPAND_FRAMES);
+
+                return cw.toByteArray();
+            }
+        } catch (RuntimeException e) {
+            // as the transformer does
+        }
+
+        return classfileBuffer;
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = index + 1 == classes.size() ? 0 : index + 1;
+        return index;
+    }
+
+    private List<File> corpusJars() throws Exception {
+        Set<File> jars = new LinkedHashSet<File>();
+
+        if (corpus.isEmpty()) {
+            jars.add(new File(ObjectMapper.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+            jars.add(new File(ClassReader.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+        } else {
+            for (String path : corpus.split(File.pathSeparator)) {
+                jars.add(new File(path));
+            }
+        }
+
+        return new ArrayList<File>(jars);
+    }
+
+    private void readClasses(File jar) throws IOException {
+        JarFile jarFile = new JarFile(jar);
+        try {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+
+                if (name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class")) {
+                    classNames.add(name.substring(0, name.length() - ".class".length()));
+                    classes.add(read(jarFile.getInputStream(entry)));
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = is.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Counts invocations of the first concrete method of each class so every class with one is rewritten.
+     */
+    private void configureMetrics() {
+        for (int i = 0; i < classes.size(); i++) {
+            final String className = classNames.get(i);
+
+            new ClassReader(classes.get(i)).accept(new ClassVisitor(Opcodes.ASM5) {
+                private boolean configured;
+
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                        String[] exceptions) {
+
+                    boolean concrete = (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0;
+                    if (!configured && concrete && !name.startsWith("<")) {
+                        Metric metric = Metric.builder()
+                                .type(MetricType.Counted)
+                                .name("benchmark_" + className.replace('/', '_').replace('$', '_'))
+                                .createMetric();
+                        config.addMetric(new Configuration.Key(className, name, desc), metric);
+                        configured = true;
+                    }
+
+                    return null;
+                }
+            }, SKIP_CODE | SKIP_DEBUG | SKIP_FRAMES);
+        }
+    }
+}
@@ -1,12 +1,18 @@
 package com.fleury.metrics.agent;
 
 import static com.fleury.metrics.agent.config.LoggerUtil.initializeLogging;
+import static java.util.logging.Level.WARNING;
 
 import com.fleury.metrics.agent.config.ArgParser;
 import com.fleury.metrics.agent.config.Configuration;
 import com.fleury.metrics.agent.reporter.PrometheusMetricSystemFactory;
+import com.fleury.metrics.agent.reporter.SelfMetrics;
 import com.fleury.metrics.agent.transformer.AnnotatedMetricClassTransformer;
+import com.fleury.metrics.agent.transformer.ConfigurationReloader;
+import com.fleury.metrics.agent.transformer.Retransformer;
 import java.lang.instrument.Instrumentation;
+import java.util.List;
+import java.util.logging.Logger;
 
 /**
  *
@@ -14,17 +20,158 @@ import java.lang.instrument.Instrumentation;
  */
 public class Agent {
 
+    private static final Logger LOGGER = Logger.getLogger(Agent.class.getName());
+
+    private static boolean started;
+
     public static void premain(String args, Instrumentation instrumentation) {
+        start(args, instrumentation, false);
+    }
+
+    /**
+     * Attaches to a running JVM. The classes already loaded are retransformed, so all classes are instrumented to be
+     * retransformable.
+     */
+    public static void agentmain(String args, Instrumentation instrumentation) {
+        start(args, instrumentation, true);
+    }
+
+    private static synchronized void start(String args, Instrumentation instrumentation, boolean attached) {
+        // the agent may be attached more than once, or attached when already started via -javaagent
+        if (started) {
+            LOGGER.info("The agent is already running");
+            return;
+        }
 
         ArgParser argParser = new ArgParser(args);
 
         initializeLogging(argParser.getLogConfigFilename());
 
         Configuration config = Configuration.createConfig(argParser.getConfigFilename());
-        PrometheusMetricSystemFactory.INSTANCE.init(config.getSystem());
 
-        instrumentation.addTransformer(
-                new AnnotatedMetricClassTransformer(config),
-                instrumentation.isRetransformClassesSupported());
+        Transformation transformation = null;
+        SelfMetrics.setInPremain(!attached);
+        try {
+            // all classes were instrumented ahead of time, the agent only needs to provide the registry and reporting
+            if (Boolean.parseBoolean(String.valueOf(config.getSystem().get("registryOnly")))) {
+                LOGGER.info("Running in registry only mode, classes are not transformed");
+            } else {
+                transformation = addTransformer(argParser.getConfigFilename(), config, instrumentation, attached);
+            }
+
+            boolean initialized = false;
+            try {
+                PrometheusMetricSystemFactory.INSTANCE.init(config.getSystem());
+                initialized = true;
+            } finally {
+                // so an attach retried after the reporter failed to start doesn't add a second transformer
+                if (!initialized && transformation != null) {
+                    instrumentation.removeTransformer(transformation.transformer);
+                }
+            }
+        } finally {
+            SelfMetrics.setInPremain(false);
+        }
+
+        if (transformation != null) {
+            transformation.start(config, instrumentation);
+        }
+
+        if (AnnotatedMetricClassTransformer.isDynamic(config)) {
+            registerMetricSwitches();
+        }
+
+        // only once started so an attach failing (e.g. on an invalid configuration) can be retried
+        started = true;
+    }
+
+    /**
+     * The loaded classes are only retransformed, and the configuration reloaded, once started.
+     */
+    private static Transformation addTransformer(String configFilename, Configuration config,
+            Instrumentation instrumentation, boolean attached) {
+
+        // the JVM keeps the original bytes of every class loaded for a retransformation capable transformer, so it is
+        // only registered as such when needed
+        boolean retransform = attached || ConfigurationReloader.isEnabled(config.getSystem());
+        if (retransform && !instrumentation.isRetransformClassesSupported()) {
+            LOGGER.warning("Retransformation is not supported, the classes already loaded and configuration changes "
+                    + "are not instrumented");
+            retransform = false;
+        }
+
+        boolean reload = retransform && ConfigurationReloader.isEnabled(config.getSystem());
+        if (reload && configFilename == null) {
+            LOGGER.warning("The configuration cannot be reloaded without an agent-config file");
+            reload = false;
+        }
+
+        AnnotatedMetricClassTransformer transformer =
+                new AnnotatedMetricClassTransformer(config, false, retransform);
+
+        // created before any class is scanned for annotations so only the configured metrics are compared
+        ConfigurationReloader reloader = reload ?
+                new ConfigurationReloader(configFilename, config, transformer, instrumentation) :
+                null;
+
+        // registered before the metric system is initialized so transforming the classes it loads is accounted to
+        // premain
+        instrumentation.addTransformer(transformer, retransform);
+
+        return new Transformation(transformer, attached && retransform, reloader);
+    }
+
+    /**
+     * Compiled for Java 7 so invoked reflectively.
+     */
+    private static void registerMetricSwitches() {
+        try {
+            Class.forName("com.fleury.metrics.agent.reporter.MetricSwitches").getMethod("register").invoke(null);
+        } catch (Exception e) {
+            LOGGER.log(WARNING, "Unable to register the MetricSwitches MBean", e);
+        }
+    }
+
+    /**
+     * In the background so the attach returns without waiting for the classes to be retransformed.
+     */
+    private static void retransformLoadedClasses(final Configuration config, final Instrumentation instrumentation) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Retransformer retransformer = new Retransformer(instrumentation, config.getSystem());
+
+                List<Class<?>> classes = retransformer.findLoadedClasses(config);
+                int retransformed = retransformer.retransform(classes);
+
+                LOGGER.info("Retransformed " + retransformed + " of " + classes.size() + " loaded classes");
+            }
+        }, "metrics-agent-attach");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static class Transformation {
+
+        private final AnnotatedMetricClassTransformer transformer;
+        private final boolean retransformLoaded;
+        private final ConfigurationReloader reloader;
+
+        Transformation(AnnotatedMetricClassTransformer transformer, boolean retransformLoaded,
+                ConfigurationReloader reloader) {
+            this.transformer = transformer;
+            this.retransformLoaded = retransformLoaded;
+            this.reloader = reloader;
+        }
+
+        void start(Configuration config, Instrumentation instrumentation) {
+            if (retransformLoaded) {
+                retransformLoadedClasses(config, instrumentation);
+            }
+
+            if (reloader != null) {
+                reloader.start();
+            }
+        }
     }
 }
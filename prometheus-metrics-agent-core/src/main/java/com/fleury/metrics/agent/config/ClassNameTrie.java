@@ -0,0 +1,163 @@
+package com.fleury.metrics.agent.config;
+
+/**
+ * Matches class names against tagged prefixes in a single walk over the name, a <code>*</code> matching any run of
+ * characters within a name segment, e.g. <code>com/fleury/*&#47;internal</code>.
+ *
+ * @author Will Fleury
+ */
+class ClassNameTrie {
+
+    private static final char WILDCARD = '*';
+    private static final char SEPARATOR = '/';
+
+    private final Node root = new Node("");
+
+    public void add(String prefix, int flag) {
+        Node node = root;
+
+        int i = 0;
+        while (i < prefix.length()) {
+            char c = prefix.charAt(i);
+
+            if (c == WILDCARD) {
+                if (node.wildcard == null) {
+                    node.wildcard = new Node("");
+                }
+                node = node.wildcard;
+                i++;
+                continue;
+            }
+
+            int end = prefix.indexOf(WILDCARD, i);
+            if (end < 0) {
+                end = prefix.length();
+            }
+
+            Node child = node.get(c);
+            if (child == null) {
+                child = new Node(prefix.substring(i, end));
+                node.put(c, child);
+            } else {
+                int common = commonLength(child.label, prefix, i, end);
+                if (common < child.label.length()) {
+                    child = node.split(c, child, common);
+                }
+            }
+
+            i += child.label.length();
+            node = child;
+        }
+
+        node.flags |= flag;
+    }
+
+    /**
+     * @return the flags of every prefix the class name starts with
+     */
+    public int match(String className) {
+        return match(root, className, 0);
+    }
+
+    private static int match(Node node, String className, int from) {
+        int flags = node.flags;
+
+        for (int i = from; ; ) {
+            if (node.wildcard != null) {
+                flags |= matchWildcard(node.wildcard, className, i);
+            }
+
+            if (i == className.length()) {
+                return flags;
+            }
+
+            // prefixes always end on a node so a partially matched label can't hold any more flags
+            node = node.get(className.charAt(i));
+            if (node == null || !className.regionMatches(i, node.label, 0, node.label.length())) {
+                return flags;
+            }
+
+            i += node.label.length();
+            flags |= node.flags;
+        }
+    }
+
+    private static int matchWildcard(Node wildcard, String className, int from) {
+        int flags = 0;
+
+        for (int i = from; ; i++) {
+            flags |= match(wildcard, className, i);
+
+            if (i == className.length() || className.charAt(i) == SEPARATOR) {
+                return flags;
+            }
+        }
+    }
+
+    private static int commonLength(String label, String prefix, int from, int to) {
+        int length = 0;
+        while (length < label.length() && from + length < to && label.charAt(length) == prefix.charAt(from + length)) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * A node is reached by the characters of its label, i.e. chains of single children are collapsed into one node
+     * (a radix tree) so a class name is mostly matched a label at a time. Children are keyed by the first character of
+     * their label, held in small parallel arrays scanned linearly as package names branch little at each point.
+     */
+    private static class Node {
+
+        private String label;
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Node wildcard;
+        private int flags;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node get(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+
+            return null;
+        }
+
+        void put(char c, Node child) {
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, keys.length);
+            System.arraycopy(children, 0, newChildren, 0, children.length);
+
+            newKeys[keys.length] = c;
+            newChildren[children.length] = child;
+
+            keys = newKeys;
+            children = newChildren;
+        }
+
+        /**
+         * Splits the label of the child at the given length by inserting a node for the shared part between them.
+         */
+        Node split(char c, Node child, int length) {
+            Node shared = new Node(child.label.substring(0, length));
+
+            child.label = child.label.substring(length);
+            shared.put(child.label.charAt(0), child);
+
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    children[i] = shared;
+                }
+            }
+
+            return shared;
+        }
+    }
+}
@@ -27,6 +27,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 import org.objectweb.asm.Type;
 
@@ -46,6 +49,14 @@ public class Configuration {
         return ("metrics$" + metric.getName()+"$"+metric.getType()).toUpperCase();
     }
 
+    public static String staticFinalChildFieldName(Metric metric) {
+        return staticFinalFieldName(metric) + "$CHILD";
+    }
+
+    public static String staticFinalChildCacheFieldName(Metric metric) {
+        return staticFinalFieldName(metric) + "$CHILDREN";
+    }
+
     public final static ObjectMapper YAML_MAPPER = new ObjectMapper(new YAMLFactory()) {
         {
             configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
@@ -86,14 +97,18 @@ public class Configuration {
         return new Configuration();
     }
 
+    private static final int WHITE_LISTED = 1;
+    private static final int BLACK_LISTED = 2;
+
     private final Set<String> imports;
-    private final Map<Key, List<Metric>> metrics;
+    private final ConcurrentMap<String, Map<String, List<Metric>>> metrics;
     private final Map<String, Object> system;
     private final List<String> whiteList;
     private final List<String> blackList;
+    private final ClassNameTrie lists;
 
     private Configuration() {
-        this(new HashMap<Key, List<Metric>>(),
+        this(null,
                 Collections.<String>emptySet(),
                 Collections.<String, Object>emptyMap(),
                 Collections.<String>emptyList(),
@@ -110,13 +125,34 @@ public class Configuration {
 
         this.imports = imports == null ? Collections.<String>emptySet() : imports;
 
-        this.metrics = metrics == null ?
-                new HashMap<Key, List<Metric>>() :
-                processClassImports(metrics, this.imports); //ensure fqn expanded from imports
+        this.metrics = new ConcurrentHashMap<String, Map<String, List<Metric>>>();
+        if (metrics != null) {
+            //ensure fqn expanded from imports
+            for (Map.Entry<Key, List<Metric>> entry : processClassImports(metrics, this.imports).entrySet()) {
+                for (Metric metric : entry.getValue()) {
+                    addMetric(entry.getKey(), metric);
+                }
+            }
+        }
 
         this.system = system == null ? Collections.<String, Object>emptyMap() : system;
         this.whiteList = whiteList == null ? Collections.<String>emptyList() : whiteList;
         this.blackList = blackList == null ? Collections.<String>emptyList() : blackList;
+        this.lists = createLists(this.whiteList, this.blackList);
+    }
+
+    private static ClassNameTrie createLists(List<String> whiteList, List<String> blackList) {
+        ClassNameTrie lists = new ClassNameTrie();
+
+        for (String white : whiteList) {
+            lists.add(white, WHITE_LISTED);
+        }
+
+        for (String black : blackList) {
+            lists.add(black, BLACK_LISTED);
+        }
+
+        return lists;
     }
 
     private static Map<Key, List<Metric>> processClassImports(Map<Key, List<Metric>> metrics, Set<String> imports) {
@@ -150,42 +186,68 @@ public class Configuration {
 
 
     public boolean isMetric(String className) {
-        for (Key key : metrics.keySet()) {
-            if (key.className.equals(className)) {
-                return true;
-            }
-        }
+        return metrics.containsKey(className);
+    }
 
-        return false;
+    /**
+     * @return the classes with metrics, configured or found when scanning the classes loaded so far
+     */
+    public Set<String> getMetricClassNames() {
+        return new HashSet<String>(metrics.keySet());
     }
 
     public List<Metric> findMetrics(String className) {
-        if (metrics.isEmpty()) return Collections.emptyList();
+        Map<String, List<Metric>> classMetrics = metrics.get(className);
+        if (classMetrics == null) return Collections.emptyList();
 
         List<Metric> found = new ArrayList<Metric>();
-        for (Key key : metrics.keySet()) {
-            if (key.className.equals(className)) {
-                found.addAll(metrics.get(key));
-            }
+        for (List<Metric> methodMetrics : classMetrics.values()) {
+            found.addAll(methodMetrics);
         }
 
         return found;
     }
 
+    /**
+     * @return the metrics configured for the methods of the class in a form which only differs if they do, e.g. to key
+     * cached transformations of the class by
+     */
+    public String describeMetrics(String className) {
+        Map<String, List<Metric>> classMetrics = metrics.get(className);
+        if (classMetrics == null) return "";
+
+        return new TreeMap<String, List<Metric>>(classMetrics).toString();
+    }
+
     public List<Metric> findMetrics(String className, String method, String descriptor) {
-        Key key = new Key(className, method, descriptor);
-        return metrics.containsKey(key) ? metrics.get(key) : Collections.<Metric>emptyList();
+        Map<String, List<Metric>> classMetrics = metrics.get(className);
+        if (classMetrics == null) return Collections.emptyList();
+
+        List<Metric> found = classMetrics.get(method + descriptor);
+        return found == null ? Collections.<Metric>emptyList() : found;
     }
 
-    public void addMetric(Key key, Metric metric) {
-        List<Metric> keyMetrics = metrics.get(key);
+    /**
+     * Metrics may be added while classes are being scanned concurrently, so each method's list is replaced rather
+     * than modified in place.
+     */
+    public synchronized void addMetric(Key key, Metric metric) {
+        Map<String, List<Metric>> classMetrics = metrics.get(key.getClassName());
 
-        if (keyMetrics == null) {
-            keyMetrics = new ArrayList<Metric>();
-            metrics.put(key, keyMetrics);
+        if (classMetrics == null) {
+            classMetrics = new ConcurrentHashMap<String, List<Metric>>();
+            metrics.put(key.getClassName(), classMetrics);
         }
 
-        keyMetrics.add(metric);
+        String methodKey = key.getMethod() + key.getDescriptor();
+        List<Metric> methodMetrics = classMetrics.get(methodKey);
+
+        List<Metric> updated = methodMetrics == null ?
+                new ArrayList<Metric>() :
+                new ArrayList<Metric>(methodMetrics);
+        updated.add(metric);
+
+        classMetrics.put(methodKey, Collections.unmodifiableList(updated));
     }
 
     public Map<String, Object> getSystem() {
@@ -200,28 +262,26 @@ public class Configuration {
         return blackList;
     }
 
+    /**
+     * @return true if the class is white listed (or there is no white list) and not black listed
+     */
+    public boolean isEligible(String className) {
+        if (whiteList.isEmpty() && blackList.isEmpty()) return true;
+
+        int flags = lists.match(className);
+        return (whiteList.isEmpty() || (flags & WHITE_LISTED) != 0) && (flags & BLACK_LISTED) == 0;
+    }
+
     public boolean isWhiteListed(String className) {
         if (whiteList.isEmpty()) return true;
 
-        for (String white : whiteList) {
-            if (className.startsWith(white)) {
-                return true;
-            }
-        }
-
-        return false;
+        return (lists.match(className) & WHITE_LISTED) != 0;
     }
 
     public boolean isBlackListed(String className) {
         if (blackList.isEmpty()) return false;
 
-        for (String black : blackList) {
-            if (className.startsWith(black)) {
-                return true;
-            }
-        }
-
-        return false;
+        return (lists.match(className) & BLACK_LISTED) != 0;
     }
 
     @Override
@@ -0,0 +1,69 @@
+package com.fleury.metrics.agent.introspector;
+
+import static java.util.logging.Level.FINE;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * The getters of the properties read by {@link NestedPropertyReader}, by class. On Java 7 or later they are held per
+ * class via a ClassValue, strongly and read without locking, see ClassValueGetterCache. Before Java 7 a class can only
+ * be weakly referenced from the outside, so the getters (which reference the class) are softly referenced and looked
+ * up under a lock.
+ *
+ * @author Will Fleury
+ */
+class GetterCache {
+
+    private static final Logger LOGGER = Logger.getLogger(GetterCache.class.getName());
+
+    private final Map<Class<?>, ConcurrentMap<String, Reference<Method>>> getters =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, ConcurrentMap<String, Reference<Method>>>());
+
+    /**
+     * Compiled for Java 7 so created reflectively.
+     */
+    static GetterCache create() {
+        try {
+            Class.forName("java.lang.ClassValue");
+        } catch (ClassNotFoundException e) {
+            return new GetterCache();
+        }
+
+        try {
+            return (GetterCache) Class.forName("com.fleury.metrics.agent.introspector.ClassValueGetterCache")
+                    .newInstance();
+        } catch (Exception e) {
+            LOGGER.log(FINE, "Unable to create the ClassValue getter cache", e);
+            return new GetterCache();
+        }
+    }
+
+    Method get(Class<?> clazz, String property) {
+        ConcurrentMap<String, Reference<Method>> classGetters;
+        synchronized (getters) {
+            classGetters = getters.get(clazz);
+            if (classGetters == null) {
+                classGetters = new ConcurrentHashMap<String, Reference<Method>>();
+                getters.put(clazz, classGetters);
+            }
+        }
+
+        Reference<Method> reference = classGetters.get(property);
+        Method getter = reference == null ? null : reference.get();
+        if (getter == null) {
+            // resolved again once collected
+            getter = NestedPropertyReader.findGetter(clazz, property);
+            classGetters.put(property, new SoftReference<Method>(getter));
+        }
+
+        return getter;
+    }
+}
@@ -0,0 +1,107 @@
+package com.fleury.metrics.agent.introspector;
+
+import static java.util.logging.Level.FINE;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Reads nested label property values (e.g. {@code requestUri.path}) reflectively, for the remainder of a path the
+ * transformer could not resolve statically. A missing property or null intermediate value results in null.
+ *
+ * @author Will Fleury
+ */
+public class NestedPropertyReader {
+
+    private static final Logger LOGGER = Logger.getLogger(NestedPropertyReader.class.getName());
+
+    static final Method NOT_FOUND;
+
+    static {
+        try {
+            NOT_FOUND = Object.class.getMethod("toString");
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final ConcurrentMap<String, String[]> PATHS = new ConcurrentHashMap<String, String[]>();
+    private static final GetterCache GETTERS = GetterCache.create();
+
+    public static Object getNestedProperty(Object bean, String path) {
+        String[] properties = PATHS.get(path);
+        if (properties == null) {
+            properties = path.split("\\.");
+            PATHS.putIfAbsent(path, properties);
+        }
+
+        Object value = bean;
+        for (String property : properties) {
+            if (value == null) {
+                return null;
+            }
+
+            value = getProperty(value, property);
+        }
+
+        return value;
+    }
+
+    private static Object getProperty(Object bean, String property) {
+        Method getter = GETTERS.get(bean.getClass(), property);
+        if (getter == NOT_FOUND) {
+            return null;
+        }
+
+        try {
+            return getter.invoke(bean);
+        } catch (Exception e) {
+            LOGGER.log(FINE, "Unable to read property " + property + " of " + bean.getClass(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the getter of the property, or NOT_FOUND
+     */
+    static Method findGetter(Class<?> clazz, String property) {
+        String capitalized = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+
+        Method method = findMethod(clazz, "get" + capitalized);
+
+        if (method == null) {
+            method = findMethod(clazz, "is" + capitalized);
+            if (method != null && method.getReturnType() != Boolean.TYPE) {
+                method = null;
+            }
+        }
+
+        if (method == null) {
+            method = findMethod(clazz, property);
+        }
+
+        if (method == null) {
+            LOGGER.log(FINE, "No property {0} found on {1}", new Object[] {property, clazz});
+            return NOT_FOUND;
+        }
+
+        try {
+            method.setAccessible(true); //public method on a non public class (e.g. anonymous implementations)
+        } catch (RuntimeException e) {
+            LOGGER.log(FINE, "Unable to make " + method + " accessible", e);
+        }
+
+        return method;
+    }
+
+    private static Method findMethod(Class<?> clazz, String name) {
+        try {
+            Method method = clazz.getMethod(name);
+            return method.getReturnType() == Void.TYPE ? null : method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.fleury.metrics.agent.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class BucketUtil {
+
+    /**
+     * Resolves the histogram bucket upper bounds (in seconds) from the explicit bounds, or linear or exponential
+     * bucket definitions given as [start, width, count] and [start, factor, count]. At most one may be specified.
+     *
+     * @return the bucket upper bounds or null if none are specified and the defaults should be used
+     */
+    public static List<Double> resolveBuckets(List<Double> buckets, List<Double> linearBuckets,
+            List<Double> exponentialBuckets) {
+
+        int specified = (isSpecified(buckets) ? 1 : 0)
+                + (isSpecified(linearBuckets) ? 1 : 0)
+                + (isSpecified(exponentialBuckets) ? 1 : 0);
+
+        if (specified > 1) {
+            throw new IllegalArgumentException(
+                    "Only one of buckets, linearBuckets and exponentialBuckets can be specified");
+        }
+
+        if (isSpecified(linearBuckets)) {
+            return linearBuckets(linearBuckets);
+        }
+
+        if (isSpecified(exponentialBuckets)) {
+            return exponentialBuckets(exponentialBuckets);
+        }
+
+        return isSpecified(buckets) ? new ArrayList<Double>(buckets) : null;
+    }
+
+    public static double[] toArray(List<Double> buckets) {
+        double[] values = new double[buckets.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buckets.get(i);
+        }
+        return values;
+    }
+
+    public static List<Double> toList(double[] buckets) {
+        List<Double> values = new ArrayList<Double>(buckets.length);
+        for (double bucket : buckets) {
+            values.add(bucket);
+        }
+        return values;
+    }
+
+    private static List<Double> linearBuckets(List<Double> definition) {
+        double start = definition(definition, "linearBuckets", 0);
+        double width = definition(definition, "linearBuckets", 1);
+        int count = count(definition, "linearBuckets");
+
+        List<Double> buckets = new ArrayList<Double>(count);
+        for (int i = 0; i < count; i++) {
+            buckets.add(start + i * width);
+        }
+        return buckets;
+    }
+
+    private static List<Double> exponentialBuckets(List<Double> definition) {
+        double start = definition(definition, "exponentialBuckets", 0);
+        double factor = definition(definition, "exponentialBuckets", 1);
+        int count = count(definition, "exponentialBuckets");
+
+        List<Double> buckets = new ArrayList<Double>(count);
+        for (int i = 0; i < count; i++) {
+            buckets.add(start * Math.pow(factor, i));
+        }
+        return buckets;
+    }
+
+    private static double definition(List<Double> definition, String property, int index) {
+        if (definition.size() != 3) {
+            throw new IllegalArgumentException(property + " must be of the form [start, width|factor, count]: "
+                    + definition);
+        }
+        return definition.get(index);
+    }
+
+    private static int count(List<Double> definition, String property) {
+        double count = definition(definition, property, 2);
+        if (count < 1 || count != Math.floor(count)) {
+            throw new IllegalArgumentException(property + " count must be a positive integer: " + definition);
+        }
+        return (int) count;
+    }
+
+    private static boolean isSpecified(List<Double> values) {
+        return values != null && !values.isEmpty();
+    }
+}
@@ -50,6 +50,31 @@ public class LabelUtil {
         return value.startsWith("$");
     }
 
+    /**
+     * True if the metric has labels and none of their values are templated. The labelled child for such a metric
+     * never changes so it can be resolved once when the class is initialised.
+     */
+    public static boolean hasConstantLabelValues(List<String> labels) {
+        if (labels == null || labels.isEmpty()) {
+            return false;
+        }
+
+        for (String value : getLabelValues(labels)) {
+            if (isTemplatedLabelValue(value)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * True if the metric has at least one templated label value so its child must be looked up per invocation.
+     */
+    public static boolean hasTemplatedLabelValues(List<String> labels) {
+        return labels != null && !labels.isEmpty() && !hasConstantLabelValues(labels);
+    }
+
     public static List<String> getLabelNames(List<String> labels) {
         return new ArrayList<String>(splitLabelNameAndValue(labels).keySet());
     }
@@ -27,6 +27,8 @@ public class Metric {
     private final String doc;
     private final List<String> labels;
     private final String mode;
+    private final int maxSeries;
+    private final List<Double> buckets;
 
 
     @JsonCreator
@@ -34,12 +36,18 @@ public class Metric {
            @JsonProperty("name") String name,
            @JsonProperty("doc") String doc,
            @JsonProperty("labels") List<String> labels,
-           @JsonProperty("mode") String mode) {
+           @JsonProperty("mode") String mode,
+           @JsonProperty("maxSeries") Integer maxSeries,
+           @JsonProperty("buckets") List<Double> buckets,
+           @JsonProperty("linearBuckets") List<Double> linearBuckets,
+           @JsonProperty("exponentialBuckets") List<Double> exponentialBuckets) {
         this.type = type;
         this.name = name;
         this.doc = doc;
         this.labels = labels;
         this.mode = mode;
+        this.maxSeries = maxSeries == null ? 0 : maxSeries;
+        this.buckets = BucketUtil.resolveBuckets(buckets, linearBuckets, exponentialBuckets);
     }
 
     public MetricType getType() {
@@ -58,6 +66,21 @@ public class Metric {
         return doc;
     }
 
+    /**
+     * The maximum number of label value combinations (series) for the metric, 0 if unlimited. Once reached any new
+     * combination is recorded against a single overflow series instead.
+     */
+    public int getMaxSeries() {
+        return maxSeries;
+    }
+
+    /**
+     * The histogram bucket upper bounds in seconds for Timed metrics, null if the defaults are used.
+     */
+    public List<Double> getBuckets() {
+        return buckets;
+    }
+
     @Override
     public String toString() {
         return "Metric{" +
@@ -66,6 +89,8 @@ public class Metric {
                 ", doc='" + doc + '\'' +
                 ", labels=" + labels +
                 ", mode=" + mode +
+                ", maxSeries=" + maxSeries +
+                ", buckets=" + buckets +
                 '}';
     }
 
@@ -79,6 +104,10 @@ public class Metric {
         private String doc;
         private List<String> labels;
         private String mode;
+        private Integer maxSeries;
+        private List<Double> buckets;
+        private List<Double> linearBuckets;
+        private List<Double> exponentialBuckets;
 
         public MetricBuilder type(MetricType type) {
             this.type = type;
@@ -105,8 +134,28 @@ public class Metric {
             return this;
         }
 
+        public MetricBuilder maxSeries(Integer maxSeries) {
+            this.maxSeries = maxSeries;
+            return this;
+        }
+
+        public MetricBuilder buckets(List<Double> buckets) {
+            this.buckets = buckets;
+            return this;
+        }
+
+        public MetricBuilder linearBuckets(List<Double> linearBuckets) {
+            this.linearBuckets = linearBuckets;
+            return this;
+        }
+
+        public MetricBuilder exponentialBuckets(List<Double> exponentialBuckets) {
+            this.exponentialBuckets = exponentialBuckets;
+            return this;
+        }
+
         public Metric createMetric() {
-            return new Metric(type, name, doc, labels, mode);
+            return new Metric(type, name, doc, labels, mode, maxSeries, buckets, linearBuckets, exponentialBuckets);
         }
     }
 
@@ -0,0 +1,215 @@
+package com.fleury.metrics.agent.reporter;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import io.prometheus.client.Collector;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.ObjectName;
+
+/**
+ * Collects a JMX collector in the background every refreshInterval milliseconds and on the (un)registration of
+ * matching MBeans, a scrape returning the samples of the last refresh. The delegate only collects every MBean at once,
+ * so the registrations are indexed to tell cheaply whether one is collected.
+ *
+ * @author Will Fleury
+ */
+public class BackgroundJmxCollector extends Collector implements Collector.Describable {
+
+    private static final Logger LOGGER = Logger.getLogger(BackgroundJmxCollector.class.getName());
+
+    public static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 10000;
+
+    // registrations within this of the first are refreshed together
+    static final long NOTIFICATION_DELAY_MILLIS = 100;
+
+    private final Collector delegate;
+    private final MBeanServer server;
+    private final List<ObjectName> whitelist;
+    private final List<ObjectName> blacklist;
+    private final long refreshIntervalMillis;
+
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    private final Listener listener = new Listener();
+
+    // whether each MBean registered is collected, so the patterns are matched once per registration
+    private final ConcurrentMap<ObjectName, Boolean> mbeans = new ConcurrentHashMap<ObjectName, Boolean>();
+
+    private volatile List<MetricFamilySamples> snapshot;
+
+    /**
+     * @param server the MBean server notifying the (un)registrations, null if the delegate collects a remote server
+     * @param whitelist the patterns of the MBeans collected, all if empty
+     */
+    public BackgroundJmxCollector(Collector delegate, MBeanServer server, List<ObjectName> whitelist,
+            List<ObjectName> blacklist, long refreshIntervalMillis) {
+        if (refreshIntervalMillis <= 0) {
+            throw new IllegalArgumentException("The JMX refreshInterval must be a positive number of milliseconds, was "
+                    + refreshIntervalMillis);
+        }
+
+        this.delegate = delegate;
+        this.server = server;
+        this.whitelist = whitelist;
+        this.blacklist = blacklist;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new RefreshThreadFactory());
+    }
+
+    /**
+     * Starts refreshing in the background, the first refresh being immediate.
+     */
+    public BackgroundJmxCollector start() {
+        if (server != null) {
+            try {
+                MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+                filter.enableAllObjectNames();
+                server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener, filter, null);
+
+                for (ObjectName name : server.queryNames(null, null)) {
+                    mbeans.put(name, matches(name));
+                }
+            } catch (Exception e) {
+                LOGGER.log(WARNING, "Unable to listen for MBean registrations, MBeans registered later are only "
+                        + "collected by the next refresh", e);
+            }
+        }
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshQuietly();
+            }
+        }, 0, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+
+        return this;
+    }
+
+    public void close() {
+        if (server != null) {
+            try {
+                server.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener);
+            } catch (Exception e) {
+                LOGGER.log(FINE, "Failed to remove the MBean registration listener", e);
+            }
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return the samples of the last refresh, refreshing on the scrape thread until a refresh has succeeded
+     */
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> samples = snapshot;
+        return samples != null ? samples : refresh();
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return delegate instanceof Describable ? ((Describable) delegate).describe() : collect();
+    }
+
+    // serialised so a refresh never overwrites a later one
+    private synchronized List<MetricFamilySamples> refresh() {
+        List<MetricFamilySamples> samples = Collections.unmodifiableList(delegate.collect());
+        snapshot = samples;
+        return samples;
+    }
+
+    private void refreshQuietly() {
+        refreshPending.set(false);
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            LOGGER.log(WARNING, "Failed to refresh the JMX collector, the last samples are served", e);
+        }
+    }
+
+    boolean matches(ObjectName name) {
+        for (ObjectName pattern : blacklist) {
+            if (pattern.apply(name)) {
+                return false;
+            }
+        }
+
+        if (whitelist.isEmpty()) {
+            return true;
+        }
+        for (ObjectName pattern : whitelist) {
+            if (pattern.apply(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the MBean (un)registered is collected
+     */
+    private boolean index(MBeanServerNotification notification) {
+        ObjectName name = notification.getMBeanName();
+
+        if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            boolean matches = matches(name);
+            mbeans.put(name, matches);
+            return matches;
+        }
+
+        // registered before listening if not indexed
+        Boolean matched = mbeans.remove(name);
+        return matched != null ? matched : matches(name);
+    }
+
+    int getIndexed() {
+        return mbeans.size();
+    }
+
+    private class Listener implements NotificationListener {
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!index((MBeanServerNotification) notification) || !refreshPending.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        refreshQuietly();
+                    }
+                }, NOTIFICATION_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // closed
+            }
+        }
+    }
+
+    private static class RefreshThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "metrics-agent-jmx-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.fleury.metrics.agent.reporter;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Wraps an expensive collector (e.g. one querying MBeans) so concurrent scrapes, and those within ttl of a
+ * collection, share a single collection rather than each collecting.
+ *
+ * @author Will Fleury
+ */
+public class CachedCollector extends Collector implements Collector.Describable {
+
+    private static final Logger LOGGER = Logger.getLogger(CachedCollector.class.getName());
+
+    private final Collector delegate;
+    private final String name;
+    private final long ttlNanos;
+
+    private final TimerHistogram.Child duration;
+    private final Counter.Child deadlineMisses;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private List<MetricFamilySamples> snapshot;
+    private long snapshotNanos;
+    private SharedCollection collection;
+
+    /**
+     * @param name the collector label of the self metrics recorded for the collector
+     */
+    public CachedCollector(Collector delegate, String name, long ttlMillis) {
+        this.delegate = delegate;
+        this.name = name;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.duration = SelfMetrics.SCRAPE_COLLECTOR_DURATION.labels(name);
+        this.deadlineMisses = SelfMetrics.SCRAPE_COLLECTOR_DEADLINE_MISSES.labels(name);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        CollectorPool.Scrape scrape = CollectorPool.getScrape();
+        SharedCollection shared;
+        boolean collecting;
+
+        synchronized (lock) {
+            // including the collection prefetched for the scrape
+            if (isFresh() || (scrape != null && snapshot != null && snapshotNanos - scrape.start >= 0)) {
+                return snapshot;
+            }
+
+            collecting = collection == null;
+            if (collecting) {
+                collection = new SharedCollection();
+            }
+            shared = collection;
+        }
+
+        if (collecting) {
+            return collect(shared);
+        }
+
+        if (scrape == null || shared.await(scrape.deadline)) {
+            return shared.get();
+        }
+
+        deadlineMisses.inc();
+        synchronized (lock) {
+            LOGGER.log(FINE, "Collector {0} missed the scrape deadline", name);
+            return snapshot == null ? Collections.<MetricFamilySamples>emptyList() : snapshot;
+        }
+    }
+
+    /**
+     * Starts collecting on the executor, unless the samples are fresh or already being collected.
+     */
+    public void prefetch(Executor executor) {
+        final SharedCollection shared;
+
+        synchronized (lock) {
+            if (isFresh() || collection != null) {
+                return;
+            }
+            shared = collection = new SharedCollection();
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        collect(shared);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(WARNING, "Collector " + name + " failed", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the pool is shut down, so the collection is left to the scrape
+            synchronized (lock) {
+                collection = null;
+            }
+            shared.complete(null, e);
+        }
+    }
+
+    // guarded by lock
+    private boolean isFresh() {
+        return snapshot != null && System.nanoTime() - snapshotNanos < ttlNanos;
+    }
+
+    private List<MetricFamilySamples> collect(SharedCollection shared) {
+        long start = System.nanoTime();
+
+        List<MetricFamilySamples> samples = null;
+        RuntimeException failure = null;
+        try {
+            samples = Collections.unmodifiableList(delegate.collect());
+            return samples;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            duration.observeNanos(System.nanoTime() - start);
+
+            synchronized (lock) {
+                if (samples != null) {
+                    snapshot = samples;
+                    snapshotNanos = start;
+                }
+                collection = null;
+            }
+            // an Error leaves both null, which the scrapes sharing the collection are told about
+            shared.complete(samples, failure);
+        }
+    }
+
+    /**
+     * Registering a collector which is not Describable collects it to find its names, which then fills the cache.
+     */
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return delegate instanceof Describable ? ((Describable) delegate).describe() : collect();
+    }
+
+    public Collector getDelegate() {
+        return delegate;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private static class SharedCollection {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile List<MetricFamilySamples> samples;
+        private volatile RuntimeException failure;
+
+        void complete(List<MetricFamilySamples> samples, RuntimeException failure) {
+            this.samples = samples;
+            this.failure = failure;
+            done.countDown();
+        }
+
+        /**
+         * @return whether the collection completed by the deadline (in System.nanoTime)
+         */
+        boolean await(long deadline) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        List<MetricFamilySamples> get() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+            if (samples == null) {
+                throw new IllegalStateException("The shared collection failed");
+            }
+            return samples;
+        }
+    }
+}
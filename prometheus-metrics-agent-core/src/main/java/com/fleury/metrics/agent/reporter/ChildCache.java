@@ -0,0 +1,325 @@
+package com.fleury.metrics.agent.reporter;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.SimpleCollector;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Caches the labelled children of a metric by label values, looked up without allocating and evicted using CLOCK.
+ * Label values beyond maxSeries series are recorded to a single {@value #OVERFLOW_LABEL_VALUE} child.
+ *
+ * @author Will Fleury
+ */
+public class ChildCache<C> {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    static final int MAX_PROBES = 8;
+
+    public static final String OVERFLOW_LABEL_VALUE = "__overflow__";
+
+    private final SimpleCollector<C> collector;
+    private final AtomicReferenceArray<Entry<C>> table;
+    private final int mask;
+
+    private final StripedCounter hits;
+    private final Counter.Child misses;
+    private final Counter.Child evictions;
+
+    private final int maxSeries;
+    private final ConcurrentMap<List<String>, C> series;
+    private final AtomicInteger seriesCount;
+    private final Counter.Child overflowRecords;
+    private volatile C overflowChild;
+
+    public ChildCache(SimpleCollector<C> collector, String name) {
+        this(collector, name, DEFAULT_CAPACITY, 0);
+    }
+
+    public ChildCache(SimpleCollector<C> collector, String name, int capacity) {
+        this(collector, name, capacity, 0);
+    }
+
+    /**
+     * @param maxSeries the maximum number of label value combinations before folding into the overflow child, 0 if
+     * unlimited
+     */
+    public ChildCache(SimpleCollector<C> collector, String name, int capacity, int maxSeries) {
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+
+        this.collector = collector;
+        this.table = new AtomicReferenceArray<Entry<C>>(size);
+        this.mask = size - 1;
+
+        this.hits = SelfMetrics.LABEL_CACHE_HITS.counter(name);
+        this.misses = SelfMetrics.LABEL_CACHE_MISSES.labels(name);
+        this.evictions = SelfMetrics.LABEL_CACHE_EVICTIONS.labels(name);
+
+        this.maxSeries = maxSeries;
+        this.series = maxSeries > 0 ? new ConcurrentHashMap<List<String>, C>() : null;
+        this.seriesCount = new AtomicInteger();
+        this.overflowRecords = SelfMetrics.OVERFLOW_RECORDS.labels(name);
+    }
+
+    public SimpleCollector<C> getCollector() {
+        return collector;
+    }
+
+    public C get(String l1) {
+        int hash = hash(hash(1, l1));
+
+        for (int i = 0; i < MAX_PROBES; i++) {
+            Entry<C> entry = table.get((hash + i) & mask);
+            if (entry == null) {
+                break;
+            }
+            if (entry.hash == hash && entry.matches(l1)) {
+                return hit(entry);
+            }
+        }
+
+        return load(hash, new String[] {l1});
+    }
+
+    public C get(String l1, String l2) {
+        int hash = hash(hash(hash(1, l1), l2));
+
+        for (int i = 0; i < MAX_PROBES; i++) {
+            Entry<C> entry = table.get((hash + i) & mask);
+            if (entry == null) {
+                break;
+            }
+            if (entry.hash == hash && entry.matches(l1, l2)) {
+                return hit(entry);
+            }
+        }
+
+        return load(hash, new String[] {l1, l2});
+    }
+
+    public C get(String l1, String l2, String l3) {
+        int hash = hash(hash(hash(hash(1, l1), l2), l3));
+
+        for (int i = 0; i < MAX_PROBES; i++) {
+            Entry<C> entry = table.get((hash + i) & mask);
+            if (entry == null) {
+                break;
+            }
+            if (entry.hash == hash && entry.matches(l1, l2, l3)) {
+                return hit(entry);
+            }
+        }
+
+        return load(hash, new String[] {l1, l2, l3});
+    }
+
+    public C get(String l1, String l2, String l3, String l4) {
+        int hash = hash(hash(hash(hash(hash(1, l1), l2), l3), l4));
+
+        for (int i = 0; i < MAX_PROBES; i++) {
+            Entry<C> entry = table.get((hash + i) & mask);
+            if (entry == null) {
+                break;
+            }
+            if (entry.hash == hash && entry.matches(l1, l2, l3, l4)) {
+                return hit(entry);
+            }
+        }
+
+        return load(hash, new String[] {l1, l2, l3, l4});
+    }
+
+    public C get(String l1, String l2, String l3, String l4, String l5) {
+        int hash = hash(hash(hash(hash(hash(hash(1, l1), l2), l3), l4), l5));
+
+        for (int i = 0; i < MAX_PROBES; i++) {
+            Entry<C> entry = table.get((hash + i) & mask);
+            if (entry == null) {
+                break;
+            }
+            if (entry.hash == hash && entry.matches(l1, l2, l3, l4, l5)) {
+                return hit(entry);
+            }
+        }
+
+        return load(hash, new String[] {l1, l2, l3, l4, l5});
+    }
+
+    /**
+     * Generic lookup for metrics with more labels than the specialised methods cover.
+     */
+    public C get(String[] labels) {
+        int hash = hash(Arrays.hashCode(labels));
+
+        for (int i = 0; i < MAX_PROBES; i++) {
+            Entry<C> entry = table.get((hash + i) & mask);
+            if (entry == null) {
+                break;
+            }
+            if (entry.hash == hash && entry.matches(labels)) {
+                return hit(entry);
+            }
+        }
+
+        return load(hash, labels.clone());
+    }
+
+    private C hit(Entry<C> entry) {
+        // only write when not already set to avoid dirtying the cache line on every hit
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        if (entry.overflow) {
+            overflowRecords.inc();
+        }
+        hits.increment();
+
+        return entry.child;
+    }
+
+    private C load(int hash, String[] labels) {
+        misses.inc();
+
+        C child = maxSeries > 0 ? loadLimited(labels) : collector.labels(labels);
+        boolean overflow = child == null;
+        if (overflow) {
+            overflowRecords.inc();
+            child = getOverflowChild(labels.length);
+        }
+        Entry<C> entry = new Entry<C>(hash, labels, child, overflow);
+
+        // the first pass clears the referenced marks so the second finds a victim unless we lose every race
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int index = (hash + i) & mask;
+
+                Entry<C> existing = table.get(index);
+                if (existing == null) {
+                    if (table.compareAndSet(index, null, entry)) {
+                        return child;
+                    }
+                    existing = table.get(index);
+                }
+
+                if (existing.hash == hash && existing.matches(labels)) {
+                    return child; //another thread got there first
+                }
+
+                if (existing.referenced) {
+                    existing.referenced = false;
+                } else if (table.compareAndSet(index, existing, entry)) {
+                    evictions.inc();
+                    return child;
+                }
+            }
+        }
+
+        return child;
+    }
+
+    /**
+     * @return null if the label values are a new series beyond maxSeries
+     */
+    private C loadLimited(String[] labels) {
+        List<String> key = Arrays.asList(labels);
+
+        C child = series.get(key);
+        if (child != null) {
+            return child;
+        }
+
+        // may overshoot by the number of threads racing to add a new series, which is fine for a safety limit
+        if (seriesCount.get() >= maxSeries) {
+            return null;
+        }
+
+        child = collector.labels(labels);
+        if (series.putIfAbsent(key, child) == null) {
+            seriesCount.incrementAndGet();
+        }
+
+        return child;
+    }
+
+    private C getOverflowChild(int labelCount) {
+        C child = overflowChild;
+        if (child == null) {
+            String[] labels = new String[labelCount];
+            Arrays.fill(labels, OVERFLOW_LABEL_VALUE);
+
+            // labels() always returns the same child so racing here is harmless
+            child = overflowChild = collector.labels(labels);
+        }
+
+        return child;
+    }
+
+    private static int hash(int hash, String value) {
+        return 31 * hash + (value == null ? 0 : value.hashCode());
+    }
+
+    private static int hash(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean eq(String a, String b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    private static final class Entry<C> {
+
+        private final int hash;
+        private final String[] labels;
+        private final C child;
+        // the label values are recorded against the overflow child
+        private final boolean overflow;
+
+        // CLOCK reference bit, racy updates only affect which entry is evicted
+        private boolean referenced;
+
+        Entry(int hash, String[] labels, C child, boolean overflow) {
+            this.hash = hash;
+            this.labels = labels;
+            this.child = child;
+            this.overflow = overflow;
+        }
+
+        boolean matches(String[] values) {
+            if (labels.length != values.length) {
+                return false;
+            }
+            for (int i = 0; i < labels.length; i++) {
+                if (!eq(labels[i], values[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matches(String l1) {
+            return labels.length == 1 && eq(labels[0], l1);
+        }
+
+        boolean matches(String l1, String l2) {
+            return labels.length == 2 && eq(labels[0], l1) && eq(labels[1], l2);
+        }
+
+        boolean matches(String l1, String l2, String l3) {
+            return labels.length == 3 && eq(labels[0], l1) && eq(labels[1], l2) && eq(labels[2], l3);
+        }
+
+        boolean matches(String l1, String l2, String l3, String l4) {
+            return labels.length == 4 && eq(labels[0], l1) && eq(labels[1], l2) && eq(labels[2], l3)
+                    && eq(labels[3], l4);
+        }
+
+        boolean matches(String l1, String l2, String l3, String l4, String l5) {
+            return labels.length == 5 && eq(labels[0], l1) && eq(labels[1], l2) && eq(labels[2], l3)
+                    && eq(labels[3], l4) && eq(labels[4], l5);
+        }
+    }
+}
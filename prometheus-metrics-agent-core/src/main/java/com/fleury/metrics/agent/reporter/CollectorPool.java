@@ -0,0 +1,87 @@
+package com.fleury.metrics.agent.reporter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the collectors registered by the agent in parallel at the start of a scrape, for them to complete by its
+ * deadline.
+ *
+ * @author Will Fleury
+ */
+public class CollectorPool {
+
+    private static final int DEFAULT_PARALLELISM = 4;
+
+    private static final ThreadLocal<Scrape> SCRAPE = new ThreadLocal<Scrape>();
+
+    private final List<CachedCollector> collectors = new CopyOnWriteArrayList<CachedCollector>();
+    private final ExecutorService executor;
+
+    public CollectorPool(Map<String, Object> system) {
+        Object parallelism = system.get("collectorParallelism");
+        this.executor = Executors.newFixedThreadPool(
+                parallelism == null ? DEFAULT_PARALLELISM : Integer.parseInt(String.valueOf(parallelism)),
+                new CollectorThreadFactory());
+    }
+
+    public void add(CachedCollector collector) {
+        collectors.add(collector);
+    }
+
+    /**
+     * Starts collecting the collectors which are not fresh, the collections completing by the deadline (in
+     * System.nanoTime) being returned to the current thread until {@link #endScrape}.
+     */
+    public void beginScrape(long deadline) {
+        SCRAPE.set(new Scrape(System.nanoTime(), deadline));
+
+        for (CachedCollector collector : collectors) {
+            collector.prefetch(executor);
+        }
+    }
+
+    public void endScrape() {
+        SCRAPE.remove();
+    }
+
+    /**
+     * @return the scrape on the current thread, or null if it is not scraping via the pool
+     */
+    static Scrape getScrape() {
+        return SCRAPE.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    static class Scrape {
+
+        // in System.nanoTime, a collection started since the start being as good as one started by the scrape
+        final long start;
+        final long deadline;
+
+        Scrape(long start, long deadline) {
+            this.start = start;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class CollectorThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "metrics-agent-collector-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.fleury.metrics.agent.reporter;
+
+import static com.fleury.metrics.agent.model.LabelUtil.getLabelNames;
+import static com.fleury.metrics.agent.model.LabelUtil.getLabelNamesAsArray;
+import static com.fleury.metrics.agent.model.LabelUtil.getLabelValues;
+import static com.fleury.metrics.agent.model.LabelUtil.hasConstantLabelValues;
+import static com.fleury.metrics.agent.model.LabelUtil.hasTemplatedLabelValues;
+import static com.fleury.metrics.agent.transformer.util.CollectionUtil.isNotEmpty;
+
+import com.fleury.metrics.agent.model.Metric;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.SimpleCollector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metrics of retransformable classes, loaded by the instrumented code by index as a retransformed class cannot add
+ * the static fields otherwise holding them. The index of a metric stays the same while it is registered, so classes
+ * not retransformed when its definition changes load the replacement.
+ *
+ * @author Will Fleury
+ */
+public class MetricHandles {
+
+    private static volatile Object[] handles = new Object[64];
+    private static int size;
+    // the indices of unregistered metrics, reused before the array grows
+    private static final LinkedList<Integer> free = new LinkedList<Integer>();
+    // the indices of metrics replaced by one of another type, kept for the classes loading them until retransformed
+    private static final List<Integer> replaced = new ArrayList<Integer>();
+
+    private static final Map<String, Registration> registered = new HashMap<String, Registration>();
+
+    private static volatile Listener listener;
+
+    /**
+     * Called by the instrumented code.
+     */
+    public static Object get(int index) {
+        return handles[index];
+    }
+
+    public static void setListener(Listener listener) {
+        MetricHandles.listener = listener;
+    }
+
+    /**
+     * @return the handles of the metric, creating and registering it unless it was already with the same type, doc,
+     * label names and buckets. A metric registered with a different definition under the same name is replaced, at
+     * the same indices unless its type or number of labels changed as the code loading them would then fail.
+     */
+    public static synchronized Handles register(Metric metric) {
+        String definition = metric.getType() + " " + metric.getDoc() + " " +
+                (isNotEmpty(metric.getLabels()) ? getLabelNames(metric.getLabels()) : null) + " " +
+                metric.getBuckets();
+
+        Registration registration = registered.get(metric.getName());
+        if (registration != null && !registration.definition.equals(definition)) {
+            if (registration.shape.equals(shape(metric))) {
+                CollectorRegistry.defaultRegistry.unregister(registration.collector);
+                registration.replace(metric, definition, create(metric));
+                return registration.handles(metric);
+            }
+
+            registered.remove(metric.getName());
+            CollectorRegistry.defaultRegistry.unregister(registration.collector);
+            replaced.addAll(registration.indices());
+            registration = null;
+        }
+
+        if (registration == null) {
+            SimpleCollector<?> collector = create(metric);
+            registration = new Registration(shape(metric), definition, collector, add(collector));
+            registered.put(metric.getName(), registration);
+        }
+
+        return registration.handles(metric);
+    }
+
+    /**
+     * Unregisters the metric of the given name from the registry, if registered here, and releases its indices to be
+     * reused. Must only be called once no loaded class loads it any more.
+     */
+    public static synchronized boolean unregister(String name) {
+        Registration removed = registered.remove(name);
+        if (removed == null) {
+            return false;
+        }
+
+        CollectorRegistry.defaultRegistry.unregister(removed.collector);
+        release(removed.indices());
+        return true;
+    }
+
+    /**
+     * Releases the indices of the metrics replaced by one of another type to be reused. Must only be called once the
+     * classes loading them were retransformed.
+     */
+    public static synchronized void releaseReplaced() {
+        release(replaced);
+        replaced.clear();
+    }
+
+    private static void release(List<Integer> indices) {
+        for (int index : indices) {
+            set(index, null);
+            free.addFirst(index);
+        }
+    }
+
+    private static String shape(Metric metric) {
+        return metric.getType() + " " + (isNotEmpty(metric.getLabels()) ? metric.getLabels().size() : 0);
+    }
+
+    private static SimpleCollector<?> create(Metric metric) {
+        String[] labelNames = isNotEmpty(metric.getLabels()) ? getLabelNamesAsArray(metric.getLabels()) : null;
+        String doc = metric.getDoc() == null ? "empty doc" : metric.getDoc();
+
+        switch (metric.getType()) {
+            case Counted:
+                return PrometheusMetricSystem.createAndRegisterCounted(metric.getName(), labelNames, doc);
+            case ExceptionCounted:
+                return PrometheusMetricSystem.createAndRegisterExceptionCounted(metric.getName(), labelNames, doc);
+            case Gauged:
+                return PrometheusMetricSystem.createAndRegisterGauged(metric.getName(), labelNames, doc);
+            case Timed:
+                return PrometheusMetricSystem.createAndRegisterTimed(metric.getName(), labelNames, doc,
+                        toArray(metric.getBuckets()));
+            default:
+                throw new IllegalArgumentException("Unknown metric type " + metric.getType());
+        }
+    }
+
+    private static double[] toArray(List<Double> values) {
+        if (values == null) {
+            return null;
+        }
+
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * The array is republished after every addition so a thread reading it (through the volatile field) sees the
+     * handle.
+     */
+    private static int add(Object handle) {
+        if (!free.isEmpty()) {
+            int index = free.removeFirst();
+            set(index, handle);
+            return index;
+        }
+
+        Object[] current = handles;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+
+        current[size] = handle;
+        handles = current;
+
+        return size++;
+    }
+
+    private static void set(int index, Object handle) {
+        Object[] current = handles;
+        current[index] = handle;
+        handles = current;
+
+        Listener listener = MetricHandles.listener;
+        if (listener != null) {
+            listener.changed(index, handle);
+        }
+    }
+
+    /**
+     * Notified of the handles changed at an index, e.g. to relink the call sites loading it.
+     */
+    public interface Listener {
+
+        /**
+         * @param handle the new handle, null if the index was released
+         */
+        void changed(int index, Object handle);
+    }
+
+    private static class Registration {
+
+        // the type and number of labels, which the handles at the indices keep while replaced
+        private final String shape;
+        private String definition;
+        private SimpleCollector<?> collector;
+        private final int metric;
+        private final Map<List<String>, Integer> children = new HashMap<List<String>, Integer>();
+        private final Map<Integer, Integer> childCaches = new HashMap<Integer, Integer>();
+
+        Registration(String shape, String definition, SimpleCollector<?> collector, int metric) {
+            this.shape = shape;
+            this.definition = definition;
+            this.collector = collector;
+            this.metric = metric;
+        }
+
+        /**
+         * Points the indices at the replacement collector, its children of the same label values and new caches.
+         */
+        void replace(Metric metric, String definition, SimpleCollector<?> collector) {
+            this.definition = definition;
+            this.collector = collector;
+
+            set(this.metric, collector);
+            for (Map.Entry<List<String>, Integer> child : children.entrySet()) {
+                set(child.getValue(), collector.labels(child.getKey().toArray(new String[0])));
+            }
+            for (Map.Entry<Integer, Integer> childCache : childCaches.entrySet()) {
+                set(childCache.getValue(), PrometheusMetricSystem.createChildCache(
+                        collector, metric.getName(), childCache.getKey()));
+            }
+        }
+
+        List<Integer> indices() {
+            List<Integer> indices = new ArrayList<Integer>();
+            indices.add(metric);
+            indices.addAll(children.values());
+            indices.addAll(childCaches.values());
+            return indices;
+        }
+
+        /**
+         * Children are shared by every declaration with the same constant label values, caches of labelled children
+         * by every declaration with the same series limit.
+         */
+        Handles handles(Metric metric) {
+            int child = -1;
+            if (hasConstantLabelValues(metric.getLabels())) {
+                List<String> labelValues = getLabelValues(metric.getLabels());
+
+                Integer index = children.get(labelValues);
+                if (index == null) {
+                    index = add(collector.labels(labelValues.toArray(new String[0])));
+                    children.put(labelValues, index);
+                }
+                child = index;
+            }
+
+            int childCache = -1;
+            if (hasTemplatedLabelValues(metric.getLabels())) {
+                Integer index = childCaches.get(metric.getMaxSeries());
+                if (index == null) {
+                    index = add(PrometheusMetricSystem.createChildCache(
+                            collector, metric.getName(), metric.getMaxSeries()));
+                    childCaches.put(metric.getMaxSeries(), index);
+                }
+                childCache = index;
+            }
+
+            return new Handles(this.metric, child, childCache);
+        }
+    }
+
+    public static class Handles {
+
+        private final int metric;
+        private final int child;
+        private final int childCache;
+
+        Handles(int metric, int child, int childCache) {
+            this.metric = metric;
+            this.child = child;
+            this.childCache = childCache;
+        }
+
+        /**
+         * @return the index of the metric, a {@link Counter}, {@link Gauge} or {@link TimerHistogram}
+         */
+        public int getMetric() {
+            return metric;
+        }
+
+        /**
+         * @return the index of the child of the constant label values, or -1 if there are none
+         */
+        public int getChild() {
+            return child;
+        }
+
+        /**
+         * @return the index of the {@link ChildCache} of the templated label values, or -1 if there are none
+         */
+        public int getChildCache() {
+            return childCache;
+        }
+    }
+}
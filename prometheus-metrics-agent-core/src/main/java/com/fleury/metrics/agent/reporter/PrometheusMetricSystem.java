@@ -3,16 +3,24 @@ package com.fleury.metrics.agent.reporter;
 import static com.fleury.metrics.agent.config.Configuration.YAML_MAPPER;
 import static java.util.logging.Level.WARNING;
 
+import com.fleury.metrics.agent.reporter.http.MetricsHttpServer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
-import io.prometheus.client.Histogram;
-import io.prometheus.client.exporter.HTTPServer;
+import io.prometheus.client.SimpleCollector;
 import io.prometheus.client.hotspot.BufferPoolsExports;
 import io.prometheus.client.hotspot.ClassLoadingExports;
 import io.prometheus.client.hotspot.GarbageCollectorExports;
@@ -32,7 +40,13 @@ public class PrometheusMetricSystem {
 
     private static final Logger LOGGER = Logger.getLogger(PrometheusMetricSystem.class.getName());
 
-    private static final int DEFAULT_HTTP_PORT = 9899;
+    /**
+     * Metrics with up to this many templated labels are recorded via the record methods taking the label values as
+     * individual arguments (e.g. recordCount2) so no array is allocated per invocation.
+     */
+    public static final int MAX_SPECIALISED_LABELS = 5;
+
+    private static volatile int labelCacheCapacity = ChildCache.DEFAULT_CAPACITY;
 
     public static Counter createAndRegisterCounted(String name, String[] labels, String doc) {
         Counter.Builder builder = Counter.build().name(name).help(doc);
@@ -61,15 +75,38 @@ public class PrometheusMetricSystem {
         return builder.register();
     }
 
-    public static Histogram createAndRegisterTimed(String name, String[] labels, String doc) {
-        Histogram.Builder builder = Histogram.build().name(name).help(doc);
+    public static TimerHistogram createAndRegisterTimed(String name, String[] labels, String doc, double[] buckets) {
+        TimerHistogram.Builder builder = TimerHistogram.build().name(name).help(doc);
         if (labels != null) {
             builder.labelNames(labels);
         }
+        if (buckets != null) {
+            builder.buckets(buckets);
+        }
 
         return builder.register();
     }
 
+    public static Counter.Child createChildCounted(Counter counter, String[] labelValues) {
+        return counter.labels(labelValues);
+    }
+
+    public static Counter.Child createChildExceptionCounted(Counter counter, String[] labelValues) {
+        return counter.labels(labelValues);
+    }
+
+    public static Gauge.Child createChildGauged(Gauge gauge, String[] labelValues) {
+        return gauge.labels(labelValues);
+    }
+
+    public static TimerHistogram.Child createChildTimed(TimerHistogram histogram, String[] labelValues) {
+        return histogram.labels(labelValues);
+    }
+
+    public static <C> ChildCache<C> createChildCache(SimpleCollector<C> collector, String name, int maxSeries) {
+        return new ChildCache<C>(collector, name, labelCacheCapacity, maxSeries);
+    }
+
     public static void recordCount(Counter counter, String[] labels) {
         if (labels != null) {
             counter.labels(labels).inc();
@@ -86,6 +123,35 @@ public class PrometheusMetricSystem {
         }
     }
 
+    public static void recordCount(Counter.Child child) {
+        child.inc();
+    }
+
+    public static void recordCount1(ChildCache<Counter.Child> cache, String l1) {
+        cache.get(l1).inc();
+    }
+
+    public static void recordCount2(ChildCache<Counter.Child> cache, String l1, String l2) {
+        cache.get(l1, l2).inc();
+    }
+
+    public static void recordCount3(ChildCache<Counter.Child> cache, String l1, String l2, String l3) {
+        cache.get(l1, l2, l3).inc();
+    }
+
+    public static void recordCount4(ChildCache<Counter.Child> cache, String l1, String l2, String l3, String l4) {
+        cache.get(l1, l2, l3, l4).inc();
+    }
+
+    public static void recordCount5(ChildCache<Counter.Child> cache,
+            String l1, String l2, String l3, String l4, String l5) {
+        cache.get(l1, l2, l3, l4, l5).inc();
+    }
+
+    public static void recordCount(ChildCache<Counter.Child> cache, String[] labels) {
+        cache.get(labels).inc();
+    }
+
     public static void recordGaugeInc(Gauge gauge, String[] labelValues) {
         if (labelValues != null) {
             gauge.labels(labelValues).inc();
@@ -102,24 +168,122 @@ public class PrometheusMetricSystem {
         }
     }
 
-    public static void recordTime(Histogram histogram, String[] labels, long duration) {
-        // histogram duration is in seconds.  Convert nanosecond -> second        
-        double durationInSec = (double)(duration) / 1E9;
-        //  LOGGER.info("recordTime durationInSec " + durationInSec);
-        if (labels != null) {
+    public static void recordGaugeInc(Gauge.Child child) {
+        child.inc();
+    }
+
+    public static void recordGaugeDec(Gauge.Child child) {
+        child.dec();
+    }
+
+    public static void recordGaugeInc1(ChildCache<Gauge.Child> cache, String l1) {
+        cache.get(l1).inc();
+    }
+
+    public static void recordGaugeInc2(ChildCache<Gauge.Child> cache, String l1, String l2) {
+        cache.get(l1, l2).inc();
+    }
 
-            histogram.labels(labels).observe(durationInSec);
+    public static void recordGaugeInc3(ChildCache<Gauge.Child> cache, String l1, String l2, String l3) {
+        cache.get(l1, l2, l3).inc();
+    }
+
+    public static void recordGaugeInc4(ChildCache<Gauge.Child> cache, String l1, String l2, String l3, String l4) {
+        cache.get(l1, l2, l3, l4).inc();
+    }
+
+    public static void recordGaugeInc5(ChildCache<Gauge.Child> cache,
+            String l1, String l2, String l3, String l4, String l5) {
+        cache.get(l1, l2, l3, l4, l5).inc();
+    }
+
+    public static void recordGaugeInc(ChildCache<Gauge.Child> cache, String[] labels) {
+        cache.get(labels).inc();
+    }
+
+    public static void recordGaugeDec1(ChildCache<Gauge.Child> cache, String l1) {
+        cache.get(l1).dec();
+    }
+
+    public static void recordGaugeDec2(ChildCache<Gauge.Child> cache, String l1, String l2) {
+        cache.get(l1, l2).dec();
+    }
+
+    public static void recordGaugeDec3(ChildCache<Gauge.Child> cache, String l1, String l2, String l3) {
+        cache.get(l1, l2, l3).dec();
+    }
+
+    public static void recordGaugeDec4(ChildCache<Gauge.Child> cache, String l1, String l2, String l3, String l4) {
+        cache.get(l1, l2, l3, l4).dec();
+    }
+
+    public static void recordGaugeDec5(ChildCache<Gauge.Child> cache,
+            String l1, String l2, String l3, String l4, String l5) {
+        cache.get(l1, l2, l3, l4, l5).dec();
+    }
+
+    public static void recordGaugeDec(ChildCache<Gauge.Child> cache, String[] labels) {
+        cache.get(labels).dec();
+    }
+
+    public static void recordTime(TimerHistogram histogram, String[] labels, long duration) {
+        if (labels != null) {
+            histogram.labels(labels).observeNanos(duration);
         } else {
-            histogram.observe(durationInSec);
+            histogram.observeNanos(duration);
         }
     }
 
+    public static void recordTime(TimerHistogram.Child child, long duration) {
+        child.observeNanos(duration);
+    }
+
+    public static void recordTime1(ChildCache<TimerHistogram.Child> cache, String l1, long duration) {
+        cache.get(l1).observeNanos(duration);
+    }
+
+    public static void recordTime2(ChildCache<TimerHistogram.Child> cache, String l1, String l2, long duration) {
+        cache.get(l1, l2).observeNanos(duration);
+    }
+
+    public static void recordTime3(ChildCache<TimerHistogram.Child> cache,
+            String l1, String l2, String l3, long duration) {
+        cache.get(l1, l2, l3).observeNanos(duration);
+    }
+
+    public static void recordTime4(ChildCache<TimerHistogram.Child> cache,
+            String l1, String l2, String l3, String l4, long duration) {
+        cache.get(l1, l2, l3, l4).observeNanos(duration);
+    }
+
+    public static void recordTime5(ChildCache<TimerHistogram.Child> cache,
+            String l1, String l2, String l3, String l4, String l5, long duration) {
+        cache.get(l1, l2, l3, l4, l5).observeNanos(duration);
+    }
+
+    public static void recordTime(ChildCache<TimerHistogram.Child> cache, String[] labels, long duration) {
+        cache.get(labels).observeNanos(duration);
+    }
+
     private final Map<String, Object> configuration;
+    private final Map<String, Object> collectorCacheTtls;
+    private final CollectorPool collectorPool;
 
     protected PrometheusMetricSystem(Map<String, Object> configuration) {
         this.configuration = configuration;
 
-        new StandardExports().register();
+        this.collectorCacheTtls = configuration.containsKey("collectorCacheTtl") ?
+                (Map<String, Object>) configuration.get("collectorCacheTtl") :
+                Collections.<String, Object>emptyMap();
+        this.collectorPool = new CollectorPool(configuration);
+
+        if (configuration.containsKey("labelCacheCapacity")) {
+            labelCacheCapacity = Integer.parseInt(String.valueOf(configuration.get("labelCacheCapacity")));
+        }
+
+        register(new StandardExports(), "process");
+
+        SelfMetrics.register(CollectorRegistry.defaultRegistry);
 
         addJvmMetrics(configuration);
 
@@ -129,42 +293,76 @@ public class PrometheusMetricSystem {
     }
 
     private void startDefaultEndpoint() {
-        Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                int port = DEFAULT_HTTP_PORT;
-
-                if (configuration.containsKey("httpPort")) {
-                    port = Integer.parseInt((String)configuration.get("httpPort"));
-                }
-
-                try {
-                    LOGGER.fine("Starting Prometheus HttpServer on port " + port);
+        try {
+            MetricsHttpServer server = new MetricsHttpServer(CollectorRegistry.defaultRegistry, configuration,
+                    collectorPool);
+            server.start();
 
-                    new HTTPServer(port);
+            LOGGER.fine("Started Prometheus endpoint on port " + server.getPort());
+        } catch (Exception e) {
+            LOGGER.log(WARNING, "Unable to start Prometheus endpoint", e);
+        }
+    }
 
-                } catch (Exception e) { //widen scope in case of ClassNotFoundException on non oracle/sun JVM
-                    LOGGER.log(WARNING, "Unable to register Prometheus HttpServer on port " + port, e);
-                }
-            }
-        });
-        thread.setDaemon(true);
-        thread.start();
+    /**
+     * The JVM and JMX collectors query MBeans, so concurrent scrapes share a collection and the collectors named in
+     * collectorCacheTtl reuse their samples for that many milliseconds. They are collected in parallel by the pool.
+     */
+    private void register(Collector collector, String name) {
+        Object ttl = collectorCacheTtls.get(name);
+        CachedCollector cached = new CachedCollector(collector, name,
+                ttl == null ? 0 : Long.parseLong(String.valueOf(ttl)));
+
+        cached.register();
+        collectorPool.add(cached);
     }
 
+    /**
+     * With mode background, the JmxCollector is refreshed every refreshInterval milliseconds rather than per scrape.
+     * Both are removed from the configuration passed to the JmxCollector.
+     */
     private void addJmxCollector(Map<String, Object> configuration) {
         if (!configuration.containsKey("jmx")) {
             return;
         }
 
         try {
-            String jmxConfig = YAML_MAPPER.writeValueAsString(configuration.get("jmx"));
-            new JmxCollector(jmxConfig).register();
+            Map<String, Object> jmx = new LinkedHashMap<String, Object>((Map<String, Object>) configuration.get("jmx"));
+            Object mode = jmx.remove("mode");
+            Object refreshInterval = jmx.remove("refreshInterval");
+
+            JmxCollector collector = new JmxCollector(YAML_MAPPER.writeValueAsString(jmx));
+
+            if (!"background".equals(mode)) {
+                register(collector, "jmx");
+                return;
+            }
+
+            // a remote server (jmxUrl or hostPort) does not notify the registrations here
+            boolean local = !jmx.containsKey("jmxUrl") && !jmx.containsKey("hostPort");
+
+            register(new BackgroundJmxCollector(collector,
+                    local ? ManagementFactory.getPlatformMBeanServer() : null,
+                    objectNames(jmx.get("whitelistObjectNames")),
+                    objectNames(jmx.get("blacklistObjectNames")),
+                    refreshInterval == null ?
+                            BackgroundJmxCollector.DEFAULT_REFRESH_INTERVAL_MILLIS :
+                            Long.parseLong(String.valueOf(refreshInterval))).start(), "jmx");
         } catch (Exception e) {
             LOGGER.log(WARNING, "Problem starting JmxCollector", e);
         }
     }
 
+    private static List<ObjectName> objectNames(Object names) throws MalformedObjectNameException {
+        List<ObjectName> objectNames = new ArrayList<ObjectName>();
+        if (names != null) {
+            for (Object name : (List<Object>) names) {
+                objectNames.add(new ObjectName(String.valueOf(name)));
+            }
+        }
+        return objectNames;
+    }
+
     private void addJvmMetrics(Map<String, Object> configuration) {
         if (!configuration.containsKey("jvm")) {
             return;
@@ -172,27 +370,27 @@ public class PrometheusMetricSystem {
         Set<String> jvmMetrics = new HashSet<String>((List<String>)configuration.get("jvm"));
 
         if (jvmMetrics.contains("gc")) {
-            new GarbageCollectorExports().register();
+            register(new GarbageCollectorExports(), "gc");
         }
 
         if (jvmMetrics.contains("threads")) {
-            new ThreadExports().register();
+            register(new ThreadExports(), "threads");
         }
 
         if (jvmMetrics.contains("memory")) {
-            new MemoryPoolsExports().register();
+            register(new MemoryPoolsExports(), "memory");
         }
 
         if (jvmMetrics.contains("classloader")) {
-            new ClassLoadingExports().register();
+            register(new ClassLoadingExports(), "classloader");
         }
 
         if (jvmMetrics.contains("buffer")) {
-            new BufferPoolsExports().register();
+            register(new BufferPoolsExports(), "buffer");
         }
 
         if (jvmMetrics.contains("version")) {
-            new VersionInfoExports().register();
+            register(new VersionInfoExports(), "version");
         }
     }
 }
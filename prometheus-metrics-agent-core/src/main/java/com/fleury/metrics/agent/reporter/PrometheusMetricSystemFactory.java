@@ -10,10 +10,20 @@ public class PrometheusMetricSystemFactory {
 
     public static final PrometheusMetricSystemFactory INSTANCE = new PrometheusMetricSystemFactory();
 
-    public PrometheusMetricSystem metrics;
+    public volatile PrometheusMetricSystem metrics;
+
+    /**
+     * Only the first call initializes the metric system (and starts the endpoint), e.g. if the agent is attached again.
+     *
+     * @return true if initialized by this call
+     */
+    public synchronized boolean init(Map<String, Object> configuration) {
+        if (metrics != null) {
+            return false;
+        }
 
-    public void init(Map<String, Object> configuration) {
         metrics = new PrometheusMetricSystem(configuration);
+        return true;
     }
 
     public PrometheusMetricSystem get() {
@@ -0,0 +1,236 @@
+package com.fleury.metrics.agent.reporter;
+
+import com.fleury.metrics.agent.model.MetricType;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Metrics about the agent itself. They are created when the class is loaded so the runtime support classes can
+ * always record to them, but are only exported once registered by the {@link PrometheusMetricSystem}.
+ *
+ * @author Will Fleury
+ */
+public class SelfMetrics {
+
+    public static final String PREFIX = "metrics_agent_";
+
+    static final LabelCacheHits LABEL_CACHE_HITS = new LabelCacheHits();
+
+    static final Counter LABEL_CACHE_MISSES = Counter.build()
+            .name(PREFIX + "label_cache_misses_total")
+            .help("Labelled child lookups not found in the label cache of the metric")
+            .labelNames("metric")
+            .create();
+
+    static final Counter LABEL_CACHE_EVICTIONS = Counter.build()
+            .name(PREFIX + "label_cache_evictions_total")
+            .help("Entries evicted from the label cache of the metric to make room for another")
+            .labelNames("metric")
+            .create();
+
+    static final Counter OVERFLOW_RECORDS = Counter.build()
+            .name(PREFIX + "overflow_records_total")
+            .help("Records of label value combinations beyond the maxSeries of the metric, made to its overflow series")
+            .labelNames("metric")
+            .create();
+
+    public static final Counter CLASS_HIERARCHY_CACHE_HITS = Counter.build()
+            .name(PREFIX + "class_hierarchy_cache_hits_total")
+            .help("Class hierarchy lookups made computing stack map frames served from the cache")
+            .create();
+
+    public static final Counter CLASS_HIERARCHY_CACHE_MISSES = Counter.build()
+            .name(PREFIX + "class_hierarchy_cache_misses_total")
+            .help("Class hierarchy lookups made computing stack map frames which read the class from its class loader")
+            .create();
+
+    public static final Counter CLASS_HIERARCHY_LOAD_SECONDS = Counter.build()
+            .name(PREFIX + "class_hierarchy_load_seconds_total")
+            .help("Time spent reading classes from their class loader on class hierarchy cache misses")
+            .create();
+
+    public static final Counter TRANSFORM_CACHE_HITS = Counter.build()
+            .name(PREFIX + "transform_cache_hits_total")
+            .help("Classes whose transformation was read from the transform cache")
+            .create();
+
+    public static final Counter TRANSFORM_CACHE_MISSES = Counter.build()
+            .name(PREFIX + "transform_cache_misses_total")
+            .help("Classes not found in the transform cache (or whose entry failed its CRC check)")
+            .create();
+
+    public static final Counter TRANSFORM_CACHE_EVICTIONS = Counter.build()
+            .name(PREFIX + "transform_cache_evictions_total")
+            .help("Transform cache entries evicted to make room for new entries")
+            .create();
+
+    public static final Counter CLASSES_SEEN = Counter.build()
+            .name(PREFIX + "classes_seen_total")
+            .help("Classes passed to the transformer")
+            .create();
+
+    public static final Counter CLASSES_PREFILTERED = Counter.build()
+            .name(PREFIX + "classes_prefiltered_total")
+            .help("Classes passed over by the white and black lists or the constant pool check without being parsed")
+            .create();
+
+    public static final Counter CLASSES_SCANNED = Counter.build()
+            .name(PREFIX + "classes_scanned_total")
+            .help("Classes parsed for metric annotations")
+            .create();
+
+    public static final Counter CLASSES_INSTRUMENTED = Counter.build()
+            .name(PREFIX + "classes_instrumented_total")
+            .help("Classes instrumented with metrics, including those read from the transform cache")
+            .create();
+
+    public static final Counter TRANSFORM_FAILURES = Counter.build()
+            .name(PREFIX + "transform_failures_total")
+            .help("Classes which failed to be transformed and were left as they were")
+            .create();
+
+    public static final TimerHistogram TRANSFORM_DURATION = TimerHistogram.build()
+            .name(PREFIX + "transform_duration_seconds")
+            .help("Time taken by the transformer per class")
+            .buckets(.00001, .00005, .0001, .0005, .001, .005, .01, .05, .1, .5, 1)
+            .create();
+
+    public static final Counter TRANSFORM_SECONDS = Counter.build()
+            .name(PREFIX + "transform_seconds_total")
+            .help("Time taken by the transformer, while the agent premain is running and after it")
+            .labelNames("phase")
+            .create();
+
+    public static final Counter INJECTIONS = Counter.build()
+            .name(PREFIX + "injections_total")
+            .help("Metrics injected into methods by metric type")
+            .labelNames("type")
+            .create();
+
+    public static final Counter SCRAPES_REJECTED = Counter.build()
+            .name(PREFIX + "scrapes_rejected_total")
+            .help("Scrapes answered with 503 as the endpoint had as many scrapes rendering and pending as it allows")
+            .create();
+
+    public static final TimerHistogram SCRAPE_DURATION = TimerHistogram.build()
+            .name(PREFIX + "scrape_duration_seconds")
+            .help("Time taken by the endpoint to render a scrape, excluding the time waiting for a worker")
+            .buckets(.001, .005, .01, .05, .1, .5, 1, 5, 10)
+            .create();
+
+    public static final TimerHistogram SCRAPE_COLLECTOR_DURATION = TimerHistogram.build()
+            .name(PREFIX + "scrape_collector_duration_seconds")
+            .help("Time taken to collect each agent registered collector, whether or not the scrape waited for it")
+            .labelNames("collector")
+            .buckets(.001, .005, .01, .05, .1, .5, 1, 5, 10)
+            .create();
+
+    public static final Counter SCRAPE_COLLECTOR_DEADLINE_MISSES = Counter.build()
+            .name(PREFIX + "scrape_collector_deadline_misses_total")
+            .help("Scrapes given the last samples of the collector as its collection did not complete by the deadline")
+            .labelNames("collector")
+            .create();
+
+    // label children resolved once so recording is a single (lock free) add
+    private static final Counter.Child PREMAIN_TRANSFORM_SECONDS = TRANSFORM_SECONDS.labels("premain");
+    private static final Counter.Child AFTER_PREMAIN_TRANSFORM_SECONDS = TRANSFORM_SECONDS.labels("after_premain");
+    private static final Counter.Child[] INJECTIONS_BY_TYPE = injectionsByType();
+
+    private static volatile boolean inPremain;
+
+    /**
+     * Marks whether the agent premain is running, so the time spent transforming is accounted to premain or after it.
+     */
+    public static void setInPremain(boolean inPremain) {
+        SelfMetrics.inPremain = inPremain;
+    }
+
+    public static void recordTransform(long nanos) {
+        TRANSFORM_DURATION.observeNanos(nanos);
+        (inPremain ? PREMAIN_TRANSFORM_SECONDS : AFTER_PREMAIN_TRANSFORM_SECONDS).inc(nanos / 1E9);
+    }
+
+    public static void recordInjection(MetricType type) {
+        INJECTIONS_BY_TYPE[type.ordinal()].inc();
+    }
+
+    private static Counter.Child[] injectionsByType() {
+        MetricType[] types = MetricType.values();
+        Counter.Child[] children = new Counter.Child[types.length];
+
+        for (int i = 0; i < types.length; i++) {
+            children[i] = INJECTIONS.labels(types[i].name());
+        }
+
+        return children;
+    }
+
+    /**
+     * The hits of the label caches, counted per metric in a counter shared by its caches and striped as every hit of
+     * every recording thread increments it.
+     */
+    static class LabelCacheHits extends Collector {
+
+        private final ConcurrentMap<String, StripedCounter> hits = new ConcurrentHashMap<String, StripedCounter>();
+
+        StripedCounter counter(String metric) {
+            StripedCounter counter = hits.get(metric);
+            if (counter == null) {
+                StripedCounter created = new StripedCounter();
+                counter = hits.putIfAbsent(metric, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            return counter;
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            Map<String, StripedCounter> sorted = new TreeMap<String, StripedCounter>(hits);
+
+            List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(sorted.size());
+            for (Map.Entry<String, StripedCounter> metricHits : sorted.entrySet()) {
+                samples.add(new MetricFamilySamples.Sample(PREFIX + "label_cache_hits_total",
+                        Collections.singletonList("metric"), Collections.singletonList(metricHits.getKey()),
+                        metricHits.getValue().get()));
+            }
+
+            return Collections.singletonList(new MetricFamilySamples(PREFIX + "label_cache_hits_total", Type.COUNTER,
+                    "Labelled child lookups served from the label cache of the metric", samples));
+        }
+    }
+
+    public static void register(CollectorRegistry registry) {
+        registry.register(LABEL_CACHE_HITS);
+        registry.register(LABEL_CACHE_MISSES);
+        registry.register(LABEL_CACHE_EVICTIONS);
+        registry.register(OVERFLOW_RECORDS);
+        registry.register(CLASS_HIERARCHY_CACHE_HITS);
+        registry.register(CLASS_HIERARCHY_CACHE_MISSES);
+        registry.register(CLASS_HIERARCHY_LOAD_SECONDS);
+        registry.register(TRANSFORM_CACHE_HITS);
+        registry.register(TRANSFORM_CACHE_MISSES);
+        registry.register(TRANSFORM_CACHE_EVICTIONS);
+        registry.register(CLASSES_SEEN);
+        registry.register(CLASSES_PREFILTERED);
+        registry.register(CLASSES_SCANNED);
+        registry.register(CLASSES_INSTRUMENTED);
+        registry.register(TRANSFORM_FAILURES);
+        registry.register(TRANSFORM_DURATION);
+        registry.register(TRANSFORM_SECONDS);
+        registry.register(INJECTIONS);
+        registry.register(SCRAPES_REJECTED);
+        registry.register(SCRAPE_DURATION);
+        registry.register(SCRAPE_COLLECTOR_DURATION);
+        registry.register(SCRAPE_COLLECTOR_DEADLINE_MISSES);
+    }
+}
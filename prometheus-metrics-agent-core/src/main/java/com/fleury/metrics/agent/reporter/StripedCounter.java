@@ -0,0 +1,109 @@
+package com.fleury.metrics.agent.reporter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter incremented by many threads, like LongAdder which is only available from Java 8. Increments go to a
+ * single base value until threads contend on it, then to cells on their own cache lines picked by a per-thread probe
+ * which moves to another cell whenever the thread contends again.
+ *
+ * @author Will Fleury
+ */
+class StripedCounter {
+
+    static final int MAX_STRIPES = stripes();
+
+    // longs per 64 byte cache line
+    static final int PADDING = 8;
+
+    private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            long id = Thread.currentThread().getId();
+            int probe = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+            return new int[] {probe == 0 ? 1 : probe};
+        }
+    };
+
+    private final AtomicLong base = new AtomicLong();
+
+    // created on first contention, cell i at index (i + 1) * PADDING so no two cells or the header share a line
+    private volatile AtomicLongArray cells;
+
+    public void increment() {
+        AtomicLongArray cells = this.cells;
+        if (cells == null) {
+            long value = base.get();
+            if (base.compareAndSet(value, value + 1)) {
+                return;
+            }
+            cells = createCells();
+        }
+
+        int[] probe = PROBE.get();
+        int index = cellIndex(probe[0]);
+
+        long value = cells.get(index);
+        if (!cells.compareAndSet(index, value, value + 1)) {
+            cells.incrementAndGet(cellIndex(advanceProbe(probe)));
+        }
+    }
+
+    public long get() {
+        long sum = base.get();
+
+        AtomicLongArray cells = this.cells;
+        if (cells != null) {
+            for (int i = 0; i < MAX_STRIPES; i++) {
+                sum += cells.get(cellIndex(i));
+            }
+        }
+
+        return sum;
+    }
+
+    private synchronized AtomicLongArray createCells() {
+        if (cells == null) {
+            cells = new AtomicLongArray((MAX_STRIPES + 2) * PADDING);
+        }
+        return cells;
+    }
+
+    private static int cellIndex(int probe) {
+        return ((probe & (MAX_STRIPES - 1)) + 1) * PADDING;
+    }
+
+    /**
+     * @return the probe of the current thread, a hash of the thread which is never 0
+     */
+    static int probe() {
+        return PROBE.get()[0];
+    }
+
+    /**
+     * Moves the probe of the current thread after it contended, as Striped64 does, so contending threads spread out
+     * rather than keep colliding on the stripe a fixed hash of the thread gave them.
+     *
+     * @return the new probe
+     */
+    static int advanceProbe() {
+        return advanceProbe(PROBE.get());
+    }
+
+    private static int advanceProbe(int[] probe) {
+        int value = probe[0];
+        value ^= value << 13;
+        value ^= value >>> 17;
+        value ^= value << 5;
+        return probe[0] = value;
+    }
+
+    /**
+     * @return the processors rounded up to a power of two, at most 16
+     */
+    private static int stripes() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+        return Integer.highestOneBit(Math.max(processors, 1) * 2 - 1);
+    }
+}
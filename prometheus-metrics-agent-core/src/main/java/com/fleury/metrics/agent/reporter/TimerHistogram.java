@@ -0,0 +1,278 @@
+package com.fleury.metrics.agent.reporter;
+
+import io.prometheus.client.SimpleCollector;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of method durations observed in nanoseconds, exposed as a Prometheus histogram in seconds. The bucket of
+ * a duration is found from a table indexed by its bit length rather than a linear scan over the bounds.
+ *
+ * @author Will Fleury
+ */
+public class TimerHistogram extends SimpleCollector<TimerHistogram.Child> {
+
+    public static final double[] DEFAULT_BUCKETS = {.005, .01, .025, .05, .075, .1, .25, .5, .75, 1, 2.5, 5, 7.5, 10};
+
+    private final double[] upperBounds;
+    private final long[] upperBoundsNanos;
+    private final int[] bucketIndex;
+
+    // the le label values and names of the buckets, created once rather than per collection
+    private final String[] upperBoundLabels;
+    private final List<String> labelNamesWithLe;
+
+    TimerHistogram(Builder b) {
+        super(b);
+
+        if (labelNames.contains("le")) {
+            throw new IllegalStateException("Histogram cannot have a label named 'le'.");
+        }
+
+        this.upperBounds = withInfinity(b.buckets);
+        this.upperBoundsNanos = toNanos(upperBounds);
+        this.bucketIndex = createBucketIndex(upperBoundsNanos);
+
+        this.upperBoundLabels = new String[upperBounds.length];
+        for (int i = 0; i < upperBounds.length; i++) {
+            upperBoundLabels[i] = doubleToGoString(upperBounds[i]);
+        }
+
+        List<String> names = new ArrayList<String>(labelNames);
+        names.add("le");
+        this.labelNamesWithLe = Collections.unmodifiableList(names);
+
+        initializeNoLabelsChild();
+    }
+
+    public static Builder build() {
+        return new Builder();
+    }
+
+    @Override
+    protected void initializeNoLabelsChild() {
+        // called from the super constructor before the bucket bounds are assigned
+        if (upperBounds != null) {
+            super.initializeNoLabelsChild();
+        }
+    }
+
+    @Override
+    protected Child newChild() {
+        return new Child(upperBoundsNanos, bucketIndex);
+    }
+
+    public void observeNanos(long nanos) {
+        noLabelsChild.observeNanos(nanos);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+
+        String bucketName = fullname + "_bucket";
+        String countName = fullname + "_count";
+        String sumName = fullname + "_sum";
+
+        for (Map.Entry<List<String>, Child> child : children.entrySet()) {
+            double[] buckets = child.getValue().getBuckets();
+
+            for (int i = 0; i < buckets.length; i++) {
+                List<String> labelValuesWithLe = new ArrayList<String>(child.getKey());
+                labelValuesWithLe.add(upperBoundLabels[i]);
+                samples.add(new MetricFamilySamples.Sample(
+                        bucketName, labelNamesWithLe, labelValuesWithLe, buckets[i]));
+            }
+
+            samples.add(new MetricFamilySamples.Sample(
+                    countName, labelNames, child.getKey(), buckets[buckets.length - 1]));
+            samples.add(new MetricFamilySamples.Sample(
+                    sumName, labelNames, child.getKey(), child.getValue().getSum()));
+        }
+
+        return familySamplesList(Type.HISTOGRAM, samples);
+    }
+
+    private static double[] withInfinity(double[] buckets) {
+        for (int i = 1; i < buckets.length; i++) {
+            if (buckets[i] <= buckets[i - 1]) {
+                throw new IllegalStateException("Histogram buckets must be in increasing order: "
+                        + buckets[i] + " >= " + buckets[i - 1]);
+            }
+        }
+
+        if (buckets.length > 0 && buckets[buckets.length - 1] == Double.POSITIVE_INFINITY) {
+            return buckets.clone();
+        }
+
+        double[] bounds = new double[buckets.length + 1];
+        System.arraycopy(buckets, 0, bounds, 0, buckets.length);
+        bounds[buckets.length] = Double.POSITIVE_INFINITY;
+
+        return bounds;
+    }
+
+    /**
+     * Durations are whole nanoseconds so a duration falls within a bound of x seconds when it is <= floor(x * 1e9).
+     * The decimal form of the bound is used so e.g. 0.3 is exactly 300000000ns rather than 299999999ns.
+     */
+    private static long[] toNanos(double[] upperBounds) {
+        long[] nanos = new long[upperBounds.length];
+
+        for (int i = 0; i < upperBounds.length; i++) {
+            double bound = upperBounds[i];
+
+            if (bound >= Long.MAX_VALUE / 1E9) {
+                nanos[i] = Long.MAX_VALUE;
+            } else {
+                nanos[i] = new BigDecimal(Double.toString(bound)).movePointRight(9)
+                        .setScale(0, RoundingMode.FLOOR).longValue();
+            }
+        }
+
+        return nanos;
+    }
+
+    /**
+     * For each bit length of a duration (0 for durations <= 0) the index of the first bucket bound which is not below
+     * the smallest duration of that bit length. The bucket of a duration is then found by scanning from there.
+     */
+    private static int[] createBucketIndex(long[] upperBoundsNanos) {
+        int[] index = new int[64];
+
+        int bucket = 0;
+        for (int bits = 1; bits < index.length; bits++) {
+            long smallest = 1L << (bits - 1);
+
+            while (upperBoundsNanos[bucket] < smallest) {
+                bucket++;
+            }
+            index[bits] = bucket;
+        }
+
+        return index;
+    }
+
+    public static class Builder extends SimpleCollector.Builder<Builder, TimerHistogram> {
+
+        private double[] buckets = DEFAULT_BUCKETS;
+
+        public Builder buckets(double... buckets) {
+            this.buckets = buckets;
+            return this;
+        }
+
+        @Override
+        public TimerHistogram create() {
+            return new TimerHistogram(this);
+        }
+    }
+
+    /**
+     * Bucket counts and the sum in nanoseconds, held in a row of counters which is striped like Striped64 once
+     * recording threads contend. A row spans several cache lines rather than one, e.g. the 15 default buckets and the
+     * sum padded to 24 longs take 192 bytes, three 64 byte lines. The row a thread records to is picked by its probe,
+     * which moves to another row whenever the thread contends.
+     */
+    public static class Child {
+
+        private static final int MAX_STRIPES = StripedCounter.MAX_STRIPES;
+        private static final int PADDING = StripedCounter.PADDING;
+
+        private final long[] upperBoundsNanos;
+        private final int[] bucketIndex;
+        private final int sumIndex;
+        private final int rowLength;
+
+        // grown rows keep the existing rows so no recording is lost, each row being padded by a line so rows don't
+        // share one
+        private volatile AtomicLongArray[] rows;
+
+        Child(long[] upperBoundsNanos, int[] bucketIndex) {
+            this.upperBoundsNanos = upperBoundsNanos;
+            this.bucketIndex = bucketIndex;
+            this.sumIndex = upperBoundsNanos.length;
+            this.rowLength = ((sumIndex + PADDING) / PADDING) * PADDING + PADDING;
+            this.rows = new AtomicLongArray[] {new AtomicLongArray(rowLength)};
+        }
+
+        public void observeNanos(long nanos) {
+            int bucket = bucketIndex[nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos)];
+            while (nanos > upperBoundsNanos[bucket]) {
+                bucket++;
+            }
+
+            AtomicLongArray[] rows = this.rows;
+            AtomicLongArray row = rows[StripedCounter.probe() & (rows.length - 1)];
+
+            long sum = row.get(sumIndex);
+            if (!row.compareAndSet(sumIndex, sum, sum + nanos)) {
+                if (rows.length < MAX_STRIPES) {
+                    rows = grow(rows);
+                }
+                row = rows[StripedCounter.advanceProbe() & (rows.length - 1)];
+                row.addAndGet(sumIndex, nanos);
+            }
+            row.incrementAndGet(bucket);
+        }
+
+        private synchronized AtomicLongArray[] grow(AtomicLongArray[] contended) {
+            AtomicLongArray[] current = rows;
+            if (current != contended) {
+                // already grown by another thread
+                return current;
+            }
+
+            AtomicLongArray[] grown = Arrays.copyOf(current, current.length * 2);
+            for (int i = current.length; i < grown.length; i++) {
+                grown[i] = new AtomicLongArray(rowLength);
+            }
+            rows = grown;
+
+            return grown;
+        }
+
+        int getStripes() {
+            return rows.length;
+        }
+
+        /**
+         * @return the cumulative bucket counts
+         */
+        public double[] getBuckets() {
+            double[] buckets = new double[sumIndex];
+
+            AtomicLongArray[] rows = this.rows;
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                for (AtomicLongArray row : rows) {
+                    count += row.get(i);
+                }
+                buckets[i] = count;
+            }
+
+            return buckets;
+        }
+
+        /**
+         * @return the sum of the observed durations in seconds
+         */
+        public double getSum() {
+            return getSumNanos() / 1E9;
+        }
+
+        public long getSumNanos() {
+            long sum = 0;
+            for (AtomicLongArray row : rows) {
+                sum += row.get(sumIndex);
+            }
+            return sum;
+        }
+    }
+}
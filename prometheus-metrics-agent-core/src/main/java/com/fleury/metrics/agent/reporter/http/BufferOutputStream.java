@@ -0,0 +1,105 @@
+package com.fleury.metrics.agent.reporter.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes into buffers acquired from the pool, handing each to the sink as it fills so a response of any size is
+ * streamed through a few buffers rather than rendered whole. Without a sink a full buffer is only counted and reused,
+ * e.g. to find the length of a response to a HEAD request.
+ *
+ * @author Will Fleury
+ */
+class BufferOutputStream extends OutputStream {
+
+    interface Sink {
+
+        /**
+         * Takes ownership of the buffer, flipped for reading, releasing it to the pool once written.
+         */
+        void write(ByteBuffer buffer) throws IOException;
+    }
+
+    private final BufferPool pool;
+    private final Sink sink;
+
+    private ByteBuffer current;
+    private long size;
+
+    BufferOutputStream(BufferPool pool, Sink sink) {
+        this.pool = pool;
+        this.sink = sink;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (current == null || !current.hasRemaining()) {
+            next();
+        }
+
+        current.put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (current == null || !current.hasRemaining()) {
+                next();
+            }
+
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    private void next() throws IOException {
+        if (current == null) {
+            current = pool.acquire();
+        } else if (sink == null) {
+            current.clear();
+        } else {
+            ByteBuffer full = current;
+            current = null;
+
+            full.flip();
+            sink.write(full);
+            current = pool.acquire();
+        }
+    }
+
+    /**
+     * @return the bytes written, including those handed to the sink
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the buffer written last, flipped for reading and owned by the caller, or null if nothing was written
+     * since the last buffer was handed to the sink
+     */
+    ByteBuffer takeBuffer() {
+        ByteBuffer buffer = current;
+        current = null;
+
+        if (buffer != null) {
+            buffer.flip();
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer not yet handed to the sink to the pool, e.g. when rendering failed.
+     */
+    void release() {
+        if (current != null) {
+            pool.release(current);
+            current = null;
+        }
+    }
+}
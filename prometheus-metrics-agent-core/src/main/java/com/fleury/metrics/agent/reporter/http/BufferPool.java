@@ -0,0 +1,67 @@
+package com.fleury.metrics.agent.reporter.http;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers of the same size. Direct buffers are written to the socket without being copied, but are
+ * expensive to allocate and only freed by the garbage collector, so they are reused across scrapes. At most maxPooled
+ * direct buffers are ever allocated, any more acquired at once are heap buffers left to the garbage collector when
+ * released.
+ *
+ * @author Will Fleury
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return a cleared buffer
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        for (int count = allocated.get(); count < maxPooled; count = allocated.get()) {
+            if (allocated.compareAndSet(count, count + 1)) {
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Every direct buffer acquired must be released, or the pool shrinks.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            pooled.incrementAndGet();
+            pool.offer(buffer);
+        }
+    }
+
+    int getPooled() {
+        return pooled.get();
+    }
+}
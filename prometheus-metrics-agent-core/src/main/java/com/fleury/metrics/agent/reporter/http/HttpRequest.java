@@ -0,0 +1,191 @@
+package com.fleury.metrics.agent.reporter.http;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The parts of a scrape request the server acts on. Only the request line and headers are parsed, a scrape has no
+ * body.
+ *
+ * @author Will Fleury
+ */
+class HttpRequest {
+
+    private final String method;
+    private final String version;
+    private final Set<String> names;
+    private final boolean keepAlive;
+    private final boolean gzip;
+    private final long scrapeTimeoutMillis;
+    private final int length;
+
+    private HttpRequest(String method, String version, Set<String> names, boolean keepAlive, boolean gzip,
+            long scrapeTimeoutMillis, int length) {
+        this.method = method;
+        this.version = version;
+        this.names = names;
+        this.keepAlive = keepAlive;
+        this.gzip = gzip;
+        this.scrapeTimeoutMillis = scrapeTimeoutMillis;
+        this.length = length;
+    }
+
+    /**
+     * @return the request at the start of the data, or null if its headers are incomplete
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    static HttpRequest parse(byte[] data, int offset, int limit) {
+        int end = indexOfHeadersEnd(data, offset, limit);
+        if (end < 0) {
+            return null;
+        }
+
+        String[] lines = ascii(data, offset, end - offset).split("\r\n");
+
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new IllegalArgumentException("Malformed request line " + lines[0]);
+        }
+
+        String version = requestLine[2];
+        String connection = null;
+        boolean gzip = false;
+        boolean body = false;
+        long scrapeTimeoutMillis = -1;
+
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Malformed header " + lines[i]);
+            }
+
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+
+            if (name.equalsIgnoreCase("Connection")) {
+                connection = value.toLowerCase();
+            } else if (name.equalsIgnoreCase("Accept-Encoding")) {
+                gzip = acceptsGzip(value);
+            } else if (name.equalsIgnoreCase("Content-Length")) {
+                body = !value.equals("0");
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                body = true;
+            } else if (name.equalsIgnoreCase("X-Prometheus-Scrape-Timeout-Seconds")) {
+                scrapeTimeoutMillis = parseSeconds(value);
+            }
+        }
+
+        // a body is not read, so the connection cannot be reused to read the next request
+        boolean keepAlive = !body && (version.equals("HTTP/1.0") ?
+                "keep-alive".equals(connection) :
+                !"close".equals(connection));
+
+        return new HttpRequest(requestLine[0], version, parseNames(requestLine[1]), keepAlive, gzip,
+                scrapeTimeoutMillis, end + 4 - offset);
+    }
+
+    /**
+     * @return the milliseconds of a positive number of seconds, otherwise -1 as if there was no timeout
+     */
+    private static long parseSeconds(String value) {
+        try {
+            double seconds = Double.parseDouble(value);
+            return seconds > 0 && !Double.isInfinite(seconds) ? (long) (seconds * 1000) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int indexOfHeadersEnd(byte[] data, int offset, int limit) {
+        for (int i = offset; i + 3 < limit; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String ascii(byte[] data, int offset, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (data[offset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    private static boolean acceptsGzip(String value) {
+        for (String encoding : value.split(",")) {
+            String[] parts = encoding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length == 1 || !parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * As for the simpleclient HTTPServer, the metric families to return are given by name[] query parameters.
+     */
+    private static Set<String> parseNames(String target) {
+        Set<String> names = new HashSet<String>();
+
+        int query = target.indexOf('?');
+        if (query < 0) {
+            return names;
+        }
+
+        try {
+            for (String pair : target.substring(query + 1).split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0 && URLDecoder.decode(pair.substring(0, equals), "UTF-8").equals("name[]")) {
+                    names.add(URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed query " + target, e);
+        }
+
+        return names;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the metric families requested, all if empty
+     */
+    Set<String> getNames() {
+        return names;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * @return the X-Prometheus-Scrape-Timeout-Seconds of the scrape in milliseconds, or -1 if it has none
+     */
+    long getScrapeTimeoutMillis() {
+        return scrapeTimeoutMillis;
+    }
+
+    /**
+     * @return the number of bytes of the request line and headers
+     */
+    int getLength() {
+        return length;
+    }
+}
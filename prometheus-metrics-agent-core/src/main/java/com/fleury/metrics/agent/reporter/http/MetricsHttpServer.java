@@ -0,0 +1,736 @@
+package com.fleury.metrics.agent.reporter.http;
+
+import static java.nio.channels.SelectionKey.OP_ACCEPT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import com.fleury.metrics.agent.reporter.CollectorPool;
+import com.fleury.metrics.agent.reporter.SelfMetrics;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the metrics of a registry over HTTP from a single non-blocking selector thread, the responses being rendered
+ * by a bounded pool of workers.
+ *
+ * @author Will Fleury
+ */
+public class MetricsHttpServer implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(MetricsHttpServer.class.getName());
+
+    public static final int DEFAULT_HTTP_PORT = 9899;
+
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_MAX_PENDING_SCRAPES = 16;
+    private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    private static final int DEFAULT_MAX_POOLED_BUFFERS = 64;
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+    private static final long DEFAULT_SCRAPE_TIMEOUT_MILLIS = 10000;
+    private static final long DEFAULT_SCRAPE_TIMEOUT_OFFSET_MILLIS = 500;
+
+    /**
+     * The request line and headers of a scrape are small, a request exceeding this is rejected.
+     */
+    static final int MAX_REQUEST_SIZE = 8 * 1024;
+
+    private static final long IDLE_CHECK_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The buffers of a response handed to the selector thread but not yet written, beyond which the worker rendering
+     * it waits for the client to read.
+     */
+    private static final int MAX_WRITING_BUFFERS = 4;
+
+    private static final byte[] OK = ascii("HTTP/1.1 200 OK\r\nContent-Type: " + TextFormat.CONTENT_TYPE_004);
+    private static final byte[] CHUNKED = ascii("\r\nTransfer-Encoding: chunked");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] LAST_CHUNK = ascii("0\r\n\r\n");
+    private static final byte[] GZIP = ascii("\r\nContent-Encoding: gzip");
+    private static final byte[] KEEP_ALIVE = ascii("\r\nConnection: keep-alive\r\n\r\n");
+    private static final byte[] CLOSE = ascii("\r\nConnection: close\r\n\r\n");
+
+    private static final byte[] BAD_REQUEST = error("400 Bad Request");
+    private static final byte[] METHOD_NOT_ALLOWED = error("405 Method Not Allowed");
+    private static final byte[] REQUEST_TOO_LARGE = error("431 Request Header Fields Too Large");
+    private static final byte[] INTERNAL_SERVER_ERROR = error("500 Internal Server Error");
+    private static final byte[] SERVICE_UNAVAILABLE = error("503 Service Unavailable");
+
+    private final CollectorRegistry registry;
+    // null for the collectors to be collected by the worker rendering the scrape
+    private final CollectorPool collectors;
+    private final TextExpositionWriter writer = new TextExpositionWriter();
+    private final long scrapeTimeoutMillis;
+    private final long scrapeTimeoutOffsetMillis;
+    private final long idleTimeoutMillis;
+    private final int maxScrapes;
+    private final AtomicInteger scrapes = new AtomicInteger();
+
+    private final BufferPool buffers;
+    private final ExecutorService executor;
+    // bounds the responses rendered at a time on virtual threads, null for the pool of workers
+    private final Semaphore rendering;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    // connections with a response rendered by a worker, to be written by the selector thread
+    private final Queue<Connection> responded = new ConcurrentLinkedQueue<Connection>();
+
+    private volatile boolean closed;
+    private Thread thread;
+
+    public MetricsHttpServer(CollectorRegistry registry, Map<String, Object> system) throws IOException {
+        this(registry, system, null);
+    }
+
+    public MetricsHttpServer(CollectorRegistry registry, Map<String, Object> system, CollectorPool collectors)
+            throws IOException {
+        this.registry = registry;
+        this.collectors = collectors;
+        this.scrapeTimeoutMillis = getLong(system, "scrapeTimeout", DEFAULT_SCRAPE_TIMEOUT_MILLIS);
+        this.scrapeTimeoutOffsetMillis = getLong(system, "scrapeTimeoutOffset", DEFAULT_SCRAPE_TIMEOUT_OFFSET_MILLIS);
+        this.idleTimeoutMillis = getLong(system, "httpIdleTimeout", DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+        int workers = (int) getLong(system, "httpWorkers", DEFAULT_WORKERS);
+        this.maxScrapes = workers + (int) getLong(system, "httpMaxPendingScrapes", DEFAULT_MAX_PENDING_SCRAPES);
+
+        this.buffers = new BufferPool(
+                (int) getLong(system, "httpBufferSize", DEFAULT_BUFFER_SIZE),
+                (int) getLong(system, "httpMaxPooledBuffers", DEFAULT_MAX_POOLED_BUFFERS));
+
+        ExecutorService virtual = Boolean.parseBoolean(String.valueOf(system.get("httpVirtualThreads"))) ?
+                createVirtualThreadExecutor() :
+                null;
+        this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(workers, new WorkerThreadFactory());
+        this.rendering = virtual != null ? new Semaphore(workers) : null;
+
+        int port = (int) getLong(system, "httpPort", DEFAULT_HTTP_PORT);
+        Object host = system.get("httpHost");
+
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(host == null ?
+                    new InetSocketAddress(port) :
+                    new InetSocketAddress(String.valueOf(host), port));
+            serverChannel.register(selector, OP_ACCEPT);
+        } catch (IOException e) {
+            executor.shutdownNow();
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    private static long getLong(Map<String, Object> system, String key, long defaultValue) {
+        Object value = system.get(key);
+        return value == null ? defaultValue : Long.parseLong(String.valueOf(value));
+    }
+
+    /**
+     * Compiled for Java 6 so created reflectively.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            LOGGER.info("Virtual threads require JDK 21 or later, scrapes are rendered by a pool of workers");
+        } catch (Exception e) {
+            LOGGER.log(WARNING, "Unable to create a virtual thread executor, scrapes are rendered by a pool of workers",
+                    e);
+        }
+        return null;
+    }
+
+    public synchronized void start() {
+        thread = new Thread(this, "metrics-agent-http");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Closes the connections, waiting for the selector thread to stop.
+     */
+    public synchronized void close() throws InterruptedException {
+        closed = true;
+        executor.shutdownNow();
+
+        if (thread == null) {
+            closeQuietly();
+        } else {
+            selector.wakeup();
+            thread.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        long lastIdleCheck = System.currentTimeMillis();
+
+        try {
+            while (!closed) {
+                selector.select(IDLE_CHECK_INTERVAL_MILLIS);
+
+                Connection responder;
+                while ((responder = responded.poll()) != null) {
+                    responder.writeResponse();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ((Connection) key.attachment()).read();
+                    } else if (key.isWritable()) {
+                        ((Connection) key.attachment()).writeResponse();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL_MILLIS) {
+                    closeIdle(now);
+                    lastIdleCheck = now;
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(WARNING, "The Prometheus endpoint failed", e);
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, OP_READ, connection);
+            } catch (IOException e) {
+                LOGGER.log(FINE, "Failed to accept a connection", e);
+                channel.close();
+            }
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+
+            if (connection != null && !connection.busy && now - connection.lastActive > idleTimeoutMillis) {
+                connection.close();
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (selector.isOpen()) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                selector.close();
+            }
+        } catch (Exception e) {
+            LOGGER.log(FINE, "Failed to close the connections", e);
+        }
+
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            LOGGER.log(FINE, "Failed to close the server socket", e);
+        }
+    }
+
+    /**
+     * @param contentLength -1 for a chunked response
+     * @return the response headers up to the end of the header section
+     */
+    private static ByteBuffer headers(long contentLength, boolean gzip, boolean keepAlive) {
+        byte[] length = contentLength < 0 ? CHUNKED : ascii("\r\nContent-Length: " + contentLength);
+        byte[] connection = keepAlive ? KEEP_ALIVE : CLOSE;
+
+        ByteBuffer headers = ByteBuffer.allocate(OK.length + length.length + GZIP.length + connection.length);
+        headers.put(OK).put(length);
+        if (gzip) {
+            headers.put(GZIP);
+        }
+        headers.put(connection);
+        headers.flip();
+        return headers;
+    }
+
+    private static ByteBuffer chunkHeader(int size) {
+        return ByteBuffer.wrap(ascii(Integer.toHexString(size) + "\r\n"));
+    }
+
+    private static byte[] error(String status) {
+        return ascii("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Its state is only changed by the selector thread, except for the segments of the response which are added by
+     * the worker rendering it while the connection is busy.
+     */
+    private class Connection {
+
+        final SocketChannel channel;
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        SelectionKey key;
+
+        // a request is being handled, i.e. the connection is not idle and no further request is read
+        boolean busy;
+        long lastActive = System.currentTimeMillis();
+
+        // the segments of the response handed over and not yet written, and the one being written
+        final Queue<Segment> segments = new ConcurrentLinkedQueue<Segment>();
+        final Semaphore writing = new Semaphore(MAX_WRITING_BUFFERS);
+        Segment response;
+        int responseOffset;
+
+        volatile boolean disconnected;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() {
+            try {
+                if (channel.read(request) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                LOGGER.log(FINE, "Failed to read a request", e);
+                close();
+                return;
+            }
+
+            lastActive = System.currentTimeMillis();
+            handleRequest();
+        }
+
+        void handleRequest() {
+            long received = System.nanoTime();
+
+            HttpRequest parsed;
+            try {
+                parsed = HttpRequest.parse(request.array(), 0, request.position());
+            } catch (IllegalArgumentException e) {
+                LOGGER.log(FINE, "Bad request", e);
+                respondError(BAD_REQUEST);
+                return;
+            }
+
+            if (parsed == null) {
+                if (!request.hasRemaining()) {
+                    respondError(REQUEST_TOO_LARGE);
+                }
+                return;
+            }
+
+            // any request pipelined after this one is handled once it is responded to
+            request.flip();
+            request.position(parsed.getLength());
+            request.compact();
+
+            if (!parsed.getMethod().equals("GET") && !parsed.getMethod().equals("HEAD")) {
+                respondError(METHOD_NOT_ALLOWED);
+                return;
+            }
+
+            scrape(parsed, deadline(parsed, received));
+        }
+
+        long deadline(HttpRequest parsed, long received) {
+            long timeoutMillis = parsed.getScrapeTimeoutMillis() > 0 ?
+                    parsed.getScrapeTimeoutMillis() :
+                    scrapeTimeoutMillis;
+
+            return received + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis - scrapeTimeoutOffsetMillis));
+        }
+
+        void scrape(final HttpRequest parsed, final long deadline) {
+            if (scrapes.incrementAndGet() > maxScrapes) {
+                scrapes.decrementAndGet();
+                SelfMetrics.SCRAPES_REJECTED.inc();
+                respondError(SERVICE_UNAVAILABLE);
+                return;
+            }
+
+            busy = true;
+            key.interestOps(0);
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            render(parsed, deadline);
+                        } finally {
+                            scrapes.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // only once closed
+                scrapes.decrementAndGet();
+                close();
+            }
+        }
+
+        /**
+         * Called by a worker.
+         */
+        void render(HttpRequest parsed, long deadline) {
+            if (rendering != null) {
+                rendering.acquireUninterruptibly();
+            }
+
+            boolean head = parsed.getMethod().equals("HEAD");
+            ResponseWriter response = new ResponseWriter(this, parsed.isGzip(), parsed.isKeepAlive());
+            BufferOutputStream body = new BufferOutputStream(buffers, head ? null : response);
+            try {
+                long start = System.nanoTime();
+                write(body, parsed, deadline);
+                SelfMetrics.SCRAPE_DURATION.observeNanos(System.nanoTime() - start);
+
+                response.finish(body, head);
+            } catch (Exception e) {
+                body.release();
+
+                if (disconnected) {
+                    LOGGER.log(FINE, "The connection was closed while rendering the metrics", e);
+                } else {
+                    LOGGER.log(WARNING, "Failed to render the metrics", e);
+                    response.fail();
+                }
+            } finally {
+                if (rendering != null) {
+                    rendering.release();
+                }
+            }
+        }
+
+        private void write(BufferOutputStream body, HttpRequest parsed, long deadline) throws IOException {
+            if (collectors != null) {
+                collectors.beginScrape(deadline);
+            }
+
+            try {
+                OutputStream out = parsed.isGzip() ? new GZIPOutputStream(body, buffers.getBufferSize()) : body;
+                try {
+                    writer.write(out, registry.filteredMetricFamilySamples(parsed.getNames()));
+                } finally {
+                    // finishes the gzip stream and frees its deflater
+                    out.close();
+                }
+            } finally {
+                if (collectors != null) {
+                    collectors.endScrape();
+                }
+            }
+        }
+
+        /**
+         * Called by a worker, waiting while MAX_WRITING_BUFFERS buffers handed over are not yet written. The
+         * segment is released if it can't be handed over.
+         */
+        void send(Segment segment) throws IOException {
+            if (segment.body != null && !acquireWriting()) {
+                release(segment);
+                throw new IOException("Timed out waiting for the client to read the response");
+            }
+
+            segments.add(segment);
+
+            if (disconnected) {
+                // the selector thread may have released the segments before this one was added
+                releaseSegments();
+                throw new IOException("The connection was closed");
+            }
+
+            responded.add(this);
+            selector.wakeup();
+        }
+
+        private boolean acquireWriting() {
+            try {
+                return writing.tryAcquire(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Called by the selector thread, as it has no further work to do with the request.
+         */
+        void respondError(byte[] error) {
+            busy = true;
+            segments.add(new Segment(new ByteBuffer[] {ByteBuffer.wrap(error)}, null, true, false));
+            writeResponse();
+        }
+
+        /**
+         * Writes the segments handed over so far, waiting for the worker to hand over more once written until the
+         * last is.
+         */
+        void writeResponse() {
+            if (!key.isValid()) {
+                releaseResponse();
+                return;
+            }
+
+            while (true) {
+                if (response == null) {
+                    response = segments.poll();
+                    responseOffset = 0;
+
+                    if (response == null) {
+                        key.interestOps(0);
+                        return;
+                    }
+                }
+
+                ByteBuffer[] buffers = response.buffers;
+                try {
+                    channel.write(buffers, responseOffset, buffers.length - responseOffset);
+                } catch (IOException e) {
+                    LOGGER.log(FINE, "Failed to write a response", e);
+                    close();
+                    return;
+                }
+
+                while (responseOffset < buffers.length && !buffers[responseOffset].hasRemaining()) {
+                    responseOffset++;
+                }
+
+                if (responseOffset < buffers.length) {
+                    key.interestOps(OP_WRITE);
+                    return;
+                }
+
+                Segment written = response;
+                response = null;
+                release(written);
+                if (written.body != null) {
+                    writing.release();
+                }
+
+                if (written.last) {
+                    responded(written.keepAlive);
+                    return;
+                }
+            }
+        }
+
+        private void responded(boolean keepAlive) {
+            if (!keepAlive) {
+                close();
+                return;
+            }
+
+            busy = false;
+            lastActive = System.currentTimeMillis();
+            key.interestOps(OP_READ);
+
+            if (request.position() > 0) {
+                handleRequest();
+            }
+        }
+
+        void releaseResponse() {
+            if (response != null) {
+                release(response);
+                response = null;
+            }
+            releaseSegments();
+        }
+
+        void releaseSegments() {
+            Segment segment;
+            while ((segment = segments.poll()) != null) {
+                release(segment);
+            }
+        }
+
+        /**
+         * A worker still rendering a response finds the connection closed when it next hands over a segment.
+         */
+        void close() {
+            if (disconnected) {
+                return;
+            }
+            disconnected = true;
+
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(FINE, "Failed to close a connection", e);
+            }
+
+            releaseResponse();
+            // wakes a worker waiting to hand over a buffer
+            writing.release(MAX_WRITING_BUFFERS);
+        }
+    }
+
+    private void release(Segment segment) {
+        if (segment.body != null) {
+            buffers.release(segment.body);
+        }
+    }
+
+    /**
+     * A part of a response, written in the order handed over to the selector thread.
+     */
+    private static class Segment {
+
+        final ByteBuffer[] buffers;
+        // the buffer of the body to return to the pool once written, if any
+        final ByteBuffer body;
+        // the response ends with this segment
+        final boolean last;
+        final boolean keepAlive;
+
+        Segment(ByteBuffer[] buffers, ByteBuffer body, boolean last, boolean keepAlive) {
+            this.buffers = buffers;
+            this.body = body;
+            this.last = last;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    /**
+     * Hands a response rendered by a worker over to its connection. A body fitting in one buffer is sent with its
+     * length, a larger one in chunks as each buffer fills so it is never held whole.
+     */
+    private class ResponseWriter implements BufferOutputStream.Sink {
+
+        private final Connection connection;
+        private final boolean gzip;
+        private final boolean keepAlive;
+
+        // the headers were sent, with the first chunk
+        private boolean chunked;
+
+        ResponseWriter(Connection connection, boolean gzip, boolean keepAlive) {
+            this.connection = connection;
+            this.gzip = gzip;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            ByteBuffer[] segment = chunked ?
+                    new ByteBuffer[] {chunkHeader(buffer.remaining()), buffer, ByteBuffer.wrap(CRLF)} :
+                    new ByteBuffer[] {headers(-1, gzip, keepAlive), chunkHeader(buffer.remaining()), buffer,
+                            ByteBuffer.wrap(CRLF)};
+
+            chunked = true;
+            connection.send(new Segment(segment, buffer, false, keepAlive));
+        }
+
+        void finish(BufferOutputStream body, boolean head) throws IOException {
+            ByteBuffer buffer = body.takeBuffer();
+
+            if (!chunked) {
+                ByteBuffer headers = headers(body.size(), gzip, keepAlive);
+
+                if (head || buffer == null) {
+                    if (buffer != null) {
+                        buffers.release(buffer);
+                    }
+                    connection.send(new Segment(new ByteBuffer[] {headers}, null, true, keepAlive));
+                } else {
+                    connection.send(new Segment(new ByteBuffer[] {headers, buffer}, buffer, true, keepAlive));
+                }
+            } else if (buffer == null || !buffer.hasRemaining()) {
+                if (buffer != null) {
+                    buffers.release(buffer);
+                }
+                connection.send(new Segment(new ByteBuffer[] {ByteBuffer.wrap(LAST_CHUNK)}, null, true, keepAlive));
+            } else {
+                connection.send(new Segment(new ByteBuffer[] {chunkHeader(buffer.remaining()), buffer,
+                        ByteBuffer.wrap(CRLF), ByteBuffer.wrap(LAST_CHUNK)}, buffer, true, keepAlive));
+            }
+        }
+
+        /**
+         * Once the headers were sent the connection is closed instead, truncating the body.
+         */
+        void fail() {
+            ByteBuffer[] segment = chunked ?
+                    new ByteBuffer[0] :
+                    new ByteBuffer[] {ByteBuffer.wrap(INTERNAL_SERVER_ERROR)};
+            try {
+                connection.send(new Segment(segment, null, true, false));
+            } catch (IOException e) {
+                LOGGER.log(FINE, "Failed to respond to a failed scrape", e);
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "metrics-agent-http-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.fleury.metrics.agent.reporter.http;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Collector.Type;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Writes the text exposition format (0.0.4) as bytes, the encoded HELP and TYPE lines and series names and labels
+ * being reused by later scrapes.
+ *
+ * @author Will Fleury
+ */
+public class TextExpositionWriter {
+
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    // the encodings of a family are dropped when it has more than twice as many as series written, plus this
+    private static final int STALE_ENCODINGS_SLACK = 64;
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<String, Family>();
+
+    private final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    public void write(OutputStream out, Enumeration<MetricFamilySamples> familySamples) throws IOException {
+        Output output = outputs.get();
+        output.out = out;
+        try {
+            while (familySamples.hasMoreElements()) {
+                write(output, familySamples.nextElement());
+            }
+            output.flush();
+        } finally {
+            output.out = null;
+            output.position = 0;
+        }
+    }
+
+    private void write(Output output, MetricFamilySamples familySamples) throws IOException {
+        Family family = families.get(familySamples.name);
+        if (family == null || !family.isFor(familySamples)) {
+            family = new Family(familySamples);
+            families.put(familySamples.name, family);
+        }
+
+        output.write(family.header);
+
+        for (Sample sample : familySamples.samples) {
+            output.write(family.getPrefix(sample));
+            output.writeDouble(sample.value);
+            if (sample.timestampMs != null) {
+                output.write(' ');
+                output.writeLong(sample.timestampMs);
+            }
+            output.write('\n');
+        }
+
+        family.dropStale(familySamples.samples.size());
+    }
+
+    /**
+     * The encodings of a metric family, shared by concurrent scrapes. Two scrapes encoding a new series at once both
+     * encode it, which is harmless.
+     */
+    private static class Family {
+
+        final String help;
+        final Type type;
+        final byte[] header;
+
+        // by sample name, e.g. the _bucket, _count and _sum of a histogram
+        final ConcurrentMap<String, Series> series = new ConcurrentHashMap<String, Series>();
+
+        Family(MetricFamilySamples familySamples) {
+            this.help = familySamples.help;
+            this.type = familySamples.type;
+            this.header = utf8("# HELP " + familySamples.name + " " + escapeHelp(familySamples.help) + "\n"
+                    + "# TYPE " + familySamples.name + " " + typeString(familySamples.type) + "\n");
+        }
+
+        boolean isFor(MetricFamilySamples familySamples) {
+            return type == familySamples.type && help.equals(familySamples.help);
+        }
+
+        byte[] getPrefix(Sample sample) {
+            Series sampleSeries = series.get(sample.name);
+            if (sampleSeries == null || !sampleSeries.isFor(sample.labelNames)) {
+                sampleSeries = new Series(sample.name, sample.labelNames);
+                series.put(sample.name, sampleSeries);
+            }
+
+            return sampleSeries.getPrefix(sample.labelValues);
+        }
+
+        void dropStale(int written) {
+            int encoded = 0;
+            for (Series sampleSeries : series.values()) {
+                encoded += sampleSeries.prefixes.size();
+            }
+
+            if (encoded > 2 * written + STALE_ENCODINGS_SLACK) {
+                series.clear();
+            }
+        }
+    }
+
+    private static class Series {
+
+        final String name;
+        final List<String> labelNames;
+
+        // the encoded name and labels of the series, up to and including the space before the value
+        final ConcurrentMap<List<String>, byte[]> prefixes = new ConcurrentHashMap<List<String>, byte[]>();
+
+        Series(String name, List<String> labelNames) {
+            this.name = name;
+            this.labelNames = labelNames;
+        }
+
+        boolean isFor(List<String> sampleLabelNames) {
+            return labelNames == sampleLabelNames || labelNames.equals(sampleLabelNames);
+        }
+
+        byte[] getPrefix(List<String> labelValues) {
+            byte[] prefix = prefixes.get(labelValues);
+            if (prefix == null) {
+                prefix = encodePrefix(labelValues);
+                prefixes.put(labelValues, prefix);
+            }
+            return prefix;
+        }
+
+        private byte[] encodePrefix(List<String> labelValues) {
+            StringBuilder prefix = new StringBuilder(name);
+
+            if (!labelNames.isEmpty()) {
+                prefix.append('{');
+                for (int i = 0; i < labelNames.size(); i++) {
+                    if (i > 0) {
+                        prefix.append(',');
+                    }
+                    prefix.append(labelNames.get(i)).append("=\"");
+                    escapeLabelValue(prefix, labelValues.get(i));
+                    prefix.append('"');
+                }
+                prefix.append('}');
+            }
+
+            return utf8(prefix.append(' ').toString());
+        }
+    }
+
+    private static String escapeHelp(String help) {
+        StringBuilder escaped = new StringBuilder(help.length());
+        for (int i = 0; i < help.length(); i++) {
+            char c = help.charAt(i);
+            if (c == '\\') {
+                escaped.append("\\\\");
+            } else if (c == '\n') {
+                escaped.append("\\n");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static void escapeLabelValue(StringBuilder escaped, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                escaped.append("\\\\");
+            } else if (c == '"') {
+                escaped.append("\\\"");
+            } else if (c == '\n') {
+                escaped.append("\\n");
+            } else {
+                escaped.append(c);
+            }
+        }
+    }
+
+    private static String typeString(Type type) {
+        switch (type) {
+            case GAUGE:
+                return "gauge";
+            case COUNTER:
+                return "counter";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "untyped";
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The buffer the lines are written to before being passed to the output stream in blocks.
+     */
+    static class Output {
+
+        private static final byte[] NAN = utf8("NaN");
+        private static final byte[] POSITIVE_INFINITY = utf8("+Inf");
+        private static final byte[] NEGATIVE_INFINITY = utf8("-Inf");
+        private static final byte[] LONG_MIN_VALUE = utf8(String.valueOf(Long.MIN_VALUE));
+
+        // values of at least this magnitude may not be exactly representable as a long scaled by a power of ten
+        private static final double MAX_EXACT = 1L << 53;
+
+        private static final double[] POWERS_OF_TEN = new double[16];
+
+        static {
+            POWERS_OF_TEN[0] = 1;
+            for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+                POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+            }
+        }
+
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int position;
+        OutputStream out;
+
+        void write(int b) throws IOException {
+            if (position == buffer.length) {
+                flush();
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.length - position) {
+                flush();
+
+                if (bytes.length > buffer.length) {
+                    out.write(bytes);
+                    return;
+                }
+            }
+
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeLong(long value) throws IOException {
+            if (value == Long.MIN_VALUE) {
+                write(LONG_MIN_VALUE);
+                return;
+            }
+
+            // at most 20 characters, including the sign
+            if (buffer.length - position < 20) {
+                flush();
+            }
+
+            if (value < 0) {
+                buffer[position++] = '-';
+                value = -value;
+            }
+
+            writeDigits(value, 1);
+        }
+
+        /**
+         * Writes the value with the fewest fractional digits which parse back to exactly the same double. A value
+         * which cannot be written that way within 15 fractional digits (i.e. very large or small) is written as by
+         * {@link Double#toString(double)}.
+         */
+        void writeDouble(double value) throws IOException {
+            if (Double.isNaN(value)) {
+                write(NAN);
+                return;
+            }
+            if (Double.isInfinite(value)) {
+                write(value > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY);
+                return;
+            }
+
+            double magnitude = Math.abs(value);
+
+            for (int scale = 0; scale < POWERS_OF_TEN.length; scale++) {
+                double scaled = magnitude * POWERS_OF_TEN[scale];
+                if (scaled >= MAX_EXACT) {
+                    break;
+                }
+
+                // the long and power of ten are exact, so the division is the double nearest to the decimal written
+                // which is also the double it parses to
+                long digits = Math.round(scaled);
+                if (digits / POWERS_OF_TEN[scale] == magnitude) {
+                    writeDecimal(value < 0, digits, scale);
+                    return;
+                }
+            }
+
+            write(utf8(Double.toString(value)));
+        }
+
+        private void writeDecimal(boolean negative, long digits, int scale) throws IOException {
+            // at most 17 digits, a sign, a point and the zero before it
+            if (buffer.length - position < 20) {
+                flush();
+            }
+
+            if (negative) {
+                buffer[position++] = '-';
+            }
+
+            if (scale == 0) {
+                writeDigits(digits, 1);
+                buffer[position++] = '.';
+                buffer[position++] = '0';
+                return;
+            }
+
+            // at least one integer digit, e.g. 0.05 is written as 005 with the point inserted before the last two
+            writeDigits(digits, scale + 1);
+
+            int point = position - scale;
+            System.arraycopy(buffer, point, buffer, point + 1, scale);
+            buffer[point] = '.';
+            position++;
+        }
+
+        /**
+         * Writes the digits of the non negative value, padded with leading zeros to at least minDigits.
+         */
+        private void writeDigits(long value, int minDigits) {
+            int length = 1;
+            for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+                length++;
+            }
+            length = Math.max(length, minDigits);
+
+            int end = position + length;
+            for (int i = end - 1; i >= position; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            position = end;
+        }
+
+        void flush() throws IOException {
+            if (position > 0) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.fleury.metrics.agent.transformer;
 
 import static java.util.logging.Level.FINER;
 
+import com.fleury.metrics.agent.transformer.ClassHierarchyCache.ClassInfo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashSet;
@@ -9,7 +10,6 @@ import java.util.Set;
 import java.util.logging.Logger;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.Opcodes;
 
 /**
  * We need to override the getCommonSuperClass method of ClassWriter as the default implementation (don't know why)
@@ -28,10 +28,47 @@ public final class ASMClassWriter extends ClassWriter {
     private static final String OBJECT_CLASS_INTERNAL_NAME = "java/lang/Object";
 
     private ClassLoader classLoader;
+    private final ClassHierarchyCache hierarchyCache;
+    // the class written, null if not written from a reader
+    private final String className;
+    private boolean dependent;
 
     public ASMClassWriter(final int flags, final ClassLoader classLoader) {
+        this(flags, classLoader, new ClassHierarchyCache());
+    }
+
+    public ASMClassWriter(final int flags, final ClassLoader classLoader, final ClassHierarchyCache hierarchyCache) {
         super(flags);
         this.classLoader = classLoader;
+        this.hierarchyCache = hierarchyCache;
+        this.className = null;
+    }
+
+    /**
+     * Writes a transformation of the class read by the given reader. Methods passed straight through to this writer
+     * (i.e. the method visitor returned by the class visitor chain is this writer's own) are copied as is from the
+     * reader, including their stack map frames, so frames are only computed for the methods which are changed.
+     */
+    public ASMClassWriter(final ClassReader classReader, final int flags, final ClassLoader classLoader,
+            final ClassHierarchyCache hierarchyCache) {
+        super(classReader, flags);
+        this.classLoader = classLoader;
+        this.hierarchyCache = hierarchyCache;
+        this.className = classReader.getClassName();
+    }
+
+    /**
+     * @return true if the class written depends on other classes, i.e. their hierarchy was used to compute frames or
+     * they were read (e.g. to resolve label property getters)
+     */
+    public boolean isDependent() {
+        return dependent;
+    }
+
+    private void addDependency(final String classInternalName) {
+        if (!classInternalName.equals(className)) {
+            dependent = true;
+        }
     }
 
     @Override
@@ -52,69 +89,69 @@ public final class ASMClassWriter extends ClassWriter {
             return classInternalName1;
         }
 
-        final ClassReader classReader1 = getClassReader(classInternalName1);
-        if (classReader1 == null) {
+        final ClassInfo classInfo1 = getClassInfo(classInternalName1);
+        if (classInfo1 == null) {
             LOGGER.log(FINER, "Skip getCommonSuperClass(). not found class {0}", classInternalName1);
             return OBJECT_CLASS_INTERNAL_NAME;
         }
 
-        final ClassReader classReader2 = getClassReader(classInternalName2);
-        if (classReader2 == null) {
+        final ClassInfo classInfo2 = getClassInfo(classInternalName2);
+        if (classInfo2 == null) {
             LOGGER.log(FINER, "Skip getCommonSuperClass(). not found class {0}", classInternalName2);
             return OBJECT_CLASS_INTERNAL_NAME;
         }
 
         // interface.
-        if (isInterface(classReader1)) {
+        if (isInterface(classInfo1)) {
             // <interface, class> or <interface, interface>
-            return getCommonInterface(classReader1, classReader2);
+            return getCommonInterface(classInfo1, classInfo2);
         }
 
         // interface.
-        if (isInterface(classReader2)) {
+        if (isInterface(classInfo2)) {
             // <class, interface>
-            return getCommonInterface(classReader2, classReader1);
+            return getCommonInterface(classInfo2, classInfo1);
         }
 
         // class.
         // <class, class>
-        return getCommonClass(classReader1, classReader2);
+        return getCommonClass(classInfo1, classInfo2);
     }
 
-    private boolean isInterface(final ClassReader classReader) {
-        return (classReader.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+    private boolean isInterface(final ClassInfo classInfo) {
+        return classInfo.isInterface();
     }
 
     // <interface, interface> or <interface, class>
-    private String getCommonInterface(final ClassReader classReader1, final ClassReader classReader2) {
+    private String getCommonInterface(final ClassInfo classInfo1, final ClassInfo classInfo2) {
         final Set<String> interfaceHierarchy = new HashSet<String>();
-        traversalInterfaceHierarchy(interfaceHierarchy, classReader1);
+        traversalInterfaceHierarchy(interfaceHierarchy, classInfo1);
 
-        if (isInterface(classReader2)) {
-            if (interfaceHierarchy.contains(classReader2.getClassName())) {
-                return classReader2.getClassName();
+        if (isInterface(classInfo2)) {
+            if (interfaceHierarchy.contains(classInfo2.getName())) {
+                return classInfo2.getName();
             }
         }
 
-        final String interfaceInternalName = getImplementedInterface(interfaceHierarchy, classReader2);
+        final String interfaceInternalName = getImplementedInterface(interfaceHierarchy, classInfo2);
         if (interfaceInternalName != null) {
             return interfaceInternalName;
         }
         return OBJECT_CLASS_INTERNAL_NAME;
     }
 
-    private void traversalInterfaceHierarchy(final Set<String> interfaceHierarchy, final ClassReader classReader) {
-        if (classReader != null && interfaceHierarchy.add(classReader.getClassName())) {
-            for (String interfaceInternalName : classReader.getInterfaces()) {
-                traversalInterfaceHierarchy(interfaceHierarchy, getClassReader(interfaceInternalName));
+    private void traversalInterfaceHierarchy(final Set<String> interfaceHierarchy, final ClassInfo classInfo) {
+        if (classInfo != null && interfaceHierarchy.add(classInfo.getName())) {
+            for (String interfaceInternalName : classInfo.getInterfaces()) {
+                traversalInterfaceHierarchy(interfaceHierarchy, getClassInfo(interfaceInternalName));
             }
         }
     }
 
-    private String getImplementedInterface(final Set<String> interfaceHierarchy, final ClassReader classReader) {
-        ClassReader cr = classReader;
-        while (cr != null) {
-            final String[] interfaceInternalNames = cr.getInterfaces();
+    private String getImplementedInterface(final Set<String> interfaceHierarchy, final ClassInfo classInfo) {
+        ClassInfo info = classInfo;
+        while (info != null) {
+            final String[] interfaceInternalNames = info.getInterfaces();
             for (String name : interfaceInternalNames) {
                 if (name != null && interfaceHierarchy.contains(name)) {
                     return name;
@@ -122,34 +159,34 @@ public final class ASMClassWriter extends ClassWriter {
             }
 
             for (String name : interfaceInternalNames) {
-                final String interfaceInternalName = getImplementedInterface(interfaceHierarchy, getClassReader(name));
+                final String interfaceInternalName = getImplementedInterface(interfaceHierarchy, getClassInfo(name));
                 if (interfaceInternalName != null) {
                     return interfaceInternalName;
                 }
             }
 
-            final String superClassInternalName = cr.getSuperName();
+            final String superClassInternalName = info.getSuperName();
             if (superClassInternalName == null || superClassInternalName.equals(OBJECT_CLASS_INTERNAL_NAME)) {
                 break;
             }
-            cr = getClassReader(superClassInternalName);
+            info = getClassInfo(superClassInternalName);
         }
 
         return null;
     }
 
-    private String getCommonClass(final ClassReader classReader1, final ClassReader classReader2) {
+    private String getCommonClass(final ClassInfo classInfo1, final ClassInfo classInfo2) {
         final Set<String> classHierarchy = new HashSet<String>();
-        classHierarchy.add(classReader1.getClassName());
-        classHierarchy.add(classReader2.getClassName());
+        classHierarchy.add(classInfo1.getName());
+        classHierarchy.add(classInfo2.getName());
 
-        String superClassInternalName1 = classReader1.getSuperName();
+        String superClassInternalName1 = classInfo1.getSuperName();
         if (!classHierarchy.add(superClassInternalName1)) {
             // find common super class.
             return superClassInternalName1;
         }
 
-        String superClassInternalName2 = classReader2.getSuperName();
+        String superClassInternalName2 = classInfo2.getSuperName();
         if (!classHierarchy.add(superClassInternalName2)) {
             // find common super class.
             return superClassInternalName2;
@@ -180,18 +217,24 @@ public final class ASMClassWriter extends ClassWriter {
 
 
     private String getSuperClassInternalName(final String classInternalName) {
-        final ClassReader classReader = getClassReader(classInternalName);
-        if (classReader == null) {
+        final ClassInfo classInfo = getClassInfo(classInternalName);
+        if (classInfo == null) {
             return null;
         }
 
-        return classReader.getSuperName();
+        return classInfo.getSuperName();
+    }
+
+    private ClassInfo getClassInfo(final String classInternalName) {
+        addDependency(classInternalName);
+        return hierarchyCache.get(classLoader, classInternalName);
     }
 
-    private ClassReader getClassReader(final String classInternalName) {
+    public ClassReader getClassReader(final String classInternalName) {
         if (classInternalName == null || classLoader == null) {
             return null;
         }
+        addDependency(classInternalName);
 
         InputStream in = null;
         try {
@@ -201,6 +244,8 @@ public final class ASMClassWriter extends ClassWriter {
             }
         } catch (IOException ignored) {
             // not found class.
+        } catch (IllegalArgumentException ignored) {
+            // class file version newer than ASM supports.
         } finally {
             if (in != null) {
                 try {
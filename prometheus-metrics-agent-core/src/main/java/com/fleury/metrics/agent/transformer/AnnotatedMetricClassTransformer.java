@@ -1,11 +1,16 @@
 package com.fleury.metrics.agent.transformer;
 
 import static java.util.logging.Level.WARNING;
-import static org.objectweb.asm.ClassReader.EXPAND_FRAMES;
+import static org.objectweb.asm.ClassReader.SKIP_CODE;
+import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
+import static org.objectweb.asm.ClassReader.SKIP_FRAMES;
 import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
 import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
 
 import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.reporter.SelfMetrics;
+import com.fleury.metrics.agent.transformer.util.ConstantPoolUtil;
+import com.fleury.metrics.agent.transformer.util.PropertyGetterResolver;
 import com.fleury.metrics.agent.transformer.visitors.AnnotationClassVisitor;
 import com.fleury.metrics.agent.transformer.visitors.MetricClassVisitor;
 import java.lang.instrument.ClassFileTransformer;
@@ -14,7 +19,6 @@ import java.security.ProtectionDomain;
 import java.util.logging.Logger;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.ClassWriter;
 
 /**
  *
@@ -24,16 +28,99 @@ public class AnnotatedMetricClassTransformer implements ClassFileTransformer {
 
     private static final Logger LOGGER = Logger.getLogger(AnnotatedMetricClassTransformer.class.getName());
 
-    private final Configuration config;
+    private volatile Configuration config;
     private final boolean propagateExceptions;
+    private final boolean retransformable;
+    private final boolean dynamic;
+    private final ClassHierarchyCache hierarchyCache;
+    private final TransformCache transformCache;
 
     public AnnotatedMetricClassTransformer(Configuration config) {
         this(config, false);
     }
 
     public AnnotatedMetricClassTransformer(Configuration config, boolean propagateExceptions) {
+        this(config, propagateExceptions, ConfigurationReloader.isEnabled(config.getSystem()));
+    }
+
+    /**
+     * @param retransformable true to instrument classes so they can be retransformed, i.e. without adding fields or
+     * methods, as needed to reload the configuration or attach to a running JVM
+     */
+    public AnnotatedMetricClassTransformer(Configuration config, boolean propagateExceptions,
+            boolean retransformable) {
+        this(config, propagateExceptions,
+                createTransformCache(config, retransformable || isDynamic(config)), retransformable);
+    }
+
+    /**
+     * @param transformCache the cache of transformed classes or null to transform every class
+     */
+    public AnnotatedMetricClassTransformer(Configuration config, boolean propagateExceptions,
+            TransformCache transformCache) {
+        this(config, propagateExceptions, transformCache, ConfigurationReloader.isEnabled(config.getSystem()));
+    }
+
+    /**
+     * @param transformCache the cache of transformed classes or null to transform every class, not used if
+     * retransformable or dynamic
+     */
+    public AnnotatedMetricClassTransformer(Configuration config, boolean propagateExceptions,
+            TransformCache transformCache, boolean retransformable) {
         this.config = config;
         this.propagateExceptions = propagateExceptions;
+        this.retransformable = retransformable;
+        this.dynamic = isDynamic(config);
+        this.hierarchyCache = createHierarchyCache(config);
+        this.transformCache = retransformable || dynamic ? null : transformCache;
+    }
+
+    /**
+     * @return true if metrics are to be switchable at runtime (dynamicMetrics), which requires a Java 7+ JVM
+     */
+    public static boolean isDynamic(Configuration config) {
+        if (!Boolean.parseBoolean(String.valueOf(config.getSystem().get("dynamicMetrics")))) {
+            return false;
+        }
+
+        try {
+            Class.forName("java.lang.invoke.MutableCallSite");
+            return true;
+        } catch (ClassNotFoundException e) {
+            LOGGER.warning("Dynamic metrics require Java 7 or later");
+            return false;
+        }
+    }
+
+    /**
+     * Classes instrumented to be retransformable or dynamic refer to their metrics by indexes only valid for the
+     * current run, so are never cached.
+     */
+    private static TransformCache createTransformCache(Configuration config, boolean byIndex) {
+        if (byIndex) {
+            if (config.getSystem().get("transformCacheDir") != null) {
+                LOGGER.warning("The transform cache is disabled as classes refer to their metrics by index");
+            }
+            return null;
+        }
+
+        return TransformCache.create(config.getSystem());
+    }
+
+    private static ClassHierarchyCache createHierarchyCache(Configuration config) {
+        Object maxSize = config.getSystem().get("classHierarchyCacheSize");
+
+        return maxSize == null ?
+                new ClassHierarchyCache() :
+                new ClassHierarchyCache(Integer.parseInt(String.valueOf(maxSize)));
+    }
+
+    /**
+     * Replaces the configuration classes are transformed with from now on, e.g. before retransforming the classes the
+     * metrics of which it changes.
+     */
+    public void setConfiguration(Configuration config) {
+        this.config = config;
     }
 
     @Override
@@ -41,24 +128,65 @@ public class AnnotatedMetricClassTransformer implements ClassFileTransformer {
                             Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
                             byte[] classfileBuffer) throws IllegalClassFormatException {
 
+        long start = System.nanoTime();
+        try {
+            SelfMetrics.CLASSES_SEEN.inc();
+
+            byte[] transformed = transform(loader, className, classfileBuffer);
+            if (transformed != classfileBuffer) {
+                SelfMetrics.CLASSES_INSTRUMENTED.inc();
+            }
+
+            return transformed;
+        } finally {
+            SelfMetrics.recordTransform(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] transform(ClassLoader loader, String className, byte[] classfileBuffer) {
+        // the same configuration throughout even if replaced meanwhile
+        Configuration config = this.config;
+
         try {
-            ClassReader cr = new ClassReader(classfileBuffer);
+            if (className == null || !config.isEligible(className)) {
+                SelfMetrics.CLASSES_PREFILTERED.inc();
+                return classfileBuffer;
+            }
 
-            // Scan for annotations in a pre-pass phase so we have all the metric information we need when performing
-            // the actual instrumentation. This allows us to e.g. add Class Fields if desired for metrics which cannot
-            // be done otherwise (as visitAnnotation happens after visitFieldInsn in ClassVisitor).
-            scanMetricAnnotations(loader, cr);
+            // Most classes carry no metric annotations and have no configured metrics, which can be told from the
+            // constant pool alone without parsing the class
+            int constants = ConstantPoolUtil.scan(classfileBuffer);
+            boolean mayBeAnnotated = (constants & ConstantPoolUtil.METRIC_ANNOTATIONS) != 0;
+            if (!mayBeAnnotated && !config.isMetric(className)) {
+                SelfMetrics.CLASSES_PREFILTERED.inc();
+                return classfileBuffer;
+            }
+
+            if (transformCache == null) {
+                return instrument(config, loader, className, classfileBuffer, constants, null);
+            }
 
-            // rewrite only if metric found & white listed or not blacklisted
-            if (config.isMetric(className) && config.isWhiteListed(className) && !config.isBlackListed(className)) {
-                ClassWriter cw = new ASMClassWriter(COMPUTE_FRAMES | COMPUTE_MAXS, loader);
-                ClassVisitor cv = new MetricClassVisitor(cw, config);
-                cr.accept(cv, EXPAND_FRAMES);
+            // the classes left are transformed the same way on every run given the same class file and configured
+            // metrics (those from annotations being part of the class file)
+            long key = transformCache.key(className, config.describeMetrics(className), classfileBuffer);
 
-                return cw.toByteArray();
+            byte[] cached = transformCache.get(key, classfileBuffer.length);
+            if (cached != null) {
+                return cached == TransformCache.UNCHANGED ? classfileBuffer : cached;
             }
 
+            // the key only covers this class, so a transformation depending on other classes (e.g. the getters of
+            // label properties or the hierarchy merged by frames) is not cached as they may change between runs
+            boolean[] dependent = new boolean[1];
+            byte[] transformed = instrument(config, loader, className, classfileBuffer, constants, dependent);
+            if (!dependent[0]) {
+                transformCache.put(key, classfileBuffer.length, transformed == classfileBuffer ? null : transformed);
+            }
+
+            return transformed;
         } catch (RuntimeException e) {
+            SelfMetrics.TRANSFORM_FAILURES.inc();
+
             if (propagateExceptions) {
                 throw e; //useful for testing & fail fast setups
             }
@@ -70,7 +198,52 @@ public class AnnotatedMetricClassTransformer implements ClassFileTransformer {
         return classfileBuffer;
     }
 
-    private void scanMetricAnnotations(ClassLoader loader, ClassReader cr) {
-        cr.accept(new AnnotationClassVisitor(new ASMClassWriter(0, loader), config), 0);
+    /**
+     * @param dependent set to whether the transformation depended on other classes, if not null
+     */
+    private byte[] instrument(Configuration config, ClassLoader loader, String className, byte[] classfileBuffer,
+            int constants, boolean[] dependent) {
+        ClassReader cr = new ClassReader(classfileBuffer);
+        hierarchyCache.add(loader, cr);
+
+        // classes instrumented ahead of time (or already by us) already hold their metrics
+        if ((constants & ConstantPoolUtil.INSTRUMENTED) != 0 && InstrumentedAttribute.isPresent(cr)) {
+            return classfileBuffer;
+        }
+
+        // Scan for annotations in a pre-pass phase so we have all the metric information we need when performing
+        // the actual instrumentation. This allows us to e.g. add Class Fields if desired for metrics which cannot
+        // be done otherwise (as visitAnnotation happens after visitFieldInsn in ClassVisitor). The same reader is
+        // used for both passes.
+        if ((constants & ConstantPoolUtil.METRIC_ANNOTATIONS) != 0) {
+            SelfMetrics.CLASSES_SCANNED.inc();
+            scanMetricAnnotations(config, cr);
+        }
+
+        // rewrite only if metric found (white/black lists checked by the caller)
+        if (config.isMetric(className)) {
+            // methods without metrics are copied as is from the reader, only the rewritten methods have their
+            // frames computed (the existing frames are skipped rather than read and expanded)
+            ASMClassWriter cw = new ASMClassWriter(cr, COMPUTE_FRAMES | COMPUTE_MAXS, loader, hierarchyCache);
+            ClassVisitor cv = new MetricClassVisitor(cw, config, new PropertyGetterResolver(cw),
+                    retransformable, dynamic);
+            cr.accept(cv, SKIP_FRAMES);
+
+            byte[] transformed = cw.toByteArray();
+            if (dependent != null) {
+                dependent[0] = cw.isDependent();
+            }
+            return transformed;
+        }
+
+        return classfileBuffer;
+    }
+
+    /**
+     * Only the method annotations are read, the method bodies, debug information and frames are skipped and nothing is
+     * written.
+     */
+    private void scanMetricAnnotations(Configuration config, ClassReader cr) {
+        cr.accept(new AnnotationClassVisitor(null, config), SKIP_CODE | SKIP_DEBUG | SKIP_FRAMES);
     }
 }
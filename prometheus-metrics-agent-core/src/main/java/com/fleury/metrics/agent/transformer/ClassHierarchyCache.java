@@ -0,0 +1,297 @@
+package com.fleury.metrics.agent.transformer;
+
+import static java.util.logging.Level.FINER;
+
+import com.fleury.metrics.agent.reporter.SelfMetrics;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * The superclass, interfaces and access flags of classes per class loader, as needed to compute frames, weakly keyed
+ * so class loaders can still be unloaded. Lookups take no lock; once a class loader holds the maximum number of
+ * classes, adding another evicts one not looked up since the eviction last passed it (CLOCK).
+ *
+ * @author Will Fleury
+ */
+public class ClassHierarchyCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ClassHierarchyCache.class.getName());
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private static final ClassInfo NOT_FOUND = new ClassInfo(null, null, new String[0], 0);
+
+    private final ConcurrentMap<Object, Classes> loaders = new ConcurrentHashMap<Object, Classes>();
+    private final ReferenceQueue<ClassLoader> unloaded = new ReferenceQueue<ClassLoader>();
+
+    private final int maxSize;
+
+    public ClassHierarchyCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public ClassHierarchyCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the class as resolved by the class loader or null if it cannot be found
+     */
+    public ClassInfo get(ClassLoader loader, String classInternalName) {
+        if (classInternalName == null || loader == null) {
+            return null;
+        }
+
+        Classes classes = getClasses(loader);
+
+        ClassInfo info = classes.get(classInternalName);
+        if (info != null) {
+            SelfMetrics.CLASS_HIERARCHY_CACHE_HITS.inc();
+        } else {
+            SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.inc();
+
+            long start = System.nanoTime();
+            info = load(loader, classInternalName);
+            SelfMetrics.CLASS_HIERARCHY_LOAD_SECONDS.inc((System.nanoTime() - start) / 1E9);
+
+            classes.put(classInternalName, info);
+        }
+
+        return info == NOT_FOUND ? null : info;
+    }
+
+    /**
+     * Adds a class read by the transformer so later lookups of it from the class loader need not read it again.
+     */
+    public void add(ClassLoader loader, ClassReader cr) {
+        if (loader == null) {
+            return;
+        }
+
+        getClasses(loader).put(cr.getClassName(), ClassInfo.from(cr));
+    }
+
+    private Classes getClasses(ClassLoader loader) {
+        Classes classes = loaders.get(new LoaderLookup(loader));
+        if (classes != null) {
+            return classes;
+        }
+
+        purgeUnloaded();
+
+        classes = new Classes(maxSize);
+        Classes existing = loaders.putIfAbsent(new LoaderReference(loader, unloaded), classes);
+        return existing == null ? classes : existing;
+    }
+
+    private void purgeUnloaded() {
+        Reference<? extends ClassLoader> reference;
+        while ((reference = unloaded.poll()) != null) {
+            loaders.remove(reference);
+        }
+    }
+
+    /**
+     * The classes of one class loader. Entries are kept in a queue in the order they were added, each marked when
+     * looked up; eviction takes entries from the head, giving marked ones a second chance at the tail.
+     */
+    private static class Classes {
+
+        private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+        private final Queue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final int maxSize;
+
+        Classes(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        ClassInfo get(String classInternalName) {
+            Entry entry = entries.get(classInternalName);
+            if (entry == null) {
+                return null;
+            }
+
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            return entry.info;
+        }
+
+        void put(String classInternalName, ClassInfo info) {
+            Entry entry = new Entry(classInternalName, info);
+
+            Entry existing = entries.putIfAbsent(classInternalName, entry);
+            if (existing != null) {
+                existing.info = info;
+                return;
+            }
+
+            clock.offer(entry);
+            if (size.incrementAndGet() > maxSize) {
+                evict();
+            }
+        }
+
+        private void evict() {
+            while (size.get() > maxSize) {
+                Entry entry = clock.poll();
+                if (entry == null) {
+                    return;
+                }
+
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    clock.offer(entry);
+                } else if (entries.remove(entry.name, entry)) {
+                    size.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+
+        final String name;
+        volatile ClassInfo info;
+        volatile boolean referenced;
+
+        Entry(String name, ClassInfo info) {
+            this.name = name;
+            this.info = info;
+        }
+    }
+
+    /**
+     * Key of a class loader in the cache, which does not keep it from being unloaded. Equal to the key used to look
+     * the class loader up while it is still reachable, and only to itself once cleared so it can be removed.
+     */
+    private static class LoaderReference extends WeakReference<ClassLoader> {
+
+        private final int hash;
+
+        LoaderReference(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            this.hash = System.identityHashCode(loader);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            ClassLoader loader = get();
+            if (loader == null) {
+                return false;
+            }
+            if (o instanceof LoaderLookup) {
+                return ((LoaderLookup) o).loader == loader;
+            }
+            return o instanceof LoaderReference && ((LoaderReference) o).get() == loader;
+        }
+    }
+
+    /**
+     * Key to look a class loader up by without allocating a reference to it.
+     */
+    private static class LoaderLookup {
+
+        private final ClassLoader loader;
+
+        LoaderLookup(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(loader);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof LoaderLookup) {
+                return ((LoaderLookup) o).loader == loader;
+            }
+            return o instanceof LoaderReference && ((LoaderReference) o).get() == loader;
+        }
+    }
+
+    private static ClassInfo load(ClassLoader loader, String classInternalName) {
+        InputStream in = null;
+        try {
+            in = loader.getResourceAsStream(classInternalName + ".class");
+            if (in != null) {
+                return ClassInfo.from(new ClassReader(in));
+            }
+        } catch (IOException e) {
+            LOGGER.log(FINER, "Unable to read class " + classInternalName, e);
+        } catch (IllegalArgumentException e) {
+            // class file version newer than ASM supports.
+            LOGGER.log(FINER, "Unable to read class " + classInternalName, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        return NOT_FOUND;
+    }
+
+    public static class ClassInfo {
+
+        private final String name;
+        private final String superName;
+        private final String[] interfaces;
+        private final int access;
+
+        ClassInfo(String name, String superName, String[] interfaces, int access) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.access = access;
+        }
+
+        static ClassInfo from(ClassReader cr) {
+            return new ClassInfo(cr.getClassName(), cr.getSuperName(), cr.getInterfaces(), cr.getAccess());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getSuperName() {
+            return superName;
+        }
+
+        public String[] getInterfaces() {
+            return interfaces;
+        }
+
+        public int getAccess() {
+            return access;
+        }
+
+        public boolean isInterface() {
+            return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.fleury.metrics.agent.transformer;
+
+import static java.util.logging.Level.WARNING;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.reporter.MetricHandles;
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Polls the agent configuration file and, when its metrics change, retransforms the loaded classes whose configured
+ * metrics changed.
+ *
+ * @author Will Fleury
+ */
+public class ConfigurationReloader implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigurationReloader.class.getName());
+
+    private final File file;
+    private final AnnotatedMetricClassTransformer transformer;
+    private final Retransformer retransformer;
+    private final long intervalMillis;
+
+    private long lastModified;
+    private long length;
+    private Map<String, String> configuredMetrics;
+    private Set<String> configuredNames;
+
+    /**
+     * @param config the configuration loaded from the file, before any class was scanned for annotations
+     */
+    public ConfigurationReloader(String filename, Configuration config, AnnotatedMetricClassTransformer transformer,
+            Instrumentation instrumentation) {
+        this.file = new File(filename);
+        this.transformer = transformer;
+        this.retransformer = new Retransformer(instrumentation, config.getSystem());
+        this.intervalMillis = Retransformer.getLong(config.getSystem(), "configReloadInterval", 0) * 1000;
+
+        this.lastModified = file.lastModified();
+        this.length = file.length();
+        this.configuredMetrics = describeMetrics(config);
+        this.configuredNames = metricNames(config);
+    }
+
+    /**
+     * @return true if the configuration is to be reloaded, i.e. configReloadInterval (in seconds) is set
+     */
+    public static boolean isEnabled(Map<String, Object> system) {
+        return Retransformer.getLong(system, "configReloadInterval", 0) > 0;
+    }
+
+    public Thread start() {
+        Thread thread = new Thread(this, "metrics-agent-config-reloader");
+        thread.setDaemon(true);
+        thread.start();
+
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                reloadIfModified();
+            } catch (RuntimeException e) {
+                LOGGER.log(WARNING, "Failed to reload the configuration " + file, e);
+            }
+        }
+    }
+
+    /**
+     * A file which cannot be read is not retried until it is modified again.
+     *
+     * @return true if the file was modified since last loaded
+     */
+    public boolean reloadIfModified() {
+        long modified = file.lastModified();
+        long size = file.length();
+
+        if (modified == lastModified && size == length) {
+            return false;
+        }
+
+        lastModified = modified;
+        length = size;
+
+        reload(Configuration.createConfig(file.getPath()));
+
+        return true;
+    }
+
+    /**
+     * @param updated the configuration loaded from the file, before any class was scanned for annotations
+     */
+    public synchronized void reload(Configuration updated) {
+        Map<String, String> updatedMetrics = describeMetrics(updated);
+        Set<String> updatedNames = metricNames(updated);
+
+        Set<String> changed = new HashSet<String>();
+        for (String className : union(configuredMetrics.keySet(), updatedMetrics.keySet())) {
+            if (!describe(configuredMetrics, className).equals(describe(updatedMetrics, className))) {
+                changed.add(className);
+            }
+        }
+
+        // the classes retransformed (and loaded from now on) take their metrics from the updated configuration
+        transformer.setConfiguration(updated);
+        int retransformed = retransformer.retransform(retransformer.findLoadedClasses(changed));
+        MetricHandles.releaseReplaced();
+
+        int unregistered = 0;
+        for (String name : configuredNames) {
+            if (!updatedNames.contains(name) && MetricHandles.unregister(name)) {
+                unregistered++;
+            }
+        }
+
+        configuredMetrics = updatedMetrics;
+        configuredNames = updatedNames;
+
+        LOGGER.info("Reloaded configuration " + file + ", metrics of " + changed.size() + " classes changed, "
+                + retransformed + " loaded classes retransformed, " + unregistered + " metrics unregistered");
+    }
+
+    private static Map<String, String> describeMetrics(Configuration config) {
+        Map<String, String> described = new HashMap<String, String>();
+        for (String className : config.getMetricClassNames()) {
+            described.put(className, config.describeMetrics(className));
+        }
+        return described;
+    }
+
+    private static Set<String> metricNames(Configuration config) {
+        Set<String> names = new HashSet<String>();
+        for (String className : config.getMetricClassNames()) {
+            for (Metric metric : config.findMetrics(className)) {
+                names.add(metric.getName());
+            }
+        }
+        return names;
+    }
+
+    private static String describe(Map<String, String> described, String className) {
+        String description = described.get(className);
+        return description == null ? "" : description;
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> union = new HashSet<String>(a);
+        union.addAll(b);
+        return union;
+    }
+}
@@ -0,0 +1,57 @@
+package com.fleury.metrics.agent.transformer;
+
+import static org.objectweb.asm.ClassReader.SKIP_CODE;
+import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
+import static org.objectweb.asm.ClassReader.SKIP_FRAMES;
+import static org.objectweb.asm.Opcodes.ASM5;
+
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ByteVector;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+
+/**
+ * An empty class attribute marking a class as already instrumented, by the agent or ahead of time, so the transformer
+ * leaves it as it is.
+ *
+ * @author Will Fleury
+ */
+public class InstrumentedAttribute extends Attribute {
+
+    public static final String NAME = "com/fleury/metrics/agent/Instrumented";
+
+    public InstrumentedAttribute() {
+        super(NAME);
+    }
+
+    /**
+     * @return true if the class carries the attribute. Only the class attributes are of interest so the method bodies,
+     * debug information and frames are skipped.
+     */
+    public static boolean isPresent(ClassReader cr) {
+        final boolean[] present = new boolean[1];
+
+        cr.accept(new ClassVisitor(ASM5) {
+            @Override
+            public void visitAttribute(Attribute attr) {
+                if (attr instanceof InstrumentedAttribute) {
+                    present[0] = true;
+                }
+            }
+        }, new Attribute[] {new InstrumentedAttribute()}, SKIP_CODE | SKIP_DEBUG | SKIP_FRAMES);
+
+        return present[0];
+    }
+
+    @Override
+    protected Attribute read(ClassReader cr, int off, int len, char[] buf, int codeOff, Label[] labels) {
+        return new InstrumentedAttribute();
+    }
+
+    @Override
+    protected ByteVector write(ClassWriter cw, byte[] code, int len, int maxStack, int maxLocals) {
+        return new ByteVector();
+    }
+}
@@ -0,0 +1,167 @@
+package com.fleury.metrics.agent.transformer;
+
+import static com.fleury.metrics.agent.config.Configuration.dotToSlash;
+import static java.util.logging.Level.FINER;
+import static java.util.logging.Level.WARNING;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.transformer.util.ConstantPoolUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Retransforms loaded classes in bounded batches, pausing between them, to bound how long the application is stopped
+ * at a safepoint for. The batches are retransformed one at a time as each is redefined at its own safepoint, which
+ * batches retransformed concurrently would run back to back.
+ *
+ * @author Will Fleury
+ */
+public class Retransformer {
+
+    private static final Logger LOGGER = Logger.getLogger(Retransformer.class.getName());
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final long DEFAULT_BATCH_PAUSE_MILLIS = 100;
+
+    private final Instrumentation instrumentation;
+    private final int batchSize;
+    private final long batchPauseMillis;
+
+    public Retransformer(Instrumentation instrumentation, Map<String, Object> system) {
+        this.instrumentation = instrumentation;
+        this.batchSize = (int) getLong(system, "retransformBatchSize", DEFAULT_BATCH_SIZE);
+        this.batchPauseMillis = getLong(system, "retransformBatchPause", DEFAULT_BATCH_PAUSE_MILLIS);
+
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("retransformBatchSize must be at least 1, was " + batchSize);
+        }
+        if (batchPauseMillis < 0) {
+            throw new IllegalArgumentException("retransformBatchPause must not be negative, was " + batchPauseMillis);
+        }
+    }
+
+    static long getLong(Map<String, Object> system, String key, long defaultValue) {
+        Object value = system.get(key);
+        return value == null ? defaultValue : Long.parseLong(String.valueOf(value));
+    }
+
+    /**
+     * A class may be loaded by several class loaders, each of which is returned.
+     *
+     * @return the loaded classes of the given names
+     */
+    public List<Class<?>> findLoadedClasses(Set<String> classNames) {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        if (classNames.isEmpty()) {
+            return classes;
+        }
+
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (classNames.contains(dotToSlash(clazz.getName())) && instrumentation.isModifiableClass(clazz)) {
+                classes.add(clazz);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Like the transformer, the classes without configured metrics are only read up to their constant pool to tell if
+     * they may carry metric annotations.
+     *
+     * @return the loaded classes the configuration may have metrics for
+     */
+    public List<Class<?>> findLoadedClasses(Configuration config) {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            String className = dotToSlash(clazz.getName());
+
+            if (!config.isEligible(className) || !instrumentation.isModifiableClass(clazz)) {
+                continue;
+            }
+
+            if (config.isMetric(className) || mayHaveMetricAnnotations(clazz.getClassLoader(), className)) {
+                classes.add(clazz);
+            }
+        }
+        return classes;
+    }
+
+    private static boolean mayHaveMetricAnnotations(ClassLoader loader, String className) {
+        InputStream in = null;
+        try {
+            in = loader == null ?
+                    ClassLoader.getSystemResourceAsStream(className + ".class") :
+                    loader.getResourceAsStream(className + ".class");
+
+            return in != null && (ConstantPoolUtil.scan(readFully(in)) & ConstantPoolUtil.METRIC_ANNOTATIONS) != 0;
+        } catch (IOException e) {
+            LOGGER.log(FINER, "Unable to read class " + className, e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A batch failing to be retransformed is logged and the others still retransformed.
+     *
+     * @return the number of classes retransformed
+     */
+    public int retransform(List<Class<?>> classes) {
+        List<List<Class<?>>> batches = new ArrayList<List<Class<?>>>();
+        for (int i = 0; i < classes.size(); i += batchSize) {
+            batches.add(classes.subList(i, Math.min(i + batchSize, classes.size())));
+        }
+
+        int retransformed = 0;
+        for (int i = 0; i < batches.size(); i++) {
+            if (i > 0 && !pause()) {
+                break;
+            }
+            retransformed += retransformBatch(batches.get(i));
+        }
+        return retransformed;
+    }
+
+    private int retransformBatch(List<Class<?>> batch) {
+        try {
+            instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+            return batch.size();
+        } catch (Exception e) {
+            LOGGER.log(WARNING, "Failed to retransform " + batch, e);
+            return 0;
+        }
+    }
+
+    private boolean pause() {
+        try {
+            Thread.sleep(batchPauseMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
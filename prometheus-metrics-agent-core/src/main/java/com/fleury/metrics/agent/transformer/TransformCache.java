@@ -0,0 +1,478 @@
+package com.fleury.metrics.agent.transformer;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import com.fleury.metrics.agent.reporter.SelfMetrics;
+import com.fleury.metrics.agent.transformer.util.HashUtil;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Transformed class bytes kept on disk across restarts, keyed by a hash of the class file, its configured metrics and
+ * the agent build. The index is a memory mapped hash table and the bytes are appended to a data file.
+ *
+ * @author Will Fleury
+ */
+public class TransformCache {
+
+    private static final Logger LOGGER = Logger.getLogger(TransformCache.class.getName());
+
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_SLOTS = 1 << 16;
+
+    /**
+     * Returned for classes cached as not needing transformation.
+     */
+    public static final byte[] UNCHANGED = new byte[0];
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x4D414743;
+    private static final int FORMAT = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int FORMAT_OFFSET = 4;
+    private static final int SLOTS_OFFSET = 8;
+    private static final int GENERATION_OFFSET = 12;
+    private static final int DATA_LENGTH_OFFSET = 16;
+
+    private static final int SLOT_SIZE = 32;
+    private static final int KEY_OFFSET = 0;
+    private static final int DATA_OFFSET = 8;
+    private static final int LENGTH_OFFSET = 16;
+    private static final int ORIGINAL_LENGTH_OFFSET = 20;
+    private static final int CRC_OFFSET = 24;
+    private static final int USED_OFFSET = 28;
+
+    private static final long EMPTY = 0;
+    private static final long DELETED = 1;
+    private static final long NO_DATA = -1;
+
+    private static final long AGENT_VERSION = agentVersion();
+
+    private final RandomAccessFile indexFile;
+    private final RandomAccessFile dataFile;
+    private final FileChannel data;
+    private final FileLock lock;
+    private final MappedByteBuffer index;
+    private final int slots;
+    private final long maxSize;
+    private final int generation;
+
+    private long dataLength;
+    private int occupied;
+
+    /**
+     * @return the cache configured by transformCacheDir (and optionally transformCacheSize) in the system
+     * configuration, or null if there is none or it can't be used
+     */
+    public static TransformCache create(Map<String, Object> system) {
+        Object directory = system.get("transformCacheDir");
+        if (directory == null) {
+            return null;
+        }
+
+        Object maxSize = system.get("transformCacheSize");
+
+        try {
+            return open(new File(String.valueOf(directory)),
+                    maxSize == null ? DEFAULT_MAX_SIZE : Long.parseLong(String.valueOf(maxSize)),
+                    DEFAULT_SLOTS);
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Unable to open transform cache " + directory + ", classes will not be cached", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the cache or null if it is in use by another JVM
+     */
+    public static TransformCache open(File directory, long maxSize, int slots) throws IOException {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("Slots must be a power of two: " + slots);
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+
+        RandomAccessFile indexFile = new RandomAccessFile(new File(directory, "index"), "rw");
+        try {
+            FileLock lock = tryLock(indexFile.getChannel());
+            if (lock == null) {
+                LOGGER.log(WARNING, "Transform cache {0} is in use, classes will not be cached", directory);
+                indexFile.close();
+                return null;
+            }
+
+            return new TransformCache(indexFile, new RandomAccessFile(new File(directory, "data"), "rw"), lock,
+                    maxSize, slots);
+        } catch (IOException e) {
+            indexFile.close();
+            throw e;
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null; //locked by this JVM
+        }
+    }
+
+    private TransformCache(RandomAccessFile indexFile, RandomAccessFile dataFile, FileLock lock, long maxSize, int slots)
+            throws IOException {
+
+        this.indexFile = indexFile;
+        this.dataFile = dataFile;
+        this.data = dataFile.getChannel();
+        this.lock = lock;
+        this.maxSize = maxSize;
+        this.slots = slots;
+
+        long indexSize = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        boolean valid = indexFile.length() == indexSize;
+        if (!valid) {
+            indexFile.setLength(0);
+            indexFile.setLength(indexSize);
+        }
+
+        this.index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+
+        valid = valid
+                && index.getInt(MAGIC_OFFSET) == MAGIC
+                && index.getInt(FORMAT_OFFSET) == FORMAT
+                && index.getInt(SLOTS_OFFSET) == slots
+                && index.getLong(DATA_LENGTH_OFFSET) <= data.size();
+
+        if (valid) {
+            this.generation = index.getInt(GENERATION_OFFSET) + 1;
+            this.dataLength = index.getLong(DATA_LENGTH_OFFSET);
+            for (int slot = 0; slot < slots; slot++) {
+                if (key(slot) != EMPTY) {
+                    occupied++;
+                }
+            }
+        } else {
+            LOGGER.log(FINE, "Transform cache index missing or unreadable, starting empty");
+            this.generation = 1;
+            clear();
+            data.truncate(0);
+        }
+
+        index.putInt(GENERATION_OFFSET, generation);
+    }
+
+    /**
+     * @return the key of the class file as transformed with the given metrics (as described by
+     * {@link com.fleury.metrics.agent.config.Configuration#describeMetrics(String)}) by this agent build
+     */
+    public long key(String className, String metrics, byte[] classfileBuffer) {
+        long seed = HashUtil.xxHash64((className + '\0' + metrics).getBytes(UTF_8), AGENT_VERSION);
+        long key = HashUtil.xxHash64(classfileBuffer, seed);
+
+        return key == EMPTY || key == DELETED ? key + 2 : key;
+    }
+
+    /**
+     * @return the transformed bytes, {@link #UNCHANGED} if the class needs no transformation or null if not cached
+     */
+    public synchronized byte[] get(long key, int originalLength) {
+        int slot = find(key, originalLength);
+        if (slot < 0) {
+            SelfMetrics.TRANSFORM_CACHE_MISSES.inc();
+            return null;
+        }
+
+        byte[] bytes = read(slot);
+        if (bytes == null) {
+            LOGGER.log(FINE, "Dropping corrupt transform cache entry {0}", Long.toHexString(key));
+            delete(slot);
+            SelfMetrics.TRANSFORM_CACHE_MISSES.inc();
+            return null;
+        }
+
+        index.putInt(offset(slot) + USED_OFFSET, generation);
+        SelfMetrics.TRANSFORM_CACHE_HITS.inc();
+
+        return bytes;
+    }
+
+    /**
+     * Caches the transformed bytes of the class, null if it needs no transformation.
+     */
+    public synchronized void put(long key, int originalLength, byte[] transformed) {
+        if (find(key, originalLength) >= 0) {
+            return;
+        }
+
+        int length = transformed == null ? 0 : transformed.length;
+
+        try {
+            if (!hasRoom(length)) {
+                compact();
+
+                if (!hasRoom(length)) {
+                    LOGGER.log(FINE, "Transform cache full, not caching {0}", Long.toHexString(key));
+                    return;
+                }
+            }
+
+            long offset = NO_DATA;
+            if (transformed != null) {
+                offset = dataLength;
+                write(ByteBuffer.wrap(transformed), offset);
+                dataLength += length;
+                index.putLong(DATA_LENGTH_OFFSET, dataLength);
+            }
+
+            insert(key, offset, length, originalLength, crc(transformed), generation);
+        } catch (IOException e) {
+            LOGGER.log(FINE, "Unable to write transform cache entry", e);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        index.force();
+        lock.release();
+        dataFile.close();
+        indexFile.close();
+    }
+
+    private boolean hasRoom(int length) {
+        return dataLength + length <= maxSize && occupied + 1 <= slots / 4 * 3;
+    }
+
+    private int find(long key, int originalLength) {
+        int mask = slots - 1;
+
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        for (int probes = 0; probes < slots; probes++, slot = (slot + 1) & mask) {
+            long found = key(slot);
+
+            if (found == EMPTY) {
+                return -1;
+            }
+
+            if (found == key && index.getInt(offset(slot) + ORIGINAL_LENGTH_OFFSET) == originalLength) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private void insert(long key, long dataOffset, int length, int originalLength, int crc, int used) {
+        int mask = slots - 1;
+
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (key(slot) != EMPTY && key(slot) != DELETED) {
+            slot = (slot + 1) & mask;
+        }
+
+        if (key(slot) == EMPTY) {
+            occupied++;
+        }
+
+        int offset = offset(slot);
+        index.putLong(offset + DATA_OFFSET, dataOffset);
+        index.putInt(offset + LENGTH_OFFSET, length);
+        index.putInt(offset + ORIGINAL_LENGTH_OFFSET, originalLength);
+        index.putInt(offset + CRC_OFFSET, crc);
+        index.putInt(offset + USED_OFFSET, used);
+        // the key last so the entry is only found once complete
+        index.putLong(offset + KEY_OFFSET, key);
+    }
+
+    private void delete(int slot) {
+        index.putLong(offset(slot) + KEY_OFFSET, DELETED);
+    }
+
+    /**
+     * @return the bytes of the entry or null if they fail the CRC check
+     */
+    private byte[] read(int slot) {
+        int offset = offset(slot);
+
+        long dataOffset = index.getLong(offset + DATA_OFFSET);
+        if (dataOffset == NO_DATA) {
+            return UNCHANGED;
+        }
+
+        int length = index.getInt(offset + LENGTH_OFFSET);
+        if (dataOffset < 0 || length < 0 || dataOffset + length > dataLength) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (data.read(buffer, dataOffset + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+
+            byte[] bytes = buffer.array();
+            return crc(bytes) == index.getInt(offset + CRC_OFFSET) ? bytes : null;
+        } catch (IOException e) {
+            LOGGER.log(FINE, "Unable to read transform cache entry", e);
+            return null;
+        }
+    }
+
+    /**
+     * Evicts the entries not used by this run and moves the data of the remaining entries to the start of the data
+     * file in place, in order of their position so none is overwritten before it is moved.
+     */
+    private void compact() throws IOException {
+        List<Entry> live = new ArrayList<Entry>();
+        int evicted = 0;
+
+        for (int slot = 0; slot < slots; slot++) {
+            long key = key(slot);
+            if (key == EMPTY || key == DELETED) {
+                continue;
+            }
+
+            int offset = offset(slot);
+            if (index.getInt(offset + USED_OFFSET) == generation) {
+                live.add(new Entry(key,
+                        index.getLong(offset + DATA_OFFSET),
+                        index.getInt(offset + LENGTH_OFFSET),
+                        index.getInt(offset + ORIGINAL_LENGTH_OFFSET),
+                        index.getInt(offset + CRC_OFFSET)));
+            } else {
+                evicted++;
+            }
+        }
+
+        Collections.sort(live, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.dataOffset < b.dataOffset ? -1 : (a.dataOffset == b.dataOffset ? 0 : 1);
+            }
+        });
+
+        clear();
+
+        for (Entry entry : live) {
+            if (entry.dataOffset != NO_DATA) {
+                if (entry.dataOffset != dataLength) {
+                    ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+                    while (buffer.hasRemaining()) {
+                        if (data.read(buffer, entry.dataOffset + buffer.position()) < 0) {
+                            throw new IOException("Transform cache data truncated");
+                        }
+                    }
+                    buffer.flip();
+                    write(buffer, dataLength);
+                }
+
+                entry.dataOffset = dataLength;
+                dataLength += entry.length;
+            }
+
+            insert(entry.key, entry.dataOffset, entry.length, entry.originalLength, entry.crc, generation);
+        }
+
+        data.truncate(dataLength);
+        index.putLong(DATA_LENGTH_OFFSET, dataLength);
+
+        SelfMetrics.TRANSFORM_CACHE_EVICTIONS.inc(evicted);
+        LOGGER.log(FINE, "Compacted transform cache, evicted {0} entries", evicted);
+    }
+
+    private void clear() throws IOException {
+        for (int slot = 0; slot < slots; slot++) {
+            index.putLong(offset(slot) + KEY_OFFSET, EMPTY);
+        }
+
+        index.putInt(MAGIC_OFFSET, MAGIC);
+        index.putInt(FORMAT_OFFSET, FORMAT);
+        index.putInt(SLOTS_OFFSET, slots);
+        index.putLong(DATA_LENGTH_OFFSET, 0);
+
+        occupied = 0;
+        dataLength = 0;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += data.write(buffer, position);
+        }
+    }
+
+    private long key(int slot) {
+        return index.getLong(offset(slot) + KEY_OFFSET);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int crc(byte[] bytes) {
+        if (bytes == null) {
+            return 0;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The agent build, so a different build of the agent (which may transform differently) does not use the entries
+     * of another. Builds are told apart by the version and the size and modification time of the agent jar.
+     */
+    private static long agentVersion() {
+        Package pkg = TransformCache.class.getPackage();
+        String version = String.valueOf(pkg == null ? null : pkg.getImplementationVersion());
+
+        try {
+            CodeSource source = TransformCache.class.getProtectionDomain().getCodeSource();
+            if (source != null && source.getLocation() != null) {
+                File jar = new File(source.getLocation().toURI());
+                version += ":" + jar.length() + ":" + jar.lastModified();
+            }
+        } catch (Exception e) {
+            LOGGER.log(FINE, "Unable to locate agent jar", e);
+        }
+
+        return HashUtil.xxHash64(version.getBytes(UTF_8), 0);
+    }
+
+    private static class Entry {
+
+        private final long key;
+        private long dataOffset;
+        private final int length;
+        private final int originalLength;
+        private final int crc;
+
+        Entry(long key, long dataOffset, int length, int originalLength, int crc) {
+            this.key = key;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.originalLength = originalLength;
+            this.crc = crc;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.fleury.metrics.agent.transformer.util;
+
+import com.fleury.metrics.agent.model.MetricType;
+import com.fleury.metrics.agent.transformer.InstrumentedAttribute;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the constant pool strings of a class file directly, to rule out classes which cannot hold metric annotations
+ * or the {@link InstrumentedAttribute} without building a ClassReader.
+ *
+ * @author Will Fleury
+ */
+public class ConstantPoolUtil {
+
+    private static final int CONSTANTS_OFFSET = 10;
+
+    private static final int UTF8 = 1;
+    private static final int INT = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELD = 9;
+    private static final int METHOD = 10;
+    private static final int INTERFACE_METHOD = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    public static final int METRIC_ANNOTATIONS = 1;
+    public static final int INSTRUMENTED = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[][] SCANNED_VALUES = scannedValues();
+    private static final int[] SCANNED_FLAGS = scannedFlags();
+
+    /**
+     * @return the {@link #METRIC_ANNOTATIONS} and {@link #INSTRUMENTED} flags of the strings found, from a single walk
+     * over the constant pool
+     */
+    public static int scan(byte[] classfileBuffer) {
+        return matchUtf8(classfileBuffer, SCANNED_VALUES, SCANNED_FLAGS);
+    }
+
+    /**
+     * Compares the encoded bytes of the constant pool strings against the given (ASCII) values, so no strings are
+     * decoded, and returns the flags of the values found. Returns all flags if the pool holds a constant of a kind not
+     * known here as its size (and therefore the position of the following constants) can't be determined.
+     */
+    static int matchUtf8(byte[] b, byte[][] values, int[] flags) {
+        int all = 0;
+        for (int flag : flags) {
+            all |= flag;
+        }
+
+        int found = 0;
+        int count = readUnsignedShort(b, CONSTANTS_OFFSET - 2);
+        int offset = CONSTANTS_OFFSET;
+
+        for (int i = 1; i < count; i++) {
+            switch (b[offset]) {
+                case UTF8:
+                    int length = readUnsignedShort(b, offset + 1);
+                    int index = indexOf(b, offset + 3, length, values);
+                    if (index >= 0) {
+                        found |= flags[index];
+                        if (found == all) {
+                            return found;
+                        }
+                    }
+                    offset += 3 + length;
+                    break;
+
+                case LONG:
+                case DOUBLE:
+                    offset += 9;
+                    i++; //takes two entries
+                    break;
+
+                case INT:
+                case FLOAT:
+                case FIELD:
+                case METHOD:
+                case INTERFACE_METHOD:
+                case NAME_AND_TYPE:
+                case DYNAMIC:
+                case INVOKE_DYNAMIC:
+                    offset += 5;
+                    break;
+
+                case METHOD_HANDLE:
+                    offset += 4;
+                    break;
+
+                case CLASS:
+                case STRING:
+                case METHOD_TYPE:
+                case MODULE:
+                case PACKAGE:
+                    offset += 3;
+                    break;
+
+                default:
+                    return all;
+            }
+        }
+
+        return found;
+    }
+
+    private static int indexOf(byte[] b, int offset, int length, byte[][] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].length == length && equals(b, offset, values[i])) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean equals(byte[] b, int offset, byte[] value) {
+        // the metric annotation descriptors share a long package prefix so compare from the end
+        for (int i = value.length - 1; i >= 0; i--) {
+            if (b[offset + i] != value[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int readUnsignedShort(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    private static byte[][] scannedValues() {
+        MetricType[] types = MetricType.values();
+        byte[][] values = new byte[types.length + 1][];
+
+        for (int i = 0; i < types.length; i++) {
+            values[i] = types[i].getDesc().getBytes(UTF_8);
+        }
+        values[types.length] = InstrumentedAttribute.NAME.getBytes(UTF_8);
+
+        return values;
+    }
+
+    private static int[] scannedFlags() {
+        int[] flags = new int[SCANNED_VALUES.length];
+
+        for (int i = 0; i < flags.length - 1; i++) {
+            flags[i] = METRIC_ANNOTATIONS;
+        }
+        flags[flags.length - 1] = INSTRUMENTED;
+
+        return flags;
+    }
+}
@@ -1,11 +1,15 @@
 package com.fleury.metrics.agent.transformer.util;
 
+import static org.objectweb.asm.Opcodes.BIPUSH;
 import static org.objectweb.asm.Opcodes.ICONST_0;
 import static org.objectweb.asm.Opcodes.ICONST_1;
 import static org.objectweb.asm.Opcodes.ICONST_2;
 import static org.objectweb.asm.Opcodes.ICONST_3;
 import static org.objectweb.asm.Opcodes.ICONST_4;
 import static org.objectweb.asm.Opcodes.ICONST_5;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+
+import org.objectweb.asm.MethodVisitor;
 
 /**
  *
@@ -32,4 +36,19 @@ public class OpCodeUtil {
                 throw new RuntimeException("No ICONST_ for int " + val);
         }
     }
+
+    /**
+     * Pushes the int constant using the smallest instruction for its value.
+     */
+    public static void visitIntConstant(MethodVisitor mv, int val) {
+        if (val >= 0 && val <= 5) {
+            mv.visitInsn(getIConstOpcodeForInteger(val));
+        } else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, val);
+        } else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, val);
+        } else {
+            mv.visitLdcInsn(val);
+        }
+    }
 }
@@ -0,0 +1,200 @@
+package com.fleury.metrics.agent.transformer.util;
+
+import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+import static org.objectweb.asm.Opcodes.ASM5;
+
+import com.fleury.metrics.agent.transformer.ASMClassWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/**
+ * Resolves label property names to getter methods at transform time, with the naming rules of the runtime fallback
+ * {@link com.fleury.metrics.agent.introspector.NestedPropertyReader}, so the bytecode can call the getter directly.
+ *
+ * @author Will Fleury
+ */
+public class PropertyGetterResolver {
+
+    private static final String OBJECT_CLASS_INTERNAL_NAME = "java/lang/Object";
+
+    private final ASMClassWriter classWriter;
+    private final Map<String, ClassInfo> classes = new HashMap<String, ClassInfo>();
+
+    public PropertyGetterResolver(ASMClassWriter classWriter) {
+        this.classWriter = classWriter;
+    }
+
+    /**
+     * @return the getter for the property on the owner type or null if it cannot be resolved statically or is not
+     * accessible from the caller class
+     */
+    public PropertyGetter resolve(String ownerInternalName, String property, String callerInternalName) {
+        ClassInfo owner = getClassInfo(ownerInternalName);
+        if (owner == null || !isAccessible(owner, callerInternalName)) {
+            return null;
+        }
+
+        String capitalized = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+
+        MethodInfo method = findGetter(owner, "get" + capitalized, null, new HashSet<String>());
+
+        if (method == null) {
+            method = findGetter(owner, "is" + capitalized, Type.BOOLEAN_TYPE, new HashSet<String>());
+        }
+
+        if (method == null) {
+            method = findGetter(owner, property, null, new HashSet<String>());
+        }
+
+        if (method == null) {
+            return null;
+        }
+
+        return new PropertyGetter(ownerInternalName, method.name, method.desc, owner.isInterface());
+    }
+
+    private MethodInfo findGetter(ClassInfo info, String name, Type returnType, Set<String> visited) {
+        if (info == null || !visited.add(info.name)) {
+            return null;
+        }
+
+        MethodInfo method = info.methods.get(name);
+        if (method != null && (returnType == null || returnType.equals(Type.getReturnType(method.desc)))) {
+            return method;
+        }
+
+        if (info.superName != null) {
+            method = findGetter(getClassInfo(info.superName), name, returnType, visited);
+            if (method != null) {
+                return method;
+            }
+        }
+
+        for (String iface : info.interfaces) {
+            method = findGetter(getClassInfo(iface), name, returnType, visited);
+            if (method != null) {
+                return method;
+            }
+        }
+
+        return null;
+    }
+
+    private boolean isAccessible(ClassInfo owner, String callerInternalName) {
+        return (owner.access & ACC_PUBLIC) != 0 || getPackage(owner.name).equals(getPackage(callerInternalName));
+    }
+
+    private static String getPackage(String internalName) {
+        int index = internalName.lastIndexOf('/');
+        return index == -1 ? "" : internalName.substring(0, index);
+    }
+
+    private ClassInfo getClassInfo(String internalName) {
+        if (classes.containsKey(internalName)) {
+            return classes.get(internalName);
+        }
+
+        ClassInfo info = null;
+        ClassReader cr = classWriter == null ? null : classWriter.getClassReader(internalName);
+        if (cr != null) {
+            info = new ClassInfo();
+            cr.accept(info, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        }
+
+        classes.put(internalName, info);
+
+        return info;
+    }
+
+    public static class PropertyGetter {
+
+        private final String owner;
+        private final String name;
+        private final String desc;
+        private final boolean ownerInterface;
+
+        PropertyGetter(String owner, String name, String desc, boolean ownerInterface) {
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+            this.ownerInterface = ownerInterface;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+
+        public boolean isOwnerInterface() {
+            return ownerInterface;
+        }
+
+        public Type getReturnType() {
+            return Type.getReturnType(desc);
+        }
+    }
+
+    private static class MethodInfo {
+
+        private final String name;
+        private final String desc;
+
+        MethodInfo(String name, String desc) {
+            this.name = name;
+            this.desc = desc;
+        }
+    }
+
+    private static class ClassInfo extends ClassVisitor {
+
+        private final Map<String, MethodInfo> methods = new HashMap<String, MethodInfo>();
+        private String name;
+        private String superName;
+        private String[] interfaces;
+        private int access;
+
+        ClassInfo() {
+            super(ASM5);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.access = access;
+            this.name = name;
+            this.superName = OBJECT_CLASS_INTERNAL_NAME.equals(name) ? null : superName;
+            this.interfaces = interfaces == null ? new String[0] : interfaces;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            boolean isPublicInstance = (access & ACC_PUBLIC) != 0 && (access & ACC_STATIC) == 0;
+            boolean isSynthetic = (access & ACC_SYNTHETIC) != 0; //e.g. bridge methods for covariant returns
+
+            if (isPublicInstance && !isSynthetic && desc.startsWith("()") && !desc.endsWith(")V")) {
+                methods.put(name, new MethodInfo(name, desc));
+            }
+
+            return null;
+        }
+
+        boolean isInterface() {
+            return (access & ACC_INTERFACE) != 0;
+        }
+    }
+}
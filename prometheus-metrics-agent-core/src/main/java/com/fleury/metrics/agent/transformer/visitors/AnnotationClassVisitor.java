@@ -10,12 +10,16 @@ import org.objectweb.asm.MethodVisitor;
 
 
 /**
+ * Gathers the metrics declared by annotations on the methods of a class into the configuration. As only the
+ * annotations are needed it can be used on its own (with a null class visitor) and the class read with
+ * ClassReader.SKIP_CODE | SKIP_DEBUG | SKIP_FRAMES.
  *
  * @author Will Fleury
  */
 public class AnnotationClassVisitor extends ClassVisitor {
 
     private boolean isInterface;
+    private boolean isEligible;
     private String className;
     private Configuration config;
 
@@ -29,6 +33,7 @@ public class AnnotationClassVisitor extends ClassVisitor {
         super.visit(version, access, name, signature, superName, interfaces);
         this.className = name;
         this.isInterface = (access & ACC_INTERFACE) != 0;
+        this.isEligible = config.isEligible(name);
     }
 
     @Override
@@ -37,8 +42,8 @@ public class AnnotationClassVisitor extends ClassVisitor {
 
         boolean isSyntheticMethod = (access & ACC_SYNTHETIC) != 0;
 
-        if (!isInterface && !isSyntheticMethod && mv != null &&
-                config.isWhiteListed(className) && !config.isBlackListed(className)) {
+        // mv is null when only scanning (no class visitor to pass through to)
+        if (!isInterface && !isSyntheticMethod && isEligible) {
             mv = new AnnotationMethodVisitor(mv, config, className, name, desc);
         }
 
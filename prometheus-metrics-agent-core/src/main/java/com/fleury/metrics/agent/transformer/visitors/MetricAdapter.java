@@ -7,6 +7,7 @@ import static java.util.logging.Level.INFO;
 
 import com.fleury.metrics.agent.model.Metric;
 import com.fleury.metrics.agent.model.MetricType;
+import com.fleury.metrics.agent.transformer.util.PropertyGetterResolver;
 import com.fleury.metrics.agent.transformer.visitors.injectors.Injector;
 import com.fleury.metrics.agent.transformer.visitors.injectors.InjectorFactory;
 
@@ -29,18 +30,33 @@ public class MetricAdapter extends AdviceAdapter {
 
     private final Map<MetricType, Metric> metrics;
     private final Type[] argTypes;
+    private final Type returnType;
     private final String className;
     private final String methodName;
     private final int access;
+    private final PropertyGetterResolver propertyResolver;
+    private final boolean retransformable;
+    private final boolean dynamic;
     
     private List<Injector> injectors;
 
-    public MetricAdapter(MethodVisitor mv, String className, int access, String name, String desc, List<Metric> metadata) {
+    public MetricAdapter(MethodVisitor mv, String className, int access, String name, String desc,
+                         List<Metric> metadata, PropertyGetterResolver propertyResolver) {
+        this(mv, className, access, name, desc, metadata, propertyResolver, false, false);
+    }
+
+    public MetricAdapter(MethodVisitor mv, String className, int access, String name, String desc,
+                         List<Metric> metadata, PropertyGetterResolver propertyResolver, boolean retransformable,
+                         boolean dynamic) {
         super(ASM5, mv, access, name, desc);
 
         this.className = className;
+        this.propertyResolver = propertyResolver;
+        this.retransformable = retransformable;
+        this.dynamic = dynamic;
         this.methodName = name;
         this.argTypes = Type.getArgumentTypes(desc);
+        this.returnType = Type.getReturnType(desc);
         this.access = access;
         this.metrics = mapByType(metadata);
     }
@@ -49,6 +65,30 @@ public class MetricAdapter extends AdviceAdapter {
         return mv;
     }
 
+    public PropertyGetterResolver getPropertyResolver() {
+        return propertyResolver;
+    }
+
+    /**
+     * @return true if the metrics are loaded from {@link com.fleury.metrics.agent.reporter.MetricHandles} rather than
+     * static fields of the class
+     */
+    public boolean isRetransformable() {
+        return retransformable;
+    }
+
+    /**
+     * @return true if the metrics are loaded via invokedynamic call sites and only recorded while switched on, see
+     * com.fleury.metrics.agent.reporter.MetricCallSites
+     */
+    public boolean isDynamic() {
+        return dynamic;
+    }
+
+    public Type getReturnType() {
+        return returnType;
+    }
+
     @Override
     protected void onMethodEnter() {
         // LOGGER.log(INFO, "onMethodEnter {0}", className);
@@ -78,6 +118,20 @@ public class MetricAdapter extends AdviceAdapter {
         mv.visitMaxs(maxStack, maxLocals);
     }
 
+    @Override
+    public void visitInsn(int opcode) {
+        // injectors is only set once the method has been entered (i.e. after the super constructor call)
+        if (opcode >= IRETURN && opcode <= RETURN && injectors != null) {
+            for (Injector injector : injectors) {
+                if (injector.injectAtReturn(opcode)) {
+                    return;
+                }
+            }
+        }
+
+        super.visitInsn(opcode);
+    }
+
     @Override
     protected void onMethodExit(int opcode) {
         // LOGGER.log(INFO, "onMethodExit {0}", className);
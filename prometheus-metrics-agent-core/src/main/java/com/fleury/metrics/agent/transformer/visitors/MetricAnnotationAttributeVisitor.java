@@ -1,5 +1,7 @@
 package com.fleury.metrics.agent.transformer.visitors;
 
+import static com.fleury.metrics.agent.model.BucketUtil.toList;
+
 import com.fleury.metrics.agent.config.Configuration;
 import com.fleury.metrics.agent.model.Metric;
 import com.fleury.metrics.agent.model.MetricType;
@@ -34,6 +36,14 @@ public class MetricAnnotationAttributeVisitor extends AnnotationVisitor {
             metricBuilder.name(value.toString());
         } else if ("doc".equals(name)) {
             metricBuilder.doc(value.toString());
+        } else if ("maxSeries".equals(name)) {
+            metricBuilder.maxSeries((Integer) value);
+        } else if ("buckets".equals(name)) {
+            metricBuilder.buckets(toList((double[]) value));
+        } else if ("linearBuckets".equals(name)) {
+            metricBuilder.linearBuckets(toList((double[]) value));
+        } else if ("exponentialBuckets".equals(name)) {
+            metricBuilder.exponentialBuckets(toList((double[]) value));
         }
     }
 
@@ -1,6 +1,10 @@
 package com.fleury.metrics.agent.transformer.visitors;
 
+import static com.fleury.metrics.agent.config.Configuration.staticFinalChildCacheFieldName;
+import static com.fleury.metrics.agent.config.Configuration.staticFinalChildFieldName;
 import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
+import static com.fleury.metrics.agent.model.LabelUtil.hasConstantLabelValues;
+import static com.fleury.metrics.agent.model.LabelUtil.hasTemplatedLabelValues;
 import static org.objectweb.asm.Opcodes.ACC_FINAL;
 import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
 import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
@@ -8,15 +12,18 @@ import static org.objectweb.asm.Opcodes.ACC_STATIC;
 import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
 import static org.objectweb.asm.Opcodes.ASM5;
 import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_7;
 
 import com.fleury.metrics.agent.config.Configuration;
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.reporter.ChildCache;
+import com.fleury.metrics.agent.transformer.InstrumentedAttribute;
+import com.fleury.metrics.agent.transformer.util.PropertyGetterResolver;
 
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -30,12 +37,29 @@ public class MetricClassVisitor extends ClassVisitor {
     private int classVersion;
     private boolean visitedStaticBlock = false;
     private Configuration config;
+    private PropertyGetterResolver propertyResolver;
+    private boolean retransformable;
+    private boolean dynamic;
     private List<Metric> classMetrics;
     private MetricAdapter metricAdapter = null;
 
-    public MetricClassVisitor(ClassVisitor cv, Configuration config) {
+    public MetricClassVisitor(ClassVisitor cv, Configuration config, PropertyGetterResolver propertyResolver) {
+        this(cv, config, propertyResolver, false, false);
+    }
+
+    /**
+     * @param retransformable true to leave the fields and methods of the class as they are so it can be retransformed,
+     * the metrics then being loaded from {@link com.fleury.metrics.agent.reporter.MetricHandles}
+     * @param dynamic true to load and record metrics via invokedynamic call sites so they can be switched on and off,
+     * only applied to classes compiled for Java 7 or later as older class files cannot contain invokedynamic
+     */
+    public MetricClassVisitor(ClassVisitor cv, Configuration config, PropertyGetterResolver propertyResolver,
+            boolean retransformable, boolean dynamic) {
         super(ASM5, cv);
         this.config = config;
+        this.propertyResolver = propertyResolver;
+        this.retransformable = retransformable;
+        this.dynamic = dynamic;
     }
 
     @Override
@@ -44,15 +68,40 @@ public class MetricClassVisitor extends ClassVisitor {
         this.classVersion = version;
         this.className = name;
         this.isInterface = (access & ACC_INTERFACE) != 0;
+        this.dynamic = dynamic && (version & 0xFFFF) >= V1_7;
 
         this.classMetrics = config.findMetrics(className);
 
+        // mark the class so it is not instrumented again, e.g. when instrumented ahead of time
+        super.visitAttribute(new InstrumentedAttribute());
+
+        // the metrics are then not held in fields
+        if (retransformable || dynamic) {
+            return;
+        }
+
         // add the static final metric fields (Counter,Histogram,Gauge) to the class
         for (Metric metric : classMetrics) {
             super.visitField(
                     ACC_PUBLIC + ACC_FINAL + ACC_STATIC,
                     staticFinalFieldName(metric),
                     Type.getDescriptor(metric.getType().getCoreType()), null, null).visitEnd();
+
+            // constant label values always resolve to the same child so hold it in its own field
+            if (hasConstantLabelValues(metric.getLabels())) {
+                super.visitField(
+                        ACC_PUBLIC + ACC_FINAL + ACC_STATIC,
+                        staticFinalChildFieldName(metric),
+                        Type.getDescriptor(metric.getType().getChildType()), null, null).visitEnd();
+            }
+
+            // templated label values are looked up per invocation via a cache of the labelled children
+            if (hasTemplatedLabelValues(metric.getLabels())) {
+                super.visitField(
+                        ACC_PUBLIC + ACC_FINAL + ACC_STATIC,
+                        staticFinalChildCacheFieldName(metric),
+                        Type.getDescriptor(ChildCache.class), null, null).visitEnd();
+            }
         }
     }
 
@@ -67,14 +116,11 @@ public class MetricClassVisitor extends ClassVisitor {
         if (!isInterface && !isSyntheticMethod && mv != null) {
             List<Metric> metadata = config.findMetrics(className, name, desc);
 
-            // instead of having one AdviceAdapter and loop thru each Injection
-            // create one AdviceAdapter for every metric injection
-            // this remove the random start error.
-            // will not change interface, so pass in List of one item.
-            for (Metric metric: metadata){
-                mv = new MetricAdapter(mv, className, access, name, desc, Arrays.asList(metric));
+            // a single adapter for all metrics on the method so they share one entry, handler and exit
+            if (!metadata.isEmpty()) {
+                mv = new MetricAdapter(mv, className, access, name, desc, metadata, propertyResolver,
+                        retransformable, dynamic);
             }
-//            mv = new MetricAdapter(mv, className, access, name, desc, metadata);
 
             // minimized code change, if code is not compatible just don't run it for now
 //            mv = new JSRInlinerAdapter(mv, access, name, desc, signature, exceptions);
@@ -82,7 +128,7 @@ public class MetricClassVisitor extends ClassVisitor {
         }
 
         // initialize static fields if the static initializer block already exists in the class
-        if (name.equals("<clinit>") && isStaticMethod && mv != null) {
+        if (name.equals("<clinit>") && isStaticMethod && mv != null && !retransformable && !dynamic) {
             visitedStaticBlock = true;
 
             mv = new StaticInitializerMethodVisitor(mv, classMetrics, className, access, name, desc);
@@ -94,7 +140,7 @@ public class MetricClassVisitor extends ClassVisitor {
     @Override
     public void visitEnd() {
         // add static initializer block (method) to initialize static fields
-        if (!visitedStaticBlock) {
+        if (!visitedStaticBlock && !retransformable && !dynamic) {
             MethodVisitor mv = super.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
             mv = new StaticInitializerMethodVisitor(mv, classMetrics, className, ACC_STATIC, "<clinit>", "()V");
 
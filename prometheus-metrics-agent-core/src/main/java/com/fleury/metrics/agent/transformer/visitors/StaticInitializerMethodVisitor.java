@@ -1,13 +1,22 @@
 package com.fleury.metrics.agent.transformer.visitors;
 
+import static com.fleury.metrics.agent.config.Configuration.staticFinalChildCacheFieldName;
+import static com.fleury.metrics.agent.config.Configuration.staticFinalChildFieldName;
 import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
 import static com.fleury.metrics.agent.model.LabelUtil.getLabelNames;
+import static com.fleury.metrics.agent.model.LabelUtil.getLabelValues;
+import static com.fleury.metrics.agent.model.LabelUtil.hasConstantLabelValues;
+import static com.fleury.metrics.agent.model.LabelUtil.hasTemplatedLabelValues;
+import static com.fleury.metrics.agent.model.MetricType.Timed;
 import static com.fleury.metrics.agent.transformer.util.CollectionUtil.isNotEmpty;
 
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.reporter.ChildCache;
 import com.fleury.metrics.agent.reporter.PrometheusMetricSystem;
 import com.fleury.metrics.agent.transformer.util.OpCodeUtil;
 
+import io.prometheus.client.SimpleCollector;
+
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
@@ -42,21 +51,7 @@ public class StaticInitializerMethodVisitor extends AdviceAdapter {
 
         // load labels
         if (isNotEmpty(metric.getLabels())) {
-            if (metric.getLabels().size() > 5) {
-                throw new IllegalStateException("Maximum labels per metric is 5. "
-                        + metric.getName() + " has " + metric.getLabels().size());
-            }
-
-            mv.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(metric.getLabels().size()));
-            mv.visitTypeInsn(ANEWARRAY, Type.getInternalName(String.class));
-
-            List<String> labelNames = getLabelNames(metric.getLabels());
-            for (int i = 0; i < labelNames.size(); i++) {
-                mv.visitInsn(DUP);
-                mv.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(i));
-                mv.visitLdcInsn(labelNames.get(i));
-                mv.visitInsn(AASTORE);
-            }
+            injectStringArray(getLabelNames(metric.getLabels()));
         }
         // or null if non labels
         else {
@@ -67,15 +62,102 @@ public class StaticInitializerMethodVisitor extends AdviceAdapter {
         mv.visitLdcInsn(metric.getDoc() == null ? "empty doc" : metric.getDoc());
 
         // call PrometheusMetricSystem.createAndRegisterCounted/Timed/Gauged(...)
+        if (metric.getType() == Timed) {
+            // load buckets or null for the defaults
+            if (metric.getBuckets() != null) {
+                injectDoubleArray(metric.getBuckets());
+            } else {
+                mv.visitInsn(ACONST_NULL);
+            }
+
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PrometheusMetricSystem.class),
+                    "createAndRegister" + metric.getType().name(),
+                    Type.getMethodDescriptor(
+                            Type.getType(metric.getType().getCoreType()),
+                            Type.getType(String.class), Type.getType(String[].class), Type.getType(String.class),
+                            Type.getType(double[].class)),
+                    false);
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PrometheusMetricSystem.class),
+                    "createAndRegister" + metric.getType().name(),
+                    Type.getMethodDescriptor(
+                            Type.getType(metric.getType().getCoreType()),
+                            Type.getType(String.class), Type.getType(String[].class), Type.getType(String.class)),
+                    false);
+        }
+
+        // store metric in class static field
+        mv.visitFieldInsn(PUTSTATIC, className, staticFinalFieldName(metric),
+                Type.getDescriptor(metric.getType().getCoreType()));
+
+        if (hasConstantLabelValues(metric.getLabels())) {
+            addConstantChild(metric);
+        }
+
+        if (hasTemplatedLabelValues(metric.getLabels())) {
+            addChildCache(metric);
+        }
+    }
+
+    private void addConstantChild(Metric metric) {
+        mv.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric),
+                Type.getDescriptor(metric.getType().getCoreType()));
+
+        injectStringArray(getLabelValues(metric.getLabels()));
+
+        // call PrometheusMetricSystem.createChildCounted/Timed/Gauged(...)
         mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PrometheusMetricSystem.class),
-                "createAndRegister" + metric.getType().name(),
+                "createChild" + metric.getType().name(),
                 Type.getMethodDescriptor(
-                        Type.getType(metric.getType().getCoreType()),
-                        Type.getType(String.class), Type.getType(String[].class), Type.getType(String.class)),
+                        Type.getType(metric.getType().getChildType()),
+                        Type.getType(metric.getType().getCoreType()), Type.getType(String[].class)),
                 false);
 
-        // store metric in class static field
-        mv.visitFieldInsn(PUTSTATIC, className, staticFinalFieldName(metric),
+        // store resolved child in class static field
+        mv.visitFieldInsn(PUTSTATIC, className, staticFinalChildFieldName(metric),
+                Type.getDescriptor(metric.getType().getChildType()));
+    }
+
+    private void addChildCache(Metric metric) {
+        mv.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric),
                 Type.getDescriptor(metric.getType().getCoreType()));
+        mv.visitLdcInsn(metric.getName());
+        OpCodeUtil.visitIntConstant(mv, metric.getMaxSeries());
+
+        // call PrometheusMetricSystem.createChildCache(...)
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PrometheusMetricSystem.class),
+                "createChildCache",
+                Type.getMethodDescriptor(
+                        Type.getType(ChildCache.class),
+                        Type.getType(SimpleCollector.class), Type.getType(String.class), Type.INT_TYPE),
+                false);
+
+        // store cache of labelled children in class static field
+        mv.visitFieldInsn(PUTSTATIC, className, staticFinalChildCacheFieldName(metric),
+                Type.getDescriptor(ChildCache.class));
+    }
+
+    private void injectStringArray(List<String> values) {
+        OpCodeUtil.visitIntConstant(mv, values.size());
+        mv.visitTypeInsn(ANEWARRAY, Type.getInternalName(String.class));
+
+        for (int i = 0; i < values.size(); i++) {
+            mv.visitInsn(DUP);
+            OpCodeUtil.visitIntConstant(mv, i);
+            mv.visitLdcInsn(values.get(i));
+            mv.visitInsn(AASTORE);
+        }
+    }
+
+    private void injectDoubleArray(List<Double> values) {
+        OpCodeUtil.visitIntConstant(mv, values.size());
+        mv.visitIntInsn(NEWARRAY, T_DOUBLE);
+
+        for (int i = 0; i < values.size(); i++) {
+            mv.visitInsn(DUP);
+            OpCodeUtil.visitIntConstant(mv, i);
+            mv.visitLdcInsn(values.get(i));
+            mv.visitInsn(DASTORE);
+        }
     }
 }
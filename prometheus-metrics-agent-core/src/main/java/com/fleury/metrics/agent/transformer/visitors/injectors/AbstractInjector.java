@@ -1,26 +1,41 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
+import static com.fleury.metrics.agent.config.Configuration.staticFinalChildCacheFieldName;
+import static com.fleury.metrics.agent.config.Configuration.staticFinalChildFieldName;
+import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
 import static com.fleury.metrics.agent.model.LabelUtil.getLabelVarIndex;
+import static com.fleury.metrics.agent.model.LabelUtil.getLabelValues;
 import static com.fleury.metrics.agent.model.LabelUtil.getNestedLabelVar;
+import static com.fleury.metrics.agent.model.LabelUtil.hasConstantLabelValues;
+import static com.fleury.metrics.agent.model.LabelUtil.hasTemplatedLabelValues;
 import static com.fleury.metrics.agent.model.LabelUtil.isLabelVarNested;
 import static com.fleury.metrics.agent.model.LabelUtil.isTemplatedLabelValue;
 import static com.fleury.metrics.agent.model.LabelUtil.isThis;
-import static com.fleury.metrics.agent.transformer.util.CollectionUtil.isNotEmpty;
+import static com.fleury.metrics.agent.reporter.PrometheusMetricSystem.MAX_SPECIALISED_LABELS;
 
-import com.fleury.metrics.agent.introspector.GenericClassIntrospector;
-import com.fleury.metrics.agent.model.LabelUtil;
+import com.fleury.metrics.agent.introspector.NestedPropertyReader;
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.reporter.ChildCache;
+import com.fleury.metrics.agent.reporter.MetricHandles;
 import com.fleury.metrics.agent.reporter.PrometheusMetricSystem;
 import com.fleury.metrics.agent.transformer.util.OpCodeUtil;
+import com.fleury.metrics.agent.transformer.util.PropertyGetterResolver;
+import com.fleury.metrics.agent.transformer.util.PropertyGetterResolver.PropertyGetter;
 import com.fleury.metrics.agent.transformer.visitors.MetricAdapter;
 
-import org.apache.commons.beanutils.PropertyUtils;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  *
@@ -30,15 +45,38 @@ public abstract class AbstractInjector implements Injector, Opcodes {
 
     public static final String METRIC_REPORTER_CLASSNAME = Type.getInternalName(PrometheusMetricSystem.class);
 
-    static {
-        PropertyUtils.addBeanIntrospector(new GenericClassIntrospector());
-    }
+    /**
+     * Compiled for Java 7 so referred to by name.
+     */
+    private static final String METRIC_CALL_SITES_CLASSNAME = "com/fleury/metrics/agent/reporter/MetricCallSites";
+
+    private static final Handle CONSTANT_BOOTSTRAP = new Handle(H_INVOKESTATIC, METRIC_CALL_SITES_CLASSNAME,
+            "constant",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;I)"
+                    + "Ljava/lang/invoke/CallSite;", false);
+
+    private static final Handle SWITCH_BOOTSTRAP = new Handle(H_INVOKESTATIC, METRIC_CALL_SITES_CLASSNAME,
+            "enabled",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)"
+                    + "Ljava/lang/invoke/CallSite;", false);
+
+    private static final Type CHILD_CACHE_TYPE = Type.getType(ChildCache.class);
+    private static final Type STRING_TYPE = Type.getType(String.class);
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+    private static final Type STRING_ARRAY_TYPE = Type.getType(String[].class);
 
     protected final AdviceAdapter aa;
     protected final MethodVisitor mv;
     protected final Type[] argTypes;
     protected final int access;
     protected final String className;
+    protected final PropertyGetterResolver propertyResolver;
+    protected final boolean retransformable;
+    protected final boolean dynamic;
+
+    private final Map<String, Integer> labelValueVars = new HashMap<String, Integer>();
+    private final Map<Metric, Integer> childVars = new HashMap<Metric, Integer>();
+    private final Map<Metric, Integer> enabledVars = new HashMap<Metric, Integer>();
 
     public AbstractInjector(AdviceAdapter aa, String className, Type[] argTypes, int access) {
         this.aa = aa;
@@ -46,6 +84,9 @@ public abstract class AbstractInjector implements Injector, Opcodes {
         this.argTypes = argTypes;
         this.access = access;
         this.mv = ((MetricAdapter)aa).getMethodVistor();
+        this.propertyResolver = ((MetricAdapter)aa).getPropertyResolver();
+        this.retransformable = ((MetricAdapter)aa).isRetransformable();
+        this.dynamic = ((MetricAdapter)aa).isDynamic();
     }
 
     @Override
@@ -60,78 +101,453 @@ public abstract class AbstractInjector implements Injector, Opcodes {
     public void injectAtMethodExit(int opcode) {
     }
 
-    protected void injectLabelsToStack(Metric metric) {
-        List<String> labelValues = LabelUtil.getLabelValues(metric.getLabels());
+    @Override
+    public boolean injectAtReturn(int opcode) {
+        return false;
+    }
+
+    /**
+     * Reads whether each metric of a dynamic class is switched on into a local, via an invokedynamic call site linked
+     * to the switch of the metric. The code recording to a metric is then skipped for the whole invocation while it
+     * is off, see {@link #skipIfDisabled(Metric...)}. Must be called at method entry before anything else is injected.
+     */
+    protected void storeEnabled(Metric... metrics) {
+        if (!dynamic) {
+            return;
+        }
+
+        for (Metric metric : metrics) {
+            if (metric == null) {
+                continue;
+            }
+
+            mv.visitInvokeDynamicInsn("enabled", Type.getMethodDescriptor(Type.BOOLEAN_TYPE), SWITCH_BOOTSTRAP,
+                    metric.getName());
 
-        if (isNotEmpty(labelValues)) {
-            mv.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(labelValues.size()));
-            mv.visitTypeInsn(ANEWARRAY, Type.getInternalName(String.class));
+            int var = aa.newLocal(Type.BOOLEAN_TYPE);
+            mv.visitVarInsn(ISTORE, var);
+            enabledVars.put(metric, var);
+        }
+    }
 
-            for (int i = 0; i < labelValues.size(); i++) {
-                mv.visitInsn(DUP);
-                mv.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(i));
-                injectLabelValueToStack(labelValues.get(i));
+    /**
+     * Jumps over the code up to {@link #endSkip(Label)} when all of the metrics are switched off.
+     *
+     * @return the label passed to {@link #endSkip(Label)}, null if the metrics can't be switched off
+     */
+    protected Label skipIfDisabled(Metric... metrics) {
+        boolean loaded = false;
+
+        for (Metric metric : metrics) {
+            Integer var = metric == null ? null : enabledVars.get(metric);
+            if (var == null) {
+                continue;
             }
 
-        } else {
+            mv.visitVarInsn(ILOAD, var);
+            if (loaded) {
+                mv.visitInsn(IOR);
+            }
+            loaded = true;
+        }
+
+        if (!loaded) {
+            return null;
+        }
+
+        Label skip = new Label();
+        mv.visitJumpInsn(IFEQ, skip);
+        return skip;
+    }
+
+    protected void endSkip(Label skip) {
+        if (skip != null) {
+            mv.visitLabel(skip);
+        }
+    }
+
+    /**
+     * Evaluates the templated label values used by more than one of the given metrics and stores each in a local so
+     * every metric (and every exit path) loads the same value rather than evaluating it again. Must be called at
+     * method entry, before any try block the values are used in.
+     */
+    protected void storeSharedLabelValues(Metric... metrics) {
+        Set<String> seen = new HashSet<String>();
+        List<String> shared = new ArrayList<String>();
+
+        for (Metric metric : metrics) {
+            if (metric == null || !hasTemplatedLabelValues(metric.getLabels())) {
+                continue;
+            }
+
+            for (String labelValue : new HashSet<String>(getLabelValues(metric.getLabels()))) {
+                if (isTemplatedLabelValue(labelValue) && !seen.add(labelValue) && !shared.contains(labelValue)) {
+                    shared.add(labelValue);
+                }
+            }
+        }
+
+        for (String labelValue : shared) {
+            int var = aa.newLocal(STRING_TYPE);
+            Label skip = null;
+            if (dynamic) {
+                // only evaluated when a metric using the value is switched on
+                mv.visitInsn(ACONST_NULL);
+                mv.visitVarInsn(ASTORE, var);
+                skip = skipIfDisabled(usedBy(labelValue, metrics));
+            }
+
+            injectLabelValueToStack(labelValue);
+            mv.visitVarInsn(ASTORE, var);
+            endSkip(skip);
+
+            labelValueVars.put(labelValue, var);
+        }
+    }
+
+    /**
+     * Looks up the child of a metric with templated label values once and stores it in a local which
+     * {@link #injectMetricToStack(Metric)} then loads. This means the labels are evaluated once per invocation and
+     * e.g. the in flight gauge is decremented on the same child it was incremented on even if the argument the label
+     * is read from is modified by the method. Must be called at method entry, before any try block the child is used
+     * in. Metrics without templated label values already have their child (or the metric) in a static field.
+     */
+    protected void storeChild(Metric metric) {
+        if (!hasTemplatedLabelValues(metric.getLabels())) {
+            return;
+        }
+
+        Type childType = Type.getType(metric.getType().getChildType());
+        int var = aa.newLocal(childType);
+
+        Label skip = null;
+        if (dynamic) {
             mv.visitInsn(ACONST_NULL);
+            mv.visitVarInsn(ASTORE, var);
+            skip = skipIfDisabled(metric);
+        }
+
+        injectChildCacheToStack(metric);
+
+        Type[] labelTypes = injectLabelValuesToStack(getLabelValues(metric.getLabels()));
+        mv.visitMethodInsn(INVOKEVIRTUAL, CHILD_CACHE_TYPE.getInternalName(), "get",
+                Type.getMethodDescriptor(OBJECT_TYPE, labelTypes), false);
+        mv.visitTypeInsn(CHECKCAST, childType.getInternalName());
+        mv.visitVarInsn(ASTORE, var);
+
+        endSkip(skip);
+        childVars.put(metric, var);
+    }
+
+    /**
+     * Loads the arguments identifying what to record against onto the stack. This is the pre-resolved child when
+     * all label values are constant, or the child stored in a local at method entry by {@link #storeChild(Metric)}.
+     * When label values are templated it is otherwise the cache of labelled children followed by each label value,
+     * or an array of them when there are more than the specialised record methods accept. Otherwise it is the metric
+     * with a null label array.
+     *
+     * @return the types loaded so the caller can build the signature of the reporter method to invoke
+     */
+    protected Type[] injectMetricToStack(Metric metric) {
+        Integer childVar = childVars.get(metric);
+        if (childVar != null) {
+            mv.visitVarInsn(ALOAD, childVar);
+
+            return new Type[] {Type.getType(metric.getType().getChildType())};
+        }
+
+        if (hasConstantLabelValues(metric.getLabels())) {
+            Type childType = Type.getType(metric.getType().getChildType());
+            if (retransformable || dynamic) {
+                injectHandleToStack(MetricHandles.register(metric).getChild(), childType);
+            } else {
+                mv.visitFieldInsn(GETSTATIC, className, staticFinalChildFieldName(metric), childType.getDescriptor());
+            }
+
+            return new Type[] {childType};
+        }
+
+        if (hasTemplatedLabelValues(metric.getLabels())) {
+            injectChildCacheToStack(metric);
+
+            Type[] labelTypes = injectLabelValuesToStack(getLabelValues(metric.getLabels()));
+
+            Type[] types = new Type[labelTypes.length + 1];
+            types[0] = CHILD_CACHE_TYPE;
+            System.arraycopy(labelTypes, 0, types, 1, labelTypes.length);
+
+            return types;
+        }
+
+        Type coreType = Type.getType(metric.getType().getCoreType());
+        if (retransformable || dynamic) {
+            injectHandleToStack(MetricHandles.register(metric).getMetric(), coreType);
+        } else {
+            mv.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), coreType.getDescriptor());
+        }
+        mv.visitInsn(ACONST_NULL);
+
+        return new Type[] {coreType, STRING_ARRAY_TYPE};
+    }
+
+    private void injectChildCacheToStack(Metric metric) {
+        if (retransformable || dynamic) {
+            injectHandleToStack(MetricHandles.register(metric).getChildCache(), CHILD_CACHE_TYPE);
+        } else {
+            mv.visitFieldInsn(GETSTATIC, className, staticFinalChildCacheFieldName(metric),
+                    CHILD_CACHE_TYPE.getDescriptor());
+        }
+    }
+
+    /**
+     * Loads a metric (or child) of a retransformable or dynamic class, which has no fields holding them, from
+     * {@link MetricHandles} by the index it was registered at. Dynamic classes load it via an invokedynamic call site
+     * linked to the handle as a constant on first invocation.
+     */
+    private void injectHandleToStack(int index, Type type) {
+        if (dynamic) {
+            mv.visitInvokeDynamicInsn("metric", Type.getMethodDescriptor(type), CONSTANT_BOOTSTRAP, index);
+            return;
+        }
+
+        OpCodeUtil.visitIntConstant(mv, index);
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(MetricHandles.class), "get",
+                Type.getMethodDescriptor(OBJECT_TYPE, Type.INT_TYPE), false);
+        mv.visitTypeInsn(CHECKCAST, type.getInternalName());
+    }
+
+    /**
+     * Invokes the reporter method for the metric arguments on the stack. Label values passed individually select
+     * the overload specialised for that number of labels, e.g. recordCount2.
+     */
+    private void injectReporterCall(String method, Type[] metricArgTypes, Type... extraArgTypes) {
+        Type[] argTypes = new Type[metricArgTypes.length + extraArgTypes.length];
+        System.arraycopy(metricArgTypes, 0, argTypes, 0, metricArgTypes.length);
+        System.arraycopy(extraArgTypes, 0, argTypes, metricArgTypes.length, extraArgTypes.length);
+
+        int labelCount = 0;
+        for (Type type : metricArgTypes) {
+            if (type.equals(STRING_TYPE)) {
+                labelCount++;
+            }
+        }
+
+        String name = labelCount > 0 ? method + labelCount : method;
+        String desc = Type.getMethodDescriptor(Type.VOID_TYPE, argTypes);
+
+        mv.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, name, desc, false);
+    }
+
+    /**
+     * Records to the metric via the reporter method, unless it is switched off.
+     */
+    protected void injectRecord(Metric metric, String method) {
+        Label skip = skipIfDisabled(metric);
+        injectReporterCall(method, injectMetricToStack(metric));
+        endSkip(skip);
+    }
+
+    /**
+     * Records the time since the start time stored in the local to the timer, unless it is switched off.
+     */
+    protected void injectRecordTime(Metric metric, String method, int startTimeVar) {
+        Label skip = skipIfDisabled(metric);
+        Type[] metricArgTypes = injectMetricToStack(metric);
+
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        mv.visitVarInsn(LLOAD, startTimeVar);
+        mv.visitInsn(LSUB);
+        injectReporterCall(method, metricArgTypes, Type.LONG_TYPE);
+        endSkip(skip);
+    }
+
+    /**
+     * Stores the start time of a timer in a new local, unless it is switched off.
+     *
+     * @return the local
+     */
+    protected int storeStartTime(Metric metric) {
+        int var = aa.newLocal(Type.LONG_TYPE);
+
+        Label skip = null;
+        if (dynamic) {
+            mv.visitInsn(LCONST_0);
+            mv.visitVarInsn(LSTORE, var);
+            skip = skipIfDisabled(metric);
+        }
+
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        mv.visitVarInsn(LSTORE, var);
+        endSkip(skip);
+
+        return var;
+    }
+
+    /**
+     * Loads each label value individually, or an array of them when there are more than the specialised record
+     * methods accept.
+     *
+     * @return the types loaded
+     */
+    private Type[] injectLabelValuesToStack(List<String> labelValues) {
+        if (labelValues.size() > MAX_SPECIALISED_LABELS) {
+            injectLabelsToStack(labelValues);
+
+            return new Type[] {STRING_ARRAY_TYPE};
+        }
+
+        Type[] types = new Type[labelValues.size()];
+        for (int i = 0; i < labelValues.size(); i++) {
+            injectLabelValueToStack(labelValues.get(i));
+            types[i] = STRING_TYPE;
+        }
+
+        return types;
+    }
+
+    protected void injectLabelsToStack(List<String> labelValues) {
+        OpCodeUtil.visitIntConstant(mv, labelValues.size());
+        mv.visitTypeInsn(ANEWARRAY, STRING_TYPE.getInternalName());
+
+        for (int i = 0; i < labelValues.size(); i++) {
+            mv.visitInsn(DUP);
+            OpCodeUtil.visitIntConstant(mv, i);
+            injectLabelValueToStack(labelValues.get(i));
+            mv.visitInsn(AASTORE);
         }
     }
 
     private void injectLabelValueToStack(String labelValue) {
-        if (!isTemplatedLabelValue(labelValue)) {
+        Integer labelValueVar = labelValueVars.get(labelValue);
+
+        if (labelValueVar != null) {
+            mv.visitVarInsn(ALOAD, labelValueVar);
+        }
+        else if (!isTemplatedLabelValue(labelValue)) {
             mv.visitLdcInsn(labelValue);
         } 
         else {
+            Type type;
+
             if (isThis(labelValue)) {
                 mv.visitVarInsn(ALOAD, 0); //aa.loadThis();
+                type = Type.getObjectType(className);
             }
             
             else {
                 int argIndex = getLabelVarIndex(labelValue);
+                type = argTypes[argIndex];
 
-                boxParameterAndLoad(argIndex);
+                // aa.loadArg(argIndex); //doesn't work...
+                mv.visitVarInsn(type.getOpcode(ILOAD), getStackIndex(argIndex));
             }
 
             if (isLabelVarNested(labelValue)) {
-                mv.visitLdcInsn(getNestedLabelVar(labelValue));
-
-                mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PropertyUtils.class),
-                        "getNestedProperty",
-                        Type.getMethodDescriptor(
-                                Type.getType(Object.class),
-                                Type.getType(Object.class), Type.getType(String.class)),
-                        false);
+                injectNestedPropertyToString(type, getNestedLabelVar(labelValue).split("\\."));
+            } else {
+                injectToString(type);
+            }
+        }
+    }
+
+    /**
+     * Calls the getter for each property in turn directly, as if written by hand, with a null check before each
+     * call. A null anywhere in the chain results in the label value "null". If a property cannot be resolved against
+     * the static type (e.g. it is only present on a subclass) the remainder of the path is read reflectively.
+     */
+    private void injectNestedPropertyToString(Type type, String[] properties) {
+        Label isNull = new Label();
+        Label end = new Label();
+
+        int index = 0;
+        for (; index < properties.length && type.getSort() == Type.OBJECT; index++) {
+            PropertyGetter getter = propertyResolver.resolve(type.getInternalName(), properties[index], className);
+            if (getter == null) {
+                break;
             }
 
-            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(String.class),
-                    "valueOf",
+            mv.visitInsn(DUP);
+            mv.visitJumpInsn(IFNULL, isNull);
+            mv.visitMethodInsn(getter.isOwnerInterface() ? INVOKEINTERFACE : INVOKEVIRTUAL,
+                    getter.getOwner(), getter.getName(), getter.getDesc(), getter.isOwnerInterface());
+
+            type = getter.getReturnType();
+        }
+
+        if (index < properties.length) {
+            aa.valueOf(type);
+            mv.visitLdcInsn(join(properties, index));
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(NestedPropertyReader.class),
+                    "getNestedProperty",
                     Type.getMethodDescriptor(
-                            Type.getType(String.class),
-                            Type.getType(Object.class)),
+                            Type.getType(Object.class),
+                            Type.getType(Object.class), Type.getType(String.class)),
                     false);
+
+            type = Type.getType(Object.class);
         }
 
-        mv.visitInsn(AASTORE);
+        injectToString(type);
+
+        if (index > 0) {
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(isNull);
+            mv.visitInsn(POP);
+            mv.visitLdcInsn("null");
+            mv.visitLabel(end);
+        }
     }
 
-    private void boxParameterAndLoad(int argIndex) {
-        Type type = argTypes[argIndex];
-        int stackIndex = getStackIndex(argIndex);
-        
+    /**
+     * String.valueOf of the value on the stack. Primitives use the matching overload so they are never boxed.
+     */
+    private void injectToString(Type type) {
+        Type argType;
+
         switch (type.getSort()) {
-            case Type.OBJECT: //no need to box Object
-                mv.visitVarInsn(ALOAD, stackIndex);
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.INT:
+            case Type.LONG:
+            case Type.FLOAT:
+            case Type.DOUBLE:
+                argType = type;
+                break;
+
+            case Type.BYTE:
+            case Type.SHORT:
+                argType = Type.INT_TYPE;
                 break;
-                
+
             default:
-                // aa.loadArg(argIndex); //doesn't work...
-                mv.visitVarInsn(type.getOpcode(Opcodes.ILOAD), stackIndex);
-                aa.valueOf(type);
+                argType = Type.getType(Object.class);
                 break;
         }
+
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(String.class),
+                "valueOf",
+                Type.getMethodDescriptor(Type.getType(String.class), argType),
+                false);
+    }
+
+    private static Metric[] usedBy(String labelValue, Metric... metrics) {
+        List<Metric> using = new ArrayList<Metric>();
+        for (Metric metric : metrics) {
+            if (metric != null && metric.getLabels() != null && getLabelValues(metric.getLabels()).contains(labelValue)) {
+                using.add(metric);
+            }
+        }
+        return using.toArray(new Metric[using.size()]);
     }
-    
+
+    private static String join(String[] properties, int from) {
+        StringBuilder path = new StringBuilder(properties[from]);
+        for (int i = from + 1; i < properties.length; i++) {
+            path.append('.').append(properties[i]);
+        }
+        return path.toString();
+    }
+
     private int getStackIndex(int arg) {
         int index = (access & Opcodes.ACC_STATIC) == 0 ? 1 : 0;
         for (int i = 0; i < arg; i++) {
@@ -1,8 +1,5 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
-import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
-import static com.fleury.metrics.agent.model.MetricType.Counted;
-
 import com.fleury.metrics.agent.model.Metric;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
@@ -31,10 +28,7 @@ import org.objectweb.asm.commons.AdviceAdapter;
 public class CounterInjector extends AbstractInjector {
 
     private static final String METHOD = "recordCount";
-    private static final String SIGNATURE = Type.getMethodDescriptor(
-            Type.VOID_TYPE,
-            Type.getType(Counted.getCoreType()), Type.getType(String[].class));
-    
+
     private final Metric metric;
 
     public CounterInjector(Metric metric, AdviceAdapter aa, String className, Type[] argTypes, int access) {
@@ -44,10 +38,8 @@ public class CounterInjector extends AbstractInjector {
 
     @Override
     public void injectAtMethodEnter() {
-        mv.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), Type.getDescriptor(Counted.getCoreType()));
-        injectLabelsToStack(metric);
-
-        mv.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, METHOD, SIGNATURE, false);
+        storeEnabled(metric);
+        injectRecord(metric, METHOD);
     }
 
 }
@@ -1,8 +1,5 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
-import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
-import static com.fleury.metrics.agent.model.MetricType.Counted;
-
 import com.fleury.metrics.agent.model.Metric;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Type;
@@ -37,10 +34,7 @@ import org.objectweb.asm.commons.AdviceAdapter;
 public class ExceptionCounterInjector extends AbstractInjector {
 
     private static final String METHOD = "recordCount";
-    private static final String SIGNATURE = Type.getMethodDescriptor(
-            Type.VOID_TYPE,
-            Type.getType(Counted.getCoreType()), Type.getType(String[].class));
-    
+
     private final Metric metric;
     
     private Label startFinally;
@@ -52,6 +46,8 @@ public class ExceptionCounterInjector extends AbstractInjector {
 
     @Override
     public void injectAtMethodEnter() {
+        storeEnabled(metric);
+
         startFinally = new Label();
         mv.visitLabel(startFinally);
     }
@@ -62,10 +58,8 @@ public class ExceptionCounterInjector extends AbstractInjector {
         mv.visitTryCatchBlock(startFinally, endFinally, endFinally, null);
         mv.visitLabel(endFinally);
 
-        mv.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), Type.getDescriptor(Counted.getCoreType()));
-        injectLabelsToStack(metric);
-        mv.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, METHOD, SIGNATURE, false);
-        
+        injectRecord(metric, METHOD);
+
         mv.visitInsn(ATHROW);
     }
 }
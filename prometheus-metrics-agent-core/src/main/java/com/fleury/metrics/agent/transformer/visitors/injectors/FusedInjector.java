@@ -0,0 +1,173 @@
+package com.fleury.metrics.agent.transformer.visitors.injectors;
+
+import static com.fleury.metrics.agent.model.MetricType.Counted;
+import static com.fleury.metrics.agent.model.MetricType.ExceptionCounted;
+import static com.fleury.metrics.agent.model.MetricType.Gauged;
+import static com.fleury.metrics.agent.model.MetricType.Timed;
+
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import com.fleury.metrics.agent.transformer.visitors.MetricAdapter;
+import java.util.Map;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * Injects all the metrics of a method with one timestamp, exception handler and exit. Transforms from
+ *
+ * <pre>
+ * public Result someMethod() {
+ *     //original method code
+ *     return result;
+ * }
+ * </pre>
+ *
+ * To
+ *
+ * <pre>
+ * public Result someMethod() {
+ *     String label0 = String.valueOf(arg0); //only label values shared between metrics
+ *     PrometheusMetricSystem.recordCount(COUNTER, label0);
+ *     Gauge.Child gauge = GAUGE_CHILDREN.get(label0);
+ *     PrometheusMetricSystem.recordGaugeInc(gauge);
+ *     TimerHistogram.Child timer = TIMER_CHILDREN.get(label0);
+ *     long startTimer = System.nanoTime();
+ *     Result returnValue;
+ *     try {
+ *
+ *         //original method code, with each return replaced by
+ *         returnValue = result;
+ *         goto exit;
+ *
+ *     } catch (Throwable t) {
+ *         PrometheusMetricSystem.recordCount(EXCEPTION_COUNTER, label0);
+ *         PrometheusMetricSystem.recordTime(timer, System.nanoTime() - startTimer);
+ *         PrometheusMetricSystem.recordGaugeDec(gauge);
+ *         throw t;
+ *     }
+ *     exit:
+ *     PrometheusMetricSystem.recordTime(timer, System.nanoTime() - startTimer);
+ *     PrometheusMetricSystem.recordGaugeDec(gauge);
+ *     return returnValue;
+ * }
+ * </pre>
+ *
+ * @author Will Fleury
+ */
+public class FusedInjector extends AbstractInjector {
+
+    private static final String COUNT_METHOD = "recordCount";
+    private static final String GAUGE_INC_METHOD = "recordGaugeInc";
+    private static final String GAUGE_DEC_METHOD = "recordGaugeDec";
+    private static final String TIMER_METHOD = "recordTime";
+
+    private final Metric counted;
+    private final Metric gauged;
+    private final Metric timed;
+    private final Metric exceptionCounted;
+    private final Type returnType;
+
+    private int startTimeVar;
+    private int returnValueVar = -1;
+    private Label startTry;
+    private Label exit;
+
+    public FusedInjector(Map<MetricType, Metric> metrics, AdviceAdapter aa, String className, Type[] argTypes,
+            int access) {
+        super(aa, className, argTypes, access);
+
+        this.counted = metrics.get(Counted);
+        this.gauged = metrics.get(Gauged);
+        this.timed = metrics.get(Timed);
+        this.exceptionCounted = metrics.get(ExceptionCounted);
+        this.returnType = ((MetricAdapter) aa).getReturnType();
+    }
+
+    @Override
+    public void injectAtMethodEnter() {
+        storeEnabled(counted, gauged, timed, exceptionCounted);
+        storeSharedLabelValues(counted, gauged, timed, exceptionCounted);
+
+        if (counted != null) {
+            injectRecord(counted, COUNT_METHOD);
+        }
+
+        if (gauged != null) {
+            storeChild(gauged);
+            injectRecord(gauged, GAUGE_INC_METHOD);
+        }
+
+        if (timed != null) {
+            storeChild(timed);
+            startTimeVar = storeStartTime(timed);
+        }
+
+        if (timed != null || gauged != null || exceptionCounted != null) {
+            startTry = new Label();
+            mv.visitLabel(startTry);
+        }
+    }
+
+    @Override
+    public boolean injectAtReturn(int opcode) {
+        if (timed == null && gauged == null) {
+            return false;
+        }
+
+        if (opcode != RETURN) {
+            if (returnValueVar < 0) {
+                returnValueVar = aa.newLocal(returnType);
+            }
+            mv.visitVarInsn(returnType.getOpcode(ISTORE), returnValueVar);
+        }
+
+        if (exit == null) {
+            exit = new Label();
+        }
+        mv.visitJumpInsn(GOTO, exit);
+
+        return true;
+    }
+
+    @Override
+    public void injectAtVisitMaxs(int maxStack, int maxLocals) {
+        if (startTry == null) {
+            return;
+        }
+
+        Label endTry = new Label();
+        mv.visitLabel(endTry);
+
+        if (exit != null) {
+            mv.visitLabel(exit);
+            onExit();
+
+            if (returnType.getSort() != Type.VOID) {
+                mv.visitVarInsn(returnType.getOpcode(ILOAD), returnValueVar);
+            }
+            mv.visitInsn(returnType.getOpcode(IRETURN));
+        }
+
+        Label handler = new Label();
+        mv.visitTryCatchBlock(startTry, endTry, handler, null);
+        mv.visitLabel(handler);
+
+        if (exceptionCounted != null) {
+            injectRecord(exceptionCounted, COUNT_METHOD);
+        }
+        onExit();
+
+        mv.visitInsn(ATHROW);
+    }
+
+    private void onExit() {
+        if (timed != null) {
+            injectRecordTime(timed, TIMER_METHOD, startTimeVar);
+        }
+
+        if (gauged != null) {
+            injectRecord(gauged, GAUGE_DEC_METHOD);
+        }
+    }
+}
@@ -1,8 +1,5 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
-import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
-import static com.fleury.metrics.agent.model.MetricType.Gauged;
-
 import com.fleury.metrics.agent.model.Metric;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Type;
@@ -22,26 +19,26 @@ import org.objectweb.asm.commons.AdviceAdapter;
  *
  * <pre>
  * public void someMethod() {
- *     PrometheusMetricSystem.recordGaugeInc(GAUGE, labels);
+ *     Gauge.Child gauge = GAUGE_CHILDREN.get(labels);
+ *     PrometheusMetricSystem.recordGaugeInc(gauge);
  *     try {
  *
  *         //original method code
  *
  *     } finally {
- *         PrometheusMetricSystem.recordGaugeDec(GAUGE, labels);
+ *         PrometheusMetricSystem.recordGaugeDec(gauge);
  *     }
  * }
  * </pre>
  *
+ * The child is only looked up at entry when the labels are templated, otherwise it is read from its static field.
+ *
  * @author Will Fleury
  */
 public class GaugeInjector extends AbstractInjector {
 
     private static final String INC_METHOD = "recordGaugeInc";
     private static final String DEC_METHOD = "recordGaugeDec";
-    private static final String SIGNATURE = Type.getMethodDescriptor(
-            Type.VOID_TYPE,
-            Type.getType(Gauged.getCoreType()), Type.getType(String[].class));
 
     private final Metric metric;
 
@@ -54,13 +51,13 @@ public class GaugeInjector extends AbstractInjector {
 
     @Override
     public void injectAtMethodEnter() {
+        storeEnabled(metric);
+        storeChild(metric);
+
         startFinally = new Label();
         mv.visitLabel(startFinally);
 
-        mv.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), Type.getDescriptor(Gauged.getCoreType()));
-        injectLabelsToStack(metric);
-
-        mv.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, INC_METHOD, SIGNATURE, false);
+        injectRecord(metric, INC_METHOD);
     }
 
     @Override
@@ -81,9 +78,6 @@ public class GaugeInjector extends AbstractInjector {
     }
 
     private void onFinally(int opcode) {
-        mv.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), Type.getDescriptor(Gauged.getCoreType()));
-        injectLabelsToStack(metric);
-
-        mv.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, DEC_METHOD, SIGNATURE, false);
+        injectRecord(metric, DEC_METHOD);
     }
 }
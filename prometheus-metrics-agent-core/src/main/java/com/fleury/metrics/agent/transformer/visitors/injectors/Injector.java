@@ -11,4 +11,13 @@ public interface Injector {
     public void injectAtVisitMaxs(int maxStack, int maxLocals);
 
     public void injectAtMethodExit(int opcode);
+
+    /**
+     * Called for each return instruction (not ATHROW) before {@link #injectAtMethodExit(int)}, so an injector can
+     * replace the return, e.g. with a jump to a shared exit block. Returning true skips the remaining injectors, the
+     * return instruction and {@link #injectAtMethodExit(int)} of all injectors for that instruction.
+     *
+     * @return true if the injector replaced the return instruction
+     */
+    public boolean injectAtReturn(int opcode);
 }
@@ -2,9 +2,8 @@ package com.fleury.metrics.agent.transformer.visitors.injectors;
 
 import com.fleury.metrics.agent.model.Metric;
 import com.fleury.metrics.agent.model.MetricType;
+import com.fleury.metrics.agent.reporter.SelfMetrics;
 
-import static com.fleury.metrics.agent.model.MetricType.ExceptionCounted;
-import static com.fleury.metrics.agent.model.MetricType.Timed;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -19,22 +18,21 @@ public class InjectorFactory {
     
     public static List<Injector> createInjectors(Map<MetricType, Metric> metrics, AdviceAdapter adviceAdapter, String className, Type[] argTypes, int access) {
         List<Injector> injectors = new ArrayList<Injector>();
-        
-        //handle special case for both exception counter and timer (try catch finally)
-        if (metrics.containsKey(ExceptionCounted) && metrics.containsKey(Timed)) {
-            injectors.add(new TimedExceptionCountedInjector(
-                    metrics.get(Timed), 
-                    metrics.get(ExceptionCounted), 
-                    adviceAdapter, className, argTypes, access));
-            
-            metrics.remove(Timed);
-            metrics.remove(ExceptionCounted);
+
+        for (MetricType type : metrics.keySet()) {
+            SelfMetrics.recordInjection(type);
+        }
+
+        //several metrics on the same method share a single entry block, timestamp, exception handler and exit path
+        if (metrics.size() > 1) {
+            injectors.add(new FusedInjector(metrics, adviceAdapter, className, argTypes, access));
+            return injectors;
         }
-        
+
         for (Metric metric : metrics.values()) {
             injectors.add(createInjector(metric, adviceAdapter, className, argTypes, access));
         }
-        
+
         return injectors;
     }
 
@@ -1,8 +1,5 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
-import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
-import static com.fleury.metrics.agent.model.MetricType.Timed;
-
 import com.fleury.metrics.agent.model.Metric;
 
 import org.objectweb.asm.Label;
@@ -22,25 +19,25 @@ import org.objectweb.asm.commons.AdviceAdapter;
  *
  * <pre>
  * public void someMethod() {
+ *     TimerHistogram.Child timer = TIMER_CHILDREN.get(labels);
  *     long startTimer = System.nanoTime();
  *     try {
  *
  *         //original method code
  *
  *     } finally {
- *         PrometheusMetricSystem.recordTime(TIMER, labels);
+ *         PrometheusMetricSystem.recordTime(timer, System.nanoTime() - startTimer);
  *     }
  * }
  * </pre>
  *
+ * The child is only looked up at entry when the labels are templated, otherwise it is read from its static field.
+ *
  * @author Will Fleury
  */
 public class TimerInjector extends AbstractInjector {
 
     private static final String METHOD = "recordTime";
-    private static final String SIGNATURE = Type.getMethodDescriptor(
-            Type.VOID_TYPE,
-            Type.getType(Timed.getCoreType()), Type.getType(String[].class), Type.LONG_TYPE);
 
     private final Metric metric;
 
@@ -54,10 +51,11 @@ public class TimerInjector extends AbstractInjector {
 
     @Override
     public void injectAtMethodEnter() {
+        storeEnabled(metric);
+        storeChild(metric);
+
         startFinally = new Label();
-        startTimeVar = aa.newLocal(Type.LONG_TYPE);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
-        mv.visitVarInsn(LSTORE, startTimeVar);
+        startTimeVar = storeStartTime(metric);
         mv.visitLabel(startFinally);
     }
 
@@ -81,12 +79,6 @@ public class TimerInjector extends AbstractInjector {
     }
 
     private void onFinally(int opcode) {
-        mv.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), Type.getDescriptor(Timed.getCoreType()));
-        injectLabelsToStack(metric);
-
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
-        mv.visitVarInsn(LLOAD, startTimeVar);
-        mv.visitInsn(LSUB);
-        mv.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, METHOD, SIGNATURE, false);
+        injectRecordTime(metric, METHOD, startTimeVar);
     }
 }
@@ -0,0 +1,34 @@
+package com.fleury.metrics.agent.introspector;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the getters of a class in the class itself, so they are strongly referenced yet unloaded with it, and looked up
+ * without locking.
+ *
+ * @author Will Fleury
+ */
+class ClassValueGetterCache extends GetterCache {
+
+    private final ClassValue<ConcurrentMap<String, Method>> getters = new ClassValue<ConcurrentMap<String, Method>>() {
+        @Override
+        protected ConcurrentMap<String, Method> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<String, Method>();
+        }
+    };
+
+    @Override
+    Method get(Class<?> clazz, String property) {
+        ConcurrentMap<String, Method> classGetters = getters.get(clazz);
+
+        Method getter = classGetters.get(property);
+        if (getter == null) {
+            getter = NestedPropertyReader.findGetter(clazz, property);
+            classGetters.putIfAbsent(property, getter);
+        }
+
+        return getter;
+    }
+}
@@ -0,0 +1,127 @@
+package com.fleury.metrics.agent.reporter;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The bootstrap methods of the invokedynamic call sites injected with dynamicMetrics, loading the metrics (relinked
+ * when MetricHandles replaces them) and a switch per metric read at method entry which the code recording to it is
+ * skipped on while it is off.
+ *
+ * @author Will Fleury
+ */
+public class MetricCallSites {
+
+    private static final MethodHandle ENABLED = MethodHandles.constant(boolean.class, true);
+    private static final MethodHandle DISABLED = MethodHandles.constant(boolean.class, false);
+
+    // shared by all call sites of the metric, held only by the classes linked to it so dropped once they unload
+    private static final Map<String, WeakReference<MutableCallSite>> switches =
+            new HashMap<String, WeakReference<MutableCallSite>>();
+    private static final Set<String> disabled = new HashSet<String>();
+
+    // shared by all call sites loading the handle at the index, relinked when it is replaced
+    private static final Map<Integer, WeakReference<MutableCallSite>> constants =
+            new HashMap<Integer, WeakReference<MutableCallSite>>();
+
+    static {
+        MetricHandles.setListener(new MetricHandles.Listener() {
+            @Override
+            public void changed(int index, Object handle) {
+                relink(index, handle);
+            }
+        });
+    }
+
+    public static synchronized CallSite constant(MethodHandles.Lookup lookup, String name, MethodType type,
+            int index) {
+
+        MutableCallSite site = get(constants, index);
+        if (site == null) {
+            purge(constants);
+            site = new MutableCallSite(MethodHandles.constant(type.returnType(), MetricHandles.get(index)));
+            constants.put(index, new WeakReference<MutableCallSite>(site));
+        }
+
+        return site;
+    }
+
+    /**
+     * A released index is unlinked so the call sites of a handle reusing it are linked anew, those already linked keep
+     * loading the released handle.
+     */
+    private static synchronized void relink(int index, Object handle) {
+        if (handle == null) {
+            constants.remove(index);
+            return;
+        }
+
+        MutableCallSite site = get(constants, index);
+        if (site != null) {
+            site.setTarget(MethodHandles.constant(site.type().returnType(), handle));
+            MutableCallSite.syncAll(new MutableCallSite[] {site});
+        }
+    }
+
+    public static synchronized CallSite enabled(MethodHandles.Lookup lookup, String name, MethodType type,
+            String metric) {
+
+        MutableCallSite site = get(switches, metric);
+        if (site == null) {
+            purge(switches);
+            site = new MutableCallSite(disabled.contains(metric) ? DISABLED : ENABLED);
+            switches.put(metric, new WeakReference<MutableCallSite>(site));
+        }
+
+        return site;
+    }
+
+    /**
+     * Also applies to the call sites of the metric linked later. An invocation in flight records as it started, e.g.
+     * a gauge it incremented is decremented.
+     */
+    public static synchronized void setEnabled(String metric, boolean enabled) {
+        if (enabled ? !disabled.remove(metric) : !disabled.add(metric)) {
+            return;
+        }
+
+        MutableCallSite site = get(switches, metric);
+        if (site == null) {
+            return;
+        }
+
+        site.setTarget(enabled ? ENABLED : DISABLED);
+        MutableCallSite.syncAll(new MutableCallSite[] {site});
+    }
+
+    public static synchronized boolean isEnabled(String metric) {
+        return !disabled.contains(metric);
+    }
+
+    public static synchronized Set<String> getDisabled() {
+        return new TreeSet<String>(disabled);
+    }
+
+    private static <K> MutableCallSite get(Map<K, WeakReference<MutableCallSite>> sites, K key) {
+        WeakReference<MutableCallSite> ref = sites.get(key);
+        return ref == null ? null : ref.get();
+    }
+
+    private static void purge(Map<?, WeakReference<MutableCallSite>> sites) {
+        for (Iterator<WeakReference<MutableCallSite>> it = sites.values().iterator(); it.hasNext();) {
+            if (it.next().get() == null) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.fleury.metrics.agent.reporter;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Switches metrics on and off via JMX, see {@link MetricCallSites}.
+ *
+ * @author Will Fleury
+ */
+public class MetricSwitches implements MetricSwitchesMBean {
+
+    private static final Logger LOGGER = Logger.getLogger(MetricSwitches.class.getName());
+
+    public static final String OBJECT_NAME = "com.fleury.metrics.agent:type=MetricSwitches";
+
+    /**
+     * Registers the MBean with the platform MBean server unless already registered.
+     */
+    public static void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new MetricSwitches(), name);
+        }
+    }
+
+    @Override
+    public void enable(String metric) {
+        LOGGER.info("Enabling metric " + metric);
+        MetricCallSites.setEnabled(metric, true);
+    }
+
+    @Override
+    public void disable(String metric) {
+        LOGGER.info("Disabling metric " + metric);
+        MetricCallSites.setEnabled(metric, false);
+    }
+
+    @Override
+    public boolean isEnabled(String metric) {
+        return MetricCallSites.isEnabled(metric);
+    }
+
+    @Override
+    public String[] getDisabledMetrics() {
+        Set<String> disabled = MetricCallSites.getDisabled();
+        return disabled.toArray(new String[disabled.size()]);
+    }
+}
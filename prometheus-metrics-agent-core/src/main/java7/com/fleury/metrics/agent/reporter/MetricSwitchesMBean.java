@@ -0,0 +1,16 @@
+package com.fleury.metrics.agent.reporter;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public interface MetricSwitchesMBean {
+
+    void enable(String metric);
+
+    void disable(String metric);
+
+    boolean isEnabled(String metric);
+
+    String[] getDisabledMetrics();
+}
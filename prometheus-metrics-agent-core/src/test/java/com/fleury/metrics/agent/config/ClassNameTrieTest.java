@@ -0,0 +1,74 @@
+package com.fleury.metrics.agent.config;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class ClassNameTrieTest {
+
+    private static final int WHITE = 1;
+    private static final int BLACK = 2;
+
+    @Test
+    public void shouldMatchPrefixes() {
+        ClassNameTrie trie = new ClassNameTrie();
+        trie.add("com/fleury/test/ClassName", WHITE);
+        trie.add("com/fleury/package2", WHITE);
+
+        assertEquals(WHITE, trie.match("com/fleury/test/ClassName"));
+        assertEquals(WHITE, trie.match("com/fleury/test/ClassName$Inner"));
+        assertEquals(WHITE, trie.match("com/fleury/package2/Other"));
+        assertEquals(0, trie.match("com/fleury/test/Other"));
+        assertEquals(0, trie.match("com/fleury"));
+        assertEquals(0, trie.match("org/fleury/package2/Other"));
+    }
+
+    @Test
+    public void shouldMatchAllListsContainingPrefix() {
+        ClassNameTrie trie = new ClassNameTrie();
+        trie.add("com/fleury", WHITE);
+        trie.add("com/", BLACK);
+        trie.add("com/fleury/internal", BLACK);
+
+        assertEquals(WHITE | BLACK, trie.match("com/fleury/Engine"));
+        assertEquals(BLACK, trie.match("com/other/Engine"));
+        assertEquals(0, trie.match("org/fleury/Engine"));
+    }
+
+    @Test
+    public void shouldMatchEverythingWithEmptyPrefix() {
+        ClassNameTrie trie = new ClassNameTrie();
+        trie.add("", BLACK);
+
+        assertEquals(BLACK, trie.match("com/fleury/Engine"));
+    }
+
+    @Test
+    public void shouldMatchWildcardWithinSegment() {
+        ClassNameTrie trie = new ClassNameTrie();
+        trie.add("com/*/internal/", BLACK);
+        trie.add("com/fleury/*Service", WHITE);
+
+        assertEquals(BLACK, trie.match("com/fleury/internal/Engine"));
+        assertEquals(BLACK, trie.match("com/other/internal/Engine"));
+        assertEquals(0, trie.match("com/fleury/sub/internal/Engine"));
+
+        assertEquals(WHITE, trie.match("com/fleury/EngineService"));
+        assertEquals(WHITE, trie.match("com/fleury/Service"));
+        assertEquals(0, trie.match("com/fleury/sub/EngineService"));
+    }
+
+    @Test
+    public void shouldMatchTrailingWildcard() {
+        ClassNameTrie trie = new ClassNameTrie();
+        trie.add("com/fleury/*", WHITE);
+
+        assertEquals(WHITE, trie.match("com/fleury/"));
+        assertEquals(WHITE, trie.match("com/fleury/Engine"));
+        assertEquals(0, trie.match("com/fleur"));
+    }
+}
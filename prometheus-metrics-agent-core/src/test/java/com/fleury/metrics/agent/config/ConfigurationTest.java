@@ -30,6 +30,11 @@ public class ConfigurationTest {
 
         assertMetricDetails(metrics.get(0), Counted, "count", "trying to count", Arrays.asList("name1:value1", "name2:value2"));
         assertMetricDetails(metrics.get(1), Timed, "timer", "trying to time", Arrays.asList("name1:value1", "name2:value2"));
+        assertEquals(0, metrics.get(0).getMaxSeries());
+        assertEquals(100, metrics.get(1).getMaxSeries());
+        assertEquals(null, metrics.get(0).getBuckets());
+        assertEquals(5, metrics.get(1).getBuckets().size());
+        assertEquals(0.05, metrics.get(1).getBuckets().get(4), 1E-9);
 
         metrics = config.findMetrics("com/test/Special", "sampleMethod", "(Ljava/lang/String;)J");
         assertEquals(1, metrics.size());
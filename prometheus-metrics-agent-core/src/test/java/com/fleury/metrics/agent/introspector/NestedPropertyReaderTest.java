@@ -0,0 +1,60 @@
+package com.fleury.metrics.agent.introspector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class NestedPropertyReaderTest {
+
+    @Test
+    public void shouldReadNestedProperties() {
+        Request request = new Request(new Uri("/path"));
+
+        assertEquals("/path", NestedPropertyReader.getNestedProperty(request, "uri.path"));
+        assertEquals("/path", NestedPropertyReader.getNestedProperty(request, "uri.path"));
+        assertNull(NestedPropertyReader.getNestedProperty(request, "uri.missing"));
+        assertNull(NestedPropertyReader.getNestedProperty(new Request(null), "uri.path"));
+    }
+
+    @Test
+    public void shouldCacheGettersPerClass() throws Exception {
+        GetterCache cache = GetterCache.create();
+
+        assertEquals("ClassValueGetterCache", cache.getClass().getSimpleName());
+        assertEquals(Uri.class.getMethod("getPath"), cache.get(Uri.class, "path"));
+        assertSame(cache.get(Uri.class, "path"), cache.get(Uri.class, "path"));
+        assertSame(NestedPropertyReader.NOT_FOUND, cache.get(Uri.class, "missing"));
+    }
+
+    public static class Request {
+
+        private final Uri uri;
+
+        Request(Uri uri) {
+            this.uri = uri;
+        }
+
+        public Uri getUri() {
+            return uri;
+        }
+    }
+
+    public static class Uri {
+
+        private final String path;
+
+        Uri(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.fleury.metrics.agent.reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.prometheus.client.Collector;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class BackgroundJmxCollectorTest {
+
+    private final AtomicInteger collections = new AtomicInteger();
+    private final MBeanServer server = MBeanServerFactory.newMBeanServer();
+
+    private BackgroundJmxCollector collector;
+
+    @After
+    public void close() {
+        if (collector != null) {
+            collector.close();
+        }
+    }
+
+    @Test
+    public void shouldServeLastRefreshWithoutCollecting() throws Exception {
+        collector = create(Collections.<ObjectName>emptyList(), Collections.<ObjectName>emptyList()).start();
+        awaitCollections(1);
+
+        List<Collector.MetricFamilySamples> samples = collector.collect();
+        assertSame(samples, collector.collect());
+        assertEquals(1.0, samples.get(0).samples.get(0).value, 0);
+        assertEquals(1, collections.get());
+    }
+
+    @Test
+    public void shouldRefreshOnRegistrationOfMatchingMBean() throws Exception {
+        collector = create(Arrays.asList(new ObjectName("test.background:*")),
+                Collections.<ObjectName>emptyList()).start();
+        awaitCollections(1);
+
+        server.registerMBean(new Sample(), new ObjectName("test.other:type=Sample"));
+        Thread.sleep(5 * BackgroundJmxCollector.NOTIFICATION_DELAY_MILLIS);
+        assertEquals(1, collections.get());
+
+        ObjectName name = new ObjectName("test.background:type=Sample");
+        server.registerMBean(new Sample(), name);
+        awaitCollections(2);
+
+        server.unregisterMBean(name);
+        awaitCollections(3);
+    }
+
+    @Test
+    public void shouldIndexRegisteredMBeans() throws Exception {
+        collector = create(Arrays.asList(new ObjectName("test.background:*")),
+                Collections.<ObjectName>emptyList()).start();
+        int indexed = collector.getIndexed();
+
+        ObjectName name = new ObjectName("test.background:type=Indexed");
+        server.registerMBean(new Sample(), name);
+        assertEquals(indexed + 1, collector.getIndexed());
+
+        server.unregisterMBean(name);
+        assertEquals(indexed, collector.getIndexed());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectRefreshIntervalNotPositive() {
+        new BackgroundJmxCollector(null, server, Collections.<ObjectName>emptyList(),
+                Collections.<ObjectName>emptyList(), 0);
+    }
+
+    @Test
+    public void shouldMatchWhitelistExceptBlacklist() throws Exception {
+        collector = create(Arrays.asList(new ObjectName("test.background:*")),
+                Arrays.asList(new ObjectName("test.background:type=Excluded,*")));
+
+        assertTrue(collector.matches(new ObjectName("test.background:type=Sample")));
+        assertFalse(collector.matches(new ObjectName("test.background:type=Excluded,name=a")));
+        assertFalse(collector.matches(new ObjectName("test.other:type=Sample")));
+    }
+
+    private BackgroundJmxCollector create(List<ObjectName> whitelist, List<ObjectName> blacklist) {
+        return new BackgroundJmxCollector(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                MetricFamilySamples.Sample sample = new MetricFamilySamples.Sample("jmx_sample",
+                        Collections.<String>emptyList(), Collections.<String>emptyList(), collections.incrementAndGet());
+                return Collections.singletonList(new MetricFamilySamples(
+                        "jmx_sample", Type.GAUGE, "help", Collections.singletonList(sample)));
+            }
+        }, server, whitelist, blacklist, 60000);
+    }
+
+    private void awaitCollections(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (collections.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, collections.get());
+    }
+
+    public interface SampleMBean {
+
+        int getValue();
+    }
+
+    public static class Sample implements SampleMBean {
+
+        @Override
+        public int getValue() {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.fleury.metrics.agent.reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.prometheus.client.Collector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class CachedCollectorTest {
+
+    private final AtomicInteger collections = new AtomicInteger();
+
+    @Test
+    public void shouldShareCollectionBetweenConcurrentScrapes() throws Exception {
+        final CountDownLatch collecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final CachedCollector collector = new CachedCollector(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                collecting.countDown();
+                await(release);
+                return samples(collections.incrementAndGet());
+            }
+        }, "test", 0);
+
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        ExecutorService executor = Executors.newFixedThreadPool(3, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                threads.add(thread);
+                return thread;
+            }
+        });
+        try {
+            List<Future<List<Collector.MetricFamilySamples>>> scrapes =
+                    new ArrayList<Future<List<Collector.MetricFamilySamples>>>();
+
+            scrapes.add(executor.submit(collect(collector)));
+            assertTrue(collecting.await(10, TimeUnit.SECONDS));
+            scrapes.add(executor.submit(collect(collector)));
+            scrapes.add(executor.submit(collect(collector)));
+
+            // the later scrapes are waiting on the first collection
+            awaitWaiting(threads.get(1));
+            awaitWaiting(threads.get(2));
+            release.countDown();
+
+            List<Collector.MetricFamilySamples> first = scrapes.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<List<Collector.MetricFamilySamples>> scrape : scrapes) {
+                assertSame(first, scrape.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, collections.get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // collected again once the shared collection completed as there is no ttl
+        collector.collect();
+        assertEquals(2, collections.get());
+    }
+
+    @Test
+    public void shouldReuseSamplesWithinTtl() {
+        CachedCollector collector = new CachedCollector(countingCollector(), "test", 60000);
+
+        List<Collector.MetricFamilySamples> first = collector.collect();
+        assertSame(first, collector.collect());
+        assertEquals(1, collections.get());
+    }
+
+    @Test
+    public void shouldCollectAgainAfterTtl() throws Exception {
+        CachedCollector collector = new CachedCollector(countingCollector(), "test", 1);
+
+        collector.collect();
+        Thread.sleep(5);
+        collector.collect();
+
+        assertEquals(2, collections.get());
+    }
+
+    @Test
+    public void shouldNotReuseFailedCollection() {
+        CachedCollector collector = new CachedCollector(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                if (collections.incrementAndGet() == 1) {
+                    throw new IllegalStateException("MBean query failed");
+                }
+                return samples(collections.get());
+            }
+        }, "test", 60000);
+
+        try {
+            collector.collect();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        assertEquals(2.0, collector.collect().get(0).samples.get(0).value, 0);
+        assertEquals(2, collections.get());
+    }
+
+    private Collector countingCollector() {
+        return new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                return samples(collections.incrementAndGet());
+            }
+        };
+    }
+
+    private static Callable<List<Collector.MetricFamilySamples>> collect(final Collector collector) {
+        return new Callable<List<Collector.MetricFamilySamples>>() {
+            @Override
+            public List<Collector.MetricFamilySamples> call() {
+                return collector.collect();
+            }
+        };
+    }
+
+    private static List<Collector.MetricFamilySamples> samples(double value) {
+        Collector.MetricFamilySamples.Sample sample = new Collector.MetricFamilySamples.Sample(
+                "cached", Collections.<String>emptyList(), Collections.<String>emptyList(), value);
+        return Collections.singletonList(new Collector.MetricFamilySamples(
+                "cached", Collector.Type.GAUGE, "help", Collections.singletonList(sample)));
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
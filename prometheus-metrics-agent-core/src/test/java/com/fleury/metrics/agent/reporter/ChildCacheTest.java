@@ -0,0 +1,149 @@
+package com.fleury.metrics.agent.reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class ChildCacheTest {
+
+    @Test
+    public void shouldReturnSameChildForEqualLabelValues() {
+        Counter counter = Counter.build().name("test").help("help").labelNames("a", "b").create();
+        ChildCache<Counter.Child> cache = new ChildCache<Counter.Child>(counter, "equal_values");
+
+        Counter.Child child = cache.get("x", "y");
+
+        assertSame(child, cache.get(new String("x"), new String("y")));
+        assertSame(child, cache.get(new String[] {"x", "y"}));
+        assertSame(child, counter.labels("x", "y"));
+        assertNotSame(child, cache.get("y", "x"));
+    }
+
+    @Test
+    public void shouldResolveChildrenBeyondCapacity() {
+        Counter counter = Counter.build().name("test").help("help").labelNames("a").create();
+        ChildCache<Counter.Child> cache = new ChildCache<Counter.Child>(counter, "beyond_capacity", 8);
+
+        for (int i = 0; i < 100; i++) {
+            cache.get(String.valueOf(i)).inc();
+            cache.get(String.valueOf(i)).inc();
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(2, (long) counter.labels(String.valueOf(i)).get());
+        }
+    }
+
+    @Test
+    public void shouldCountHitsMissesAndEvictions() {
+        String name = "cache_stats";
+        Counter counter = Counter.build().name("test").help("help").labelNames("a").create();
+        ChildCache<Counter.Child> cache = new ChildCache<Counter.Child>(counter, name, 8);
+
+        cache.get("x");
+        cache.get("x");
+        cache.get("x");
+
+        assertEquals(2, hits(name), 0);
+        assertEquals(1, (long) SelfMetrics.LABEL_CACHE_MISSES.labels(name).get());
+        assertEquals(0, (long) SelfMetrics.LABEL_CACHE_EVICTIONS.labels(name).get());
+
+        for (int i = 0; i < 9; i++) {
+            cache.get(String.valueOf(i));
+        }
+
+        assertEquals(10, (long) SelfMetrics.LABEL_CACHE_MISSES.labels(name).get());
+        assertEquals(2, (long) SelfMetrics.LABEL_CACHE_EVICTIONS.labels(name).get());
+    }
+
+    @Test
+    public void shouldSumHitsOfCachesOfSameMetric() {
+        String name = "shared_metric";
+        Counter counter = Counter.build().name("test").help("help").labelNames("a").create();
+        ChildCache<Counter.Child> first = new ChildCache<Counter.Child>(counter, name);
+        ChildCache<Counter.Child> second = new ChildCache<Counter.Child>(counter, name);
+
+        first.get("x");
+        first.get("x");
+        second.get("x");
+        second.get("x");
+        second.get("x");
+
+        assertEquals(3, hits(name), 0);
+    }
+
+    private static double hits(String name) {
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(SelfMetrics.LABEL_CACHE_HITS);
+        return registry.getSampleValue(SelfMetrics.PREFIX + "label_cache_hits_total",
+                new String[] {"metric"}, new String[] {name});
+    }
+
+    @Test
+    public void shouldEvictUnreferencedEntriesFirst() {
+        String name = "second_chance";
+        Counter counter = Counter.build().name("test").help("help").labelNames("a").create();
+        ChildCache<Counter.Child> cache = new ChildCache<Counter.Child>(counter, name, 8);
+
+        for (int i = 0; i < 8; i++) {
+            cache.get(String.valueOf(i));
+        }
+        cache.get("hot");
+        cache.get("hot");
+
+        for (int i = 0; i < 8; i++) {
+            cache.get("cold" + i);
+            cache.get("hot");
+        }
+
+        double misses = SelfMetrics.LABEL_CACHE_MISSES.labels(name).get();
+        assertEquals(8 + 1 + 8, (long) misses);
+    }
+
+    @Test
+    public void shouldFoldSeriesBeyondMaxSeriesIntoOverflow() {
+        String name = "max_series";
+        Counter counter = Counter.build().name("test").help("help").labelNames("a", "b").create();
+        ChildCache<Counter.Child> cache = new ChildCache<Counter.Child>(counter, name, 2, 3);
+
+        for (int i = 0; i < 10; i++) {
+            cache.get(String.valueOf(i), "b").inc();
+            cache.get("0", "b").inc();
+        }
+
+        assertEquals(11, (long) counter.labels("0", "b").get());
+        assertEquals(1, (long) counter.labels("1", "b").get());
+        assertEquals(1, (long) counter.labels("2", "b").get());
+        assertEquals(7, (long) counter.labels(ChildCache.OVERFLOW_LABEL_VALUE, ChildCache.OVERFLOW_LABEL_VALUE).get());
+        assertEquals(7, (long) SelfMetrics.OVERFLOW_RECORDS.labels(name).get());
+    }
+
+    @Test
+    public void shouldCountEveryRecordIntoOverflowIncludingAfterEviction() {
+        String name = "overflow_records";
+        Counter counter = Counter.build().name("test").help("help").labelNames("a").create();
+        ChildCache<Counter.Child> cache = new ChildCache<Counter.Child>(counter, name, 8, 1);
+
+        cache.get("series").inc();
+        cache.get("x").inc();
+        cache.get("x").inc();
+
+        // evicts x from the cache, so it is loaded again
+        for (int i = 0; i < 20; i++) {
+            cache.get(String.valueOf(i)).inc();
+        }
+        cache.get("x").inc();
+
+        double overflow = counter.labels(ChildCache.OVERFLOW_LABEL_VALUE).get();
+        assertEquals(23, (long) overflow);
+        assertEquals(overflow, SelfMetrics.OVERFLOW_RECORDS.labels(name).get(), 0);
+    }
+}
@@ -0,0 +1,126 @@
+package com.fleury.metrics.agent.reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.prometheus.client.Collector;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class CollectorPoolTest {
+
+    private final CollectorPool pool = new CollectorPool(Collections.<String, Object>singletonMap(
+            "collectorParallelism", 2));
+
+    @After
+    public void shutdown() {
+        pool.endScrape();
+        pool.shutdown();
+    }
+
+    @Test
+    public void shouldCollectInParallel() {
+        // neither collector completes unless both are collected at once
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        CachedCollector first = new CachedCollector(barrierCollector(barrier, 1), "parallel_first", 0);
+        CachedCollector second = new CachedCollector(barrierCollector(barrier, 2), "parallel_second", 0);
+        pool.add(first);
+        pool.add(second);
+
+        pool.beginScrape(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+
+        assertEquals(1.0, value(first.collect()), 0);
+        assertEquals(2.0, value(second.collect()), 0);
+    }
+
+    @Test
+    public void shouldServeLastSamplesWhenDeadlineMissed() throws Exception {
+        final AtomicInteger collections = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        CachedCollector collector = new CachedCollector(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                if (collections.incrementAndGet() == 2) {
+                    await(release);
+                }
+                return samples(collections.get());
+            }
+        }, "slow", 0);
+        pool.add(collector);
+
+        pool.beginScrape(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+        assertEquals(1.0, value(collector.collect()), 0);
+        pool.endScrape();
+
+        double misses = SelfMetrics.SCRAPE_COLLECTOR_DEADLINE_MISSES.labels("slow").get();
+
+        pool.beginScrape(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1.0, value(collector.collect()), 0);
+        pool.endScrape();
+
+        assertEquals(misses + 1, SelfMetrics.SCRAPE_COLLECTOR_DEADLINE_MISSES.labels("slow").get(), 0);
+
+        // a later scrape is given the collection missing the deadline, or a later one were it complete by then
+        release.countDown();
+        pool.beginScrape(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+        assertTrue(value(collector.collect()) >= 2);
+        assertTrue(SelfMetrics.SCRAPE_COLLECTOR_DURATION.labels("slow").getSum() > 0);
+    }
+
+    @Test
+    public void shouldCollectOnScrapeThreadWithoutDeadline() {
+        CachedCollector collector = new CachedCollector(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                return samples(Thread.currentThread().getName().startsWith("metrics-agent-collector-") ? 1 : 0);
+            }
+        }, "unpooled", 0);
+        pool.add(collector);
+
+        assertEquals(0.0, value(collector.collect()), 0);
+    }
+
+    private static Collector barrierCollector(final CyclicBarrier barrier, final double value) {
+        return new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                try {
+                    barrier.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return samples(value);
+            }
+        };
+    }
+
+    private static double value(List<Collector.MetricFamilySamples> samples) {
+        return samples.get(0).samples.get(0).value;
+    }
+
+    private static List<Collector.MetricFamilySamples> samples(double value) {
+        Collector.MetricFamilySamples.Sample sample = new Collector.MetricFamilySamples.Sample(
+                "pooled", Collections.<String>emptyList(), Collections.<String>emptyList(), value);
+        return Collections.singletonList(new Collector.MetricFamilySamples(
+                "pooled", Collector.Type.GAUGE, "help", Collections.singletonList(sample)));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.fleury.metrics.agent.reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class MetricHandlesTest {
+
+    @Test
+    public void shouldReplaceChangedMetricAtSameIndices() {
+        MetricHandles.Handles handles = MetricHandles.register(metric(MetricType.Counted, "handles_replaced", "before"));
+        Object before = MetricHandles.get(handles.getMetric());
+
+        MetricHandles.Handles replaced = MetricHandles.register(metric(MetricType.Counted, "handles_replaced", "after"));
+        ((Counter) MetricHandles.get(handles.getMetric())).inc();
+
+        assertEquals(handles.getMetric(), replaced.getMetric());
+        assertNotSame(before, MetricHandles.get(handles.getMetric()));
+        assertEquals(1, CollectorRegistry.defaultRegistry.getSampleValue("handles_replaced"), 0);
+    }
+
+    @Test
+    public void shouldReplaceChildrenOfChangedMetricAtSameIndices() {
+        Metric labelled = Metric.builder().type(MetricType.Counted).name("handles_children").doc("before")
+                .labels(Arrays.asList("a:x", "b:$0")).createMetric();
+        MetricHandles.Handles handles = MetricHandles.register(labelled);
+
+        Metric changed = Metric.builder().type(MetricType.Counted).name("handles_children").doc("after")
+                .labels(Arrays.asList("a:x", "b:$0")).createMetric();
+        MetricHandles.register(changed);
+
+        ((ChildCache<Counter.Child>) MetricHandles.get(handles.getChildCache())).get("x", "y").inc();
+
+        assertEquals(1, CollectorRegistry.defaultRegistry.getSampleValue("handles_children",
+                new String[] {"a", "b"}, new String[] {"x", "y"}), 0);
+    }
+
+    @Test
+    public void shouldKeepMetricWhoseTypeChangedUntilReleased() {
+        MetricHandles.Handles handles = MetricHandles.register(metric(MetricType.Counted, "handles_retyped", null));
+        MetricHandles.Handles retyped = MetricHandles.register(metric(MetricType.Gauged, "handles_retyped", null));
+
+        assertNotEquals(handles.getMetric(), retyped.getMetric());
+        assertSame(Counter.class, MetricHandles.get(handles.getMetric()).getClass());
+        assertSame(Gauge.class, MetricHandles.get(retyped.getMetric()).getClass());
+
+        MetricHandles.releaseReplaced();
+        assertNull(MetricHandles.get(handles.getMetric()));
+    }
+
+    @Test
+    public void shouldReleaseIndicesOfUnregisteredMetricForReuse() {
+        MetricHandles.Handles removed = MetricHandles.register(metric(MetricType.Counted, "handles_removed", null));
+        MetricHandles.unregister("handles_removed");
+
+        assertNull(MetricHandles.get(removed.getMetric()));
+
+        MetricHandles.Handles added = MetricHandles.register(metric(MetricType.Counted, "handles_added", null));
+        assertEquals(removed.getMetric(), added.getMetric());
+    }
+
+    private static Metric metric(MetricType type, String name, String doc) {
+        return Metric.builder().type(type).name(name).doc(doc).createMetric();
+    }
+}
@@ -0,0 +1,53 @@
+package com.fleury.metrics.agent.reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class StripedCounterTest {
+
+    @Test
+    public void shouldCountEveryIncrementOfContendingThreads() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 100000; j++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8 * 100000, counter.get());
+    }
+
+    @Test
+    public void shouldMoveProbeOfContendedThread() {
+        int probe = StripedCounter.probe();
+
+        assertNotEquals(probe, StripedCounter.advanceProbe());
+        assertNotEquals(0, StripedCounter.probe());
+    }
+}
@@ -34,6 +34,10 @@ public class TestMetricReader {
                 getRegistryValue(name + "_count", labelNames, labelValues));
     }
 
+    public long getBucketCount(String name, String le) {
+        return getRegistryValue(name + "_bucket", new String[] {"le"}, new String[] {le});
+    }
+
     private long getRegistryValue(String name) {
         Double value = registry.getSampleValue(name);
         return value == null ? 0 : value.longValue();
@@ -0,0 +1,109 @@
+package com.fleury.metrics.agent.reporter;
+
+import static org.junit.Assert.assertEquals;
+
+import io.prometheus.client.CollectorRegistry;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class TimerHistogramTest {
+
+    @Test
+    public void shouldObserveIntoSameBucketsAsLinearScan() {
+        double[] bounds = {0.00005, 0.0001, 0.3, 0.7, 1, 30, 300};
+        TimerHistogram histogram = TimerHistogram.build().name("test").help("help").buckets(bounds).create();
+
+        Random random = new Random(42);
+        long[] expected = new long[bounds.length + 1];
+
+        long[] durations = new long[10000];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = (long) (Math.pow(10, random.nextDouble() * 13));
+        }
+        //bucket boundaries are inclusive
+        durations[0] = 50000;
+        durations[1] = 300000000;
+        durations[2] = 300000001;
+        durations[3] = 0;
+
+        for (long duration : durations) {
+            histogram.observeNanos(duration);
+
+            int bucket = 0;
+            while (bucket < bounds.length && duration / 1E9 > bounds[bucket]) {
+                bucket++;
+            }
+            expected[bucket]++;
+        }
+
+        double[] buckets = histogram.labels().getBuckets();
+        long count = 0;
+        for (int i = 0; i < expected.length; i++) {
+            count += expected[i];
+            assertEquals(count, (long) buckets[i]);
+        }
+    }
+
+    @Test
+    public void shouldExposeSecondsAsPrometheusHistogram() {
+        CollectorRegistry registry = new CollectorRegistry();
+        TimerHistogram histogram = TimerHistogram.build().name("test").help("help").labelNames("a")
+                .buckets(0.5, 1).register(registry);
+
+        histogram.labels("x").observeNanos(250000000L);
+        histogram.labels("x").observeNanos(750000000L);
+        histogram.labels("x").observeNanos(2000000000L);
+
+        String[] names = {"a", "le"};
+        assertEquals(1, registry.getSampleValue("test_bucket", names, new String[] {"x", "0.5"}), 0);
+        assertEquals(2, registry.getSampleValue("test_bucket", names, new String[] {"x", "1.0"}), 0);
+        assertEquals(3, registry.getSampleValue("test_bucket", names, new String[] {"x", "+Inf"}), 0);
+        assertEquals(3, registry.getSampleValue("test_count", new String[] {"a"}, new String[] {"x"}), 0);
+        assertEquals(3, registry.getSampleValue("test_sum", new String[] {"a"}, new String[] {"x"}), 1E-9);
+    }
+
+    @Test
+    public void shouldKeepExactNanosecondSumAcrossThreads() throws Exception {
+        final TimerHistogram histogram = TimerHistogram.build().name("test").help("help").create();
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        histogram.observeNanos(1);
+                        histogram.observeNanos(1000000001L);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        TimerHistogram.Child child = histogram.labels();
+        double[] buckets = child.getBuckets();
+
+        assertEquals(800000, (long) buckets[0]);
+        assertEquals(1600000, (long) buckets[buckets.length - 1]);
+        assertEquals(800000L * 1000000002L, child.getSumNanos());
+    }
+
+    @Test
+    public void shouldKeepSingleStripeWithoutContention() {
+        TimerHistogram.Child child = TimerHistogram.build().name("test").help("help").create().labels();
+
+        for (int i = 0; i < 1000; i++) {
+            child.observeNanos(i);
+        }
+
+        assertEquals(1, child.getStripes());
+        assertEquals(1000, (long) child.getBuckets()[child.getBuckets().length - 1]);
+    }
+}
@@ -0,0 +1,49 @@
+package com.fleury.metrics.agent.reporter.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void shouldAllocateHeapBuffersBeyondMaxPooled() {
+        BufferPool pool = new BufferPool(16, 2);
+
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        ByteBuffer third = pool.acquire();
+
+        assertTrue(first.isDirect());
+        assertTrue(second.isDirect());
+        assertFalse(third.isDirect());
+
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        assertEquals(2, pool.getPooled());
+    }
+
+    @Test
+    public void shouldReuseReleasedDirectBuffers() {
+        BufferPool pool = new BufferPool(16, 1);
+
+        ByteBuffer buffer = pool.acquire();
+        buffer.put((byte) 1);
+        pool.release(buffer);
+
+        ByteBuffer reused = pool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertFalse(pool.acquire().isDirect());
+    }
+}
@@ -0,0 +1,85 @@
+package com.fleury.metrics.agent.reporter.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class HttpRequestTest {
+
+    @Test
+    public void shouldParseScrapeRequest() {
+        String request = "GET /metrics?name[]=a&name%5B%5D=b%20c&other=d HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Accept-Encoding: deflate, gzip\r\n"
+                + "\r\n";
+
+        HttpRequest parsed = parse(request);
+
+        assertEquals("GET", parsed.getMethod());
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b c")), parsed.getNames());
+        assertTrue(parsed.isGzip());
+        assertTrue(parsed.isKeepAlive());
+        assertEquals(request.length(), parsed.getLength());
+    }
+
+    @Test
+    public void shouldReturnNullUntilHeadersComplete() {
+        assertNull(parse("GET / HTTP/1.1\r\nHost: localhost\r\n"));
+    }
+
+    @Test
+    public void shouldParseFirstOfPipelinedRequests() {
+        String first = "GET / HTTP/1.1\r\n\r\n";
+
+        HttpRequest parsed = parse(first + "HEAD / HTTP/1.1\r\n\r\n");
+
+        assertEquals(Collections.<String>emptySet(), parsed.getNames());
+        assertEquals(first.length(), parsed.getLength());
+    }
+
+    @Test
+    public void shouldNegotiateKeepAliveAndGzip() {
+        assertFalse(parse("GET / HTTP/1.1\r\nConnection: close\r\n\r\n").isKeepAlive());
+        assertFalse(parse("GET / HTTP/1.0\r\n\r\n").isKeepAlive());
+        assertTrue(parse("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n").isKeepAlive());
+        assertFalse(parse("POST / HTTP/1.1\r\nContent-Length: 3\r\n\r\n").isKeepAlive());
+
+        assertFalse(parse("GET / HTTP/1.1\r\n\r\n").isGzip());
+        assertFalse(parse("GET / HTTP/1.1\r\nAccept-Encoding: gzip;q=0\r\n\r\n").isGzip());
+        assertTrue(parse("GET / HTTP/1.1\r\nAccept-Encoding: GZIP;q=0.5\r\n\r\n").isGzip());
+    }
+
+    @Test
+    public void shouldParseScrapeTimeout() {
+        assertEquals(-1, parse("GET / HTTP/1.1\r\n\r\n").getScrapeTimeoutMillis());
+        assertEquals(2500,
+                parse("GET / HTTP/1.1\r\nX-Prometheus-Scrape-Timeout-Seconds: 2.5\r\n\r\n").getScrapeTimeoutMillis());
+        assertEquals(-1,
+                parse("GET / HTTP/1.1\r\nX-Prometheus-Scrape-Timeout-Seconds: soon\r\n\r\n").getScrapeTimeoutMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMalformedRequestLine() {
+        parse("GET /\r\n\r\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMalformedHeader() {
+        parse("GET / HTTP/1.1\r\nHost\r\n\r\n");
+    }
+
+    private static HttpRequest parse(String request) {
+        byte[] data = request.getBytes();
+        return HttpRequest.parse(data, 0, data.length);
+    }
+}
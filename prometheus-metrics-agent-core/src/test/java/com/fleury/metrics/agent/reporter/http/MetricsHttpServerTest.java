@@ -0,0 +1,313 @@
+package com.fleury.metrics.agent.reporter.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class MetricsHttpServerTest {
+
+    private final CollectorRegistry registry = new CollectorRegistry();
+    private final Map<String, Object> system = new HashMap<String, Object>();
+
+    private MetricsHttpServer server;
+
+    @Before
+    public void setup() {
+        system.put("httpPort", 0);
+
+        Counter.build().name("http_test_a").help("a").register(registry).inc(3);
+        Counter.build().name("http_test_b").help("b").register(registry).inc();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void shouldServeMetrics() throws Exception {
+        start();
+
+        Socket socket = connect();
+        send(socket, "GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        Response response = read(socket);
+
+        assertEquals("HTTP/1.1 200 OK", response.status);
+        assertTrue(response.headers.contains("Content-Type: " + TextFormat.CONTENT_TYPE_004));
+        assertTrue(response.body().contains("http_test_a 3.0"));
+        assertTrue(response.body().contains("http_test_b 1.0"));
+        socket.close();
+    }
+
+    @Test
+    public void shouldServeResponsesSpanningBuffers() throws Exception {
+        system.put("httpBufferSize", 64);
+        start();
+
+        Socket socket = connect();
+        send(socket, "GET / HTTP/1.1\r\n\r\n");
+        Response response = read(socket);
+
+        assertTrue(response.headers.contains("Transfer-Encoding: chunked"));
+        assertTrue(response.body.length > 64);
+        assertTrue(response.body().contains("http_test_a 3.0"));
+        assertTrue(response.body().contains("http_test_b 1.0"));
+        socket.close();
+    }
+
+    @Test
+    public void shouldStreamResponsesLargerThanThePool() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            Counter.build().name("http_test_large_" + i).help("large").register(registry).inc(i);
+        }
+        system.put("httpBufferSize", 256);
+        system.put("httpMaxPooledBuffers", 2);
+        start();
+
+        Socket socket = connect();
+        send(socket, "GET / HTTP/1.1\r\n\r\n"
+                + "HEAD / HTTP/1.1\r\n\r\n");
+        Response response = read(socket);
+
+        assertTrue(response.body.length > 256 * 8);
+        assertTrue(response.body().contains("http_test_large_199 199.0"));
+
+        Response head = readHeaders(socket);
+        assertEquals(response.body.length, head.contentLength);
+        socket.close();
+    }
+
+    @Test
+    public void shouldGzipWhenAccepted() throws Exception {
+        start();
+
+        Socket socket = connect();
+        send(socket, "GET / HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n");
+        Response response = read(socket);
+
+        assertTrue(response.headers.contains("Content-Encoding: gzip"));
+        String body = new String(readFully(new GZIPInputStream(new ByteArrayInputStream(response.body))),
+                "UTF-8");
+        assertTrue(body.contains("http_test_a 3.0"));
+        socket.close();
+    }
+
+    @Test
+    public void shouldFilterByName() throws Exception {
+        start();
+
+        Socket socket = connect();
+        send(socket, "GET /metrics?name[]=http_test_b HTTP/1.1\r\n\r\n");
+        Response response = read(socket);
+
+        assertFalse(response.body().contains("http_test_a"));
+        assertTrue(response.body().contains("http_test_b 1.0"));
+        socket.close();
+    }
+
+    @Test
+    public void shouldKeepConnectionAliveForPipelinedRequests() throws Exception {
+        start();
+
+        Socket socket = connect();
+        send(socket, "GET /?name[]=http_test_a HTTP/1.1\r\n\r\n"
+                + "HEAD /?name[]=http_test_a HTTP/1.1\r\n\r\n"
+                + "GET /?name[]=http_test_b HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        Response first = read(socket);
+        assertTrue(first.headers.contains("Connection: keep-alive"));
+        assertTrue(first.body().contains("http_test_a 3.0"));
+
+        Response head = readHeaders(socket);
+        assertEquals("HTTP/1.1 200 OK", head.status);
+        assertEquals(first.body.length, head.contentLength);
+
+        Response last = read(socket);
+        assertTrue(last.headers.contains("Connection: close"));
+        assertTrue(last.body().contains("http_test_b 1.0"));
+
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+    }
+
+    @Test
+    public void shouldRejectUnsupportedMethodsAndMalformedRequests() throws Exception {
+        start();
+
+        Socket socket = connect();
+        send(socket, "POST / HTTP/1.1\r\n\r\n");
+        assertEquals("HTTP/1.1 405 Method Not Allowed", read(socket).status);
+        socket.close();
+
+        socket = connect();
+        send(socket, "GET\r\n\r\n");
+        assertEquals("HTTP/1.1 400 Bad Request", read(socket).status);
+        socket.close();
+    }
+
+    @Test
+    public void shouldRejectScrapesBeyondPendingLimit() throws Exception {
+        final CountDownLatch collecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                collecting.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Collections.emptyList();
+            }
+        }.register(registry);
+
+        system.put("httpWorkers", 1);
+        system.put("httpMaxPendingScrapes", 0);
+        start();
+
+        Socket blocked = connect();
+        send(blocked, "GET / HTTP/1.1\r\n\r\n");
+        assertTrue(collecting.await(10, TimeUnit.SECONDS));
+
+        Socket rejected = connect();
+        send(rejected, "GET / HTTP/1.1\r\n\r\n");
+        assertEquals("HTTP/1.1 503 Service Unavailable", read(rejected).status);
+        rejected.close();
+
+        release.countDown();
+        assertEquals("HTTP/1.1 200 OK", read(blocked).status);
+        blocked.close();
+    }
+
+    private void start() throws IOException {
+        server = new MetricsHttpServer(registry, system);
+        server.start();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static Response read(Socket socket) throws IOException {
+        Response response = readHeaders(socket);
+        InputStream in = socket.getInputStream();
+
+        if (!response.headers.contains("Transfer-Encoding: chunked")) {
+            response.body = readFully(in, response.contentLength);
+            return response;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int size; (size = Integer.parseInt(readLine(in), 16)) > 0; ) {
+            body.write(readFully(in, size));
+            readLine(in);
+        }
+        readLine(in);
+
+        response.body = body.toByteArray();
+        return response;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        for (int read = 0; read < bytes.length; ) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new IOException("Unexpected end of response");
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (line.length() < 2 || !line.substring(line.length() - 2).equals("\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of chunk " + line);
+            }
+            line.append((char) b);
+        }
+        return line.substring(0, line.length() - 2);
+    }
+
+    private static Response readHeaders(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        StringBuilder headers = new StringBuilder();
+        while (!headers.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of headers " + headers);
+            }
+            headers.append((char) b);
+        }
+
+        Response response = new Response();
+        response.headers = headers.toString();
+        response.status = response.headers.substring(0, response.headers.indexOf("\r\n"));
+
+        for (String header : response.headers.split("\r\n")) {
+            if (header.startsWith("Content-Length: ")) {
+                response.contentLength = Integer.parseInt(header.substring("Content-Length: ".length()));
+            }
+        }
+        return response;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Response {
+        String status;
+        String headers;
+        int contentLength;
+        byte[] body;
+
+        String body() throws IOException {
+            return new String(body, "UTF-8");
+        }
+    }
+}
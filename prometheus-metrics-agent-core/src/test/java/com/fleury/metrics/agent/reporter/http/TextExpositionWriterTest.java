@@ -0,0 +1,199 @@
+package com.fleury.metrics.agent.reporter.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.reporter.TimerHistogram;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class TextExpositionWriterTest {
+
+    private final TextExpositionWriter writer = new TextExpositionWriter();
+
+    @Test
+    public void shouldWriteFamiliesWithEscapedHelpAndLabels() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Counter counter = Counter.build().name("requests").help("Requests\\made\nby path").labelNames("path", "method")
+                .register(registry);
+        counter.labels("/a\"b\\c\n", "GET").inc(2);
+
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                return Collections.singletonList(new MetricFamilySamples("temperature", Type.UNTYPED, "Temperature",
+                        Collections.singletonList(new Sample("temperature", Collections.<String>emptyList(),
+                                Collections.<String>emptyList(), -3.25, 1500000000000L))));
+            }
+        }.register(registry);
+
+        String requests = "# HELP requests Requests\\\\made\\nby path\n"
+                + "# TYPE requests counter\n"
+                + "requests{path=\"/a\\\"b\\\\c\\n\",method=\"GET\"} 2.0\n";
+        String temperature = "# HELP temperature Temperature\n"
+                + "# TYPE temperature untyped\n"
+                + "temperature -3.25 1500000000000\n";
+
+        // the registry does not order the families
+        String written = write(registry);
+        assertTrue(written.equals(requests + temperature) || written.equals(temperature + requests));
+    }
+
+    @Test
+    public void shouldReuseEncodingsAcrossScrapes() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge gauge = Gauge.build().name("queue_size").help("Queue size").labelNames("queue").register(registry);
+        gauge.labels("a").set(1);
+
+        assertEquals("# HELP queue_size Queue size\n# TYPE queue_size gauge\nqueue_size{queue=\"a\"} 1.0\n",
+                write(registry));
+
+        gauge.labels("a").set(0.5);
+        gauge.labels("b").set(7);
+
+        assertEquals("# HELP queue_size Queue size\n# TYPE queue_size gauge\n"
+                + "queue_size{queue=\"a\"} 0.5\nqueue_size{queue=\"b\"} 7.0\n",
+                sorted(write(registry)));
+    }
+
+    @Test
+    public void shouldWriteSameSeriesAndValuesAsTextFormat() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+
+        Random random = new Random(42);
+        Counter counter = Counter.build().name("calls").help("Calls").labelNames("method").register(registry);
+        TimerHistogram timer = TimerHistogram.build().name("latency").help("Latency").labelNames("method")
+                .register(registry);
+        Gauge gauge = Gauge.build().name("in_flight").help("In flight").register(registry);
+
+        for (int i = 0; i < 50; i++) {
+            counter.labels("m" + i).inc(random.nextInt(1000));
+            timer.labels("m" + i).observeNanos((long) Math.pow(10, random.nextDouble() * 10));
+        }
+        gauge.set(-12345.678);
+
+        // twice so the second write is from the encodings
+        write(registry);
+        assertEquals(series(textFormat(registry)), series(write(registry)));
+    }
+
+    @Test
+    public void shouldWriteDoublesWhichParseBackExactly() throws Exception {
+        assertEquals("0.1", format(0.1));
+        assertEquals("1.0", format(1));
+        assertEquals("-2.5", format(-2.5));
+        assertEquals("0.0000001", format(1e-7));
+        assertEquals("12345678.0", format(12345678));
+        assertEquals("0.30000000000000004", format(0.1 + 0.2));
+        assertEquals("1.0E20", format(1e20));
+        assertEquals("NaN", format(Double.NaN));
+        assertEquals("+Inf", format(Double.POSITIVE_INFINITY));
+        assertEquals("-Inf", format(Double.NEGATIVE_INFINITY));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double value = i % 2 == 0 ?
+                    random.nextDouble() * Math.pow(10, random.nextInt(20) - 10) :
+                    Math.round(random.nextDouble() * 1e6) / 1e3;
+
+            assertEquals(value, Double.parseDouble(format(value)), 0);
+        }
+    }
+
+    @Test
+    public void shouldWriteLongs() throws Exception {
+        assertEquals("0", formatLong(0));
+        assertEquals("-42", formatLong(-42));
+        assertEquals(String.valueOf(Long.MAX_VALUE), formatLong(Long.MAX_VALUE));
+        assertEquals(String.valueOf(Long.MIN_VALUE), formatLong(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void shouldWriteBeyondBuffer() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Counter counter = Counter.build().name("wide").help("Wide").labelNames("id").register(registry);
+        for (int i = 0; i < TextExpositionWriter.BUFFER_SIZE; i++) {
+            counter.labels(String.valueOf(i)).inc();
+        }
+        char[] longValue = new char[2 * TextExpositionWriter.BUFFER_SIZE];
+        Arrays.fill(longValue, 'x');
+        counter.labels(new String(longValue)).inc();
+
+        assertEquals(series(textFormat(registry)), series(write(registry)));
+    }
+
+    private String write(CollectorRegistry registry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(out, registry.metricFamilySamples());
+        return out.toString("UTF-8");
+    }
+
+    private static String textFormat(CollectorRegistry registry) throws IOException {
+        StringWriter out = new StringWriter();
+        TextFormat.write004(out, registry.metricFamilySamples());
+        return out.toString();
+    }
+
+    /**
+     * @return the value of each series, TextFormat writing a trailing comma after the labels
+     */
+    private static Map<String, Double> series(String text) {
+        Map<String, Double> series = new TreeMap<String, Double>();
+        for (String line : text.split("\n")) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            int space = line.lastIndexOf(' ');
+            series.put(line.substring(0, space).replace(",}", "}"), Double.parseDouble(line.substring(space + 1)));
+        }
+        return series;
+    }
+
+    private static String sorted(String text) {
+        String[] lines = text.split("\n");
+        Arrays.sort(lines, 2, lines.length);
+
+        StringBuilder sorted = new StringBuilder();
+        for (String line : lines) {
+            sorted.append(line).append('\n');
+        }
+        return sorted.toString();
+    }
+
+    private static String format(double value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TextExpositionWriter.Output output = new TextExpositionWriter.Output();
+        output.out = out;
+        output.writeDouble(value);
+        output.flush();
+        return out.toString("UTF-8");
+    }
+
+    private static String formatLong(long value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TextExpositionWriter.Output output = new TextExpositionWriter.Output();
+        output.out = out;
+        output.writeLong(value);
+        output.flush();
+        return out.toString("UTF-8");
+    }
+}
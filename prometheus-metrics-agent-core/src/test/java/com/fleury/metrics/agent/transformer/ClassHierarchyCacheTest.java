@@ -0,0 +1,141 @@
+package com.fleury.metrics.agent.transformer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.reporter.SelfMetrics;
+import com.fleury.metrics.agent.transformer.ClassHierarchyCache.ClassInfo;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class ClassHierarchyCacheTest {
+
+    private static final String BASE = Type.getInternalName(Base.class);
+    private static final String SUB = Type.getInternalName(Sub.class);
+    private static final String MARKER = Type.getInternalName(Marker.class);
+
+    private final ClassLoader loader = getClass().getClassLoader();
+
+    @Test
+    public void shouldReadHierarchyFromClassLoader() {
+        ClassHierarchyCache cache = new ClassHierarchyCache();
+
+        ClassInfo info = cache.get(loader, SUB);
+
+        assertEquals(SUB, info.getName());
+        assertEquals(BASE, info.getSuperName());
+        assertEquals(Arrays.asList(MARKER), Arrays.asList(info.getInterfaces()));
+        assertFalse(info.isInterface());
+
+        assertTrue(cache.get(loader, MARKER).isInterface());
+    }
+
+    @Test
+    public void shouldOnlyReadClassOnce() {
+        ClassHierarchyCache cache = new ClassHierarchyCache();
+
+        double hits = SelfMetrics.CLASS_HIERARCHY_CACHE_HITS.get();
+        double misses = SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get();
+
+        ClassInfo info = cache.get(loader, SUB);
+        assertTrue(info == cache.get(loader, SUB));
+
+        assertEquals(hits + 1, SelfMetrics.CLASS_HIERARCHY_CACHE_HITS.get(), 0);
+        assertEquals(misses + 1, SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get(), 0);
+    }
+
+    @Test
+    public void shouldCacheClassNotFound() {
+        ClassHierarchyCache cache = new ClassHierarchyCache();
+
+        double misses = SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get();
+
+        assertNull(cache.get(loader, "com/fleury/DoesNotExist"));
+        assertNull(cache.get(loader, "com/fleury/DoesNotExist"));
+
+        assertEquals(misses + 1, SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get(), 0);
+    }
+
+    @Test
+    public void shouldServeAddedClassWithoutClassLoader() {
+        ClassHierarchyCache cache = new ClassHierarchyCache();
+
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, "com/fleury/Generated", null, "java/util/AbstractList",
+                new String[] {"java/util/RandomAccess"});
+        cw.visitEnd();
+
+        cache.add(loader, new ClassReader(cw.toByteArray()));
+
+        ClassInfo info = cache.get(loader, "com/fleury/Generated");
+        assertEquals("java/util/AbstractList", info.getSuperName());
+        assertEquals(Arrays.asList("java/util/RandomAccess"), Arrays.asList(info.getInterfaces()));
+    }
+
+    @Test
+    public void shouldBoundEntriesPerClassLoader() {
+        ClassHierarchyCache cache = new ClassHierarchyCache(1);
+
+        double misses = SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get();
+
+        List<String> classes = Arrays.asList(SUB, BASE, SUB);
+        for (String className : classes) {
+            cache.get(loader, className);
+        }
+
+        assertEquals(misses + 3, SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get(), 0);
+    }
+
+    @Test
+    public void shouldEvictClassNotLookedUpSinceAdded() {
+        ClassHierarchyCache cache = new ClassHierarchyCache(2);
+
+        cache.get(loader, SUB);
+        cache.get(loader, BASE);
+        cache.get(loader, SUB);
+        cache.get(loader, MARKER);
+
+        double hits = SelfMetrics.CLASS_HIERARCHY_CACHE_HITS.get();
+        double misses = SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get();
+
+        cache.get(loader, SUB);
+        assertEquals(hits + 1, SelfMetrics.CLASS_HIERARCHY_CACHE_HITS.get(), 0);
+
+        cache.get(loader, BASE);
+        assertEquals(misses + 1, SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get(), 0);
+    }
+
+    @Test
+    public void shouldKeepClassesPerClassLoader() {
+        ClassHierarchyCache cache = new ClassHierarchyCache();
+        ClassLoader other = new ClassLoader(loader) {
+        };
+
+        cache.get(loader, SUB);
+
+        double misses = SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get();
+
+        assertEquals(SUB, cache.get(other, SUB).getName());
+        assertEquals(misses + 1, SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get(), 0);
+    }
+
+    public interface Marker {
+    }
+
+    public static class Base {
+    }
+
+    public static class Sub extends Base implements Marker {
+    }
+}
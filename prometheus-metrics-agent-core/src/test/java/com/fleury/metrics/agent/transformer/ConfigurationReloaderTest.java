@@ -0,0 +1,171 @@
+package com.fleury.metrics.agent.transformer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import com.fleury.metrics.agent.reporter.MetricHandles;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class ConfigurationReloaderTest {
+
+    private static final String PREFIX = "com/fleury/metrics/agent/transformer/ConfigurationReloaderTest$";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<List<Class<?>>> retransformed = new ArrayList<List<Class<?>>>();
+
+    @Test
+    public void shouldRetransformOnlyClassesWhoseMetricsChanged() throws Exception {
+        File file = write(
+                metric("ClassA", "reload_a") +
+                metric("ClassB", "reload_b"));
+
+        ConfigurationReloader reloader = reloader(file);
+
+        reloader.reload(config(
+                metric("ClassA", "reload_a_renamed") +
+                metric("ClassB", "reload_b") +
+                metric("ClassC", "reload_c")));
+
+        assertEquals(Arrays.asList(
+                Arrays.<Class<?>>asList(ClassA.class),
+                Arrays.<Class<?>>asList(ClassC.class)), retransformed);
+    }
+
+    @Test
+    public void shouldRetransformClassesWithoutMetricsAnyMore() throws Exception {
+        ConfigurationReloader reloader = reloader(write(metric("ClassA", "reload_a")));
+
+        reloader.reload(config(""));
+
+        assertEquals(Arrays.asList(Arrays.<Class<?>>asList(ClassA.class)), retransformed);
+    }
+
+    @Test
+    public void shouldUnregisterRemovedMetrics() throws Exception {
+        ConfigurationReloader reloader = reloader(write(
+                metric("ClassA", "reload_removed") +
+                metric("ClassB", "reload_kept")));
+
+        MetricHandles.register(counted("reload_removed"));
+        MetricHandles.register(counted("reload_kept"));
+
+        reloader.reload(config(metric("ClassB", "reload_kept")));
+
+        assertNull(CollectorRegistry.defaultRegistry.getSampleValue("reload_removed"));
+        assertNotNull(CollectorRegistry.defaultRegistry.getSampleValue("reload_kept"));
+    }
+
+    @Test
+    public void shouldReloadOnlyWhenFileModified() throws Exception {
+        File file = write(metric("ClassA", "reload_a"));
+        ConfigurationReloader reloader = reloader(file);
+
+        assertFalse(reloader.reloadIfModified());
+        assertTrue(retransformed.isEmpty());
+
+        FileUtils.writeStringToFile(file, yaml(metric("ClassA", "reload_a_modified")), "UTF-8");
+
+        assertTrue(reloader.reloadIfModified());
+        assertEquals(Arrays.asList(Arrays.<Class<?>>asList(ClassA.class)), retransformed);
+        assertFalse(reloader.reloadIfModified());
+    }
+
+    private ConfigurationReloader reloader(File file) {
+        Configuration config = Configuration.createConfig(file.getPath());
+
+        return new ConfigurationReloader(file.getPath(), config,
+                new AnnotatedMetricClassTransformer(config, true, null), instrumentation());
+    }
+
+    /**
+     * Records the classes retransformed, in batches, out of the classes of the test being loaded.
+     */
+    private Instrumentation instrumentation() {
+        return (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {Instrumentation.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getAllLoadedClasses")) {
+                            return new Class<?>[] {String.class, ClassA.class, ClassB.class, ClassC.class};
+                        }
+                        if (method.getName().equals("isModifiableClass")) {
+                            return true;
+                        }
+                        if (method.getName().equals("retransformClasses")) {
+                            retransformed.add(Arrays.asList((Class<?>[]) args[0]));
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private File write(String metrics) throws IOException {
+        File file = folder.newFile("agent.yaml");
+        FileUtils.writeStringToFile(file, yaml(metrics), "UTF-8");
+        return file;
+    }
+
+    private static Configuration config(String metrics) throws IOException {
+        return Configuration.createConfig(new ByteArrayInputStream(yaml(metrics).getBytes("UTF-8")));
+    }
+
+    private static String yaml(String metrics) {
+        return "system:\n" +
+                "  configReloadInterval: 1\n" +
+                "  retransformBatchSize: 1\n" +
+                "  retransformBatchPause: 0\n" +
+                "metrics:" + (metrics.isEmpty() ? " {}\n" : "\n" + metrics);
+    }
+
+    private static String metric(String className, String name) {
+        return "  " + PREFIX + className + ".run()V:\n" +
+                "    - type: Counted\n" +
+                "      name: " + name + "\n";
+    }
+
+    private static Metric counted(String name) {
+        return Metric.builder().type(MetricType.Counted).name(name).createMetric();
+    }
+
+    public static class ClassA {
+        public void run() {
+        }
+    }
+
+    public static class ClassB {
+        public void run() {
+        }
+    }
+
+    public static class ClassC {
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.fleury.metrics.agent.transformer;
+
+import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.transformer.util.ConstantPoolUtil;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class InstrumentedAttributeTest {
+
+    @Test
+    public void shouldMarkInstrumentedClasses() throws Exception {
+        byte[] original = bytes(CountedClass.class);
+        byte[] instrumented = transform(original);
+
+        assertNotSame(original, instrumented);
+        assertFalse(InstrumentedAttribute.isPresent(new ClassReader(original)));
+        assertTrue(InstrumentedAttribute.isPresent(new ClassReader(instrumented)));
+
+        assertTrue((ConstantPoolUtil.scan(instrumented) & ConstantPoolUtil.INSTRUMENTED) != 0);
+        assertTrue((ConstantPoolUtil.scan(original) & ConstantPoolUtil.INSTRUMENTED) == 0);
+    }
+
+    @Test
+    public void shouldNotTransformMarkedClassesAgain() throws Exception {
+        byte[] instrumented = transform(bytes(CountedClass.class));
+
+        assertSame(instrumented, transform(instrumented));
+    }
+
+    private static byte[] transform(byte[] classfileBuffer) throws Exception {
+        return new AnnotatedMetricClassTransformer(emptyConfiguration(), true).transform(
+                InstrumentedAttributeTest.class.getClassLoader(),
+                Type.getInternalName(CountedClass.class),
+                null,
+                null,
+                classfileBuffer);
+    }
+
+    private static byte[] bytes(Class<?> clazz) throws Exception {
+        return IOUtils.toByteArray(clazz.getClassLoader().getResourceAsStream(Type.getInternalName(clazz) + ".class"));
+    }
+
+    public static class CountedClass {
+
+        @Counted(name = "instrumented_attribute_counted")
+        public void counted() {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.fleury.metrics.agent.transformer;
+
+import static org.junit.Assert.assertEquals;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class RetransformerTest {
+
+    private final List<List<Class<?>>> retransformed =
+            Collections.synchronizedList(new ArrayList<List<Class<?>>>());
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    @Test
+    public void shouldFindLoadedClassesWithConfiguredOrAnnotatedMetrics() {
+        Configuration config = new Configuration(null, null, null, null, Collections.singletonList("java/"));
+        config.addMetric(new Configuration.Key(Type.getInternalName(ConfiguredClass.class), "run", "()V"),
+                Metric.builder().type(MetricType.Counted).name("retransformer_configured").createMetric());
+
+        Retransformer retransformer = new Retransformer(
+                instrumentation(String.class, PlainClass.class, ConfiguredClass.class, AnnotatedClass.class),
+                system(10));
+
+        assertEquals(Arrays.<Class<?>>asList(ConfiguredClass.class, AnnotatedClass.class),
+                retransformer.findLoadedClasses(config));
+    }
+
+    @Test
+    public void shouldRetransformBoundedBatchesOneAtATime() {
+        List<Class<?>> classes = Arrays.<Class<?>>asList(
+                PlainClass.class, ConfiguredClass.class, AnnotatedClass.class, String.class, Long.class);
+
+        Retransformer retransformer = new Retransformer(instrumentation(), system(2));
+
+        assertEquals(5, retransformer.retransform(classes));
+        assertEquals(Arrays.asList(
+                Arrays.<Class<?>>asList(PlainClass.class, ConfiguredClass.class),
+                Arrays.<Class<?>>asList(AnnotatedClass.class, String.class),
+                Arrays.<Class<?>>asList(Long.class)), retransformed);
+        assertEquals(1, maxConcurrent.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectEmptyBatches() {
+        new Retransformer(instrumentation(), system(0));
+    }
+
+    @Test
+    public void shouldRetransformRemainingBatchesAfterFailure() {
+        List<Class<?>> classes = Arrays.<Class<?>>asList(PlainClass.class, Integer.class, ConfiguredClass.class);
+
+        Retransformer retransformer = new Retransformer(instrumentation(), system(1));
+
+        assertEquals(2, retransformer.retransform(classes));
+        assertEquals(Arrays.asList(
+                Arrays.<Class<?>>asList(PlainClass.class),
+                Arrays.<Class<?>>asList(ConfiguredClass.class)), retransformed);
+    }
+
+    private static Map<String, Object> system(int batchSize) {
+        Map<String, Object> system = new HashMap<String, Object>();
+        system.put("retransformBatchSize", batchSize);
+        system.put("retransformBatchPause", 0);
+        return system;
+    }
+
+    /**
+     * Records the batches retransformed, failing those containing Integer.
+     */
+    private Instrumentation instrumentation(final Class<?>... loaded) {
+        return (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {Instrumentation.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                        if (method.getName().equals("getAllLoadedClasses")) {
+                            return loaded;
+                        }
+                        if (method.getName().equals("isModifiableClass")) {
+                            return true;
+                        }
+                        if (method.getName().equals("retransformClasses")) {
+                            return retransform(Arrays.asList((Class<?>[]) args[0]));
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private Object retransform(List<Class<?>> batch) throws Exception {
+        int running = concurrent.incrementAndGet();
+        try {
+            maxConcurrent.set(Math.max(maxConcurrent.get(), running));
+            Thread.sleep(10);
+
+            if (batch.contains(Integer.class)) {
+                throw new UnmodifiableClassException();
+            }
+
+            retransformed.add(batch);
+            return null;
+        } finally {
+            concurrent.decrementAndGet();
+        }
+    }
+
+    public static class PlainClass {
+        public void run() {
+        }
+    }
+
+    public static class ConfiguredClass {
+        public void run() {
+        }
+    }
+
+    public static class AnnotatedClass {
+        @Counted(name = "retransformer_annotated")
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.fleury.metrics.agent.transformer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.config.Configuration;
+import java.io.File;
+import java.io.RandomAccessFile;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.Type;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class TransformCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransformCache cache;
+
+    @After
+    public void close() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void shouldReadEntriesAfterReopening() throws Exception {
+        cache = open(1024);
+        cache.put(1234L, 10, new byte[] {1, 2, 3});
+        cache.put(5678L, 20, null);
+        reopen(1024);
+
+        assertArrayEquals(new byte[] {1, 2, 3}, cache.get(1234L, 10));
+        assertSame(TransformCache.UNCHANGED, cache.get(5678L, 20));
+        assertNull(cache.get(1234L, 11));
+        assertNull(cache.get(4321L, 10));
+    }
+
+    @Test
+    public void shouldDropCorruptEntries() throws Exception {
+        cache = open(1024);
+        cache.put(1234L, 10, new byte[] {1, 2, 3});
+        cache.close();
+        cache = null;
+
+        RandomAccessFile data = new RandomAccessFile(new File(folder.getRoot(), "data"), "rw");
+        data.seek(1);
+        data.write(9);
+        data.close();
+
+        cache = open(1024);
+        assertNull(cache.get(1234L, 10));
+    }
+
+    @Test
+    public void shouldEvictEntriesNotUsedByCurrentRun() throws Exception {
+        cache = open(8);
+        cache.put(1L << 32, 10, new byte[] {1, 2, 3});
+        cache.put(2L << 32, 10, new byte[] {4, 5, 6});
+        reopen(8);
+
+        // only the second is used by this run, the first is evicted to make room
+        assertNotNull(cache.get(2L << 32, 10));
+        cache.put(3L << 32, 10, new byte[] {7, 8, 9});
+
+        assertNull(cache.get(1L << 32, 10));
+        assertArrayEquals(new byte[] {4, 5, 6}, cache.get(2L << 32, 10));
+        assertArrayEquals(new byte[] {7, 8, 9}, cache.get(3L << 32, 10));
+    }
+
+    @Test
+    public void shouldNotOpenCacheInUse() throws Exception {
+        cache = open(1024);
+
+        assertNull(open(1024));
+    }
+
+    @Test
+    public void shouldServeTransformedClassFromCache() throws Exception {
+        byte[] original = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(
+                Type.getInternalName(CountedClass.class) + ".class"));
+
+        cache = open(1024 * 1024);
+        byte[] transformed = transform(original);
+        assertNotSame(original, transformed);
+
+        reopen(1024 * 1024);
+        assertArrayEquals(transformed, cache.get(
+                cache.key(Type.getInternalName(CountedClass.class), "", original), original.length));
+        assertArrayEquals(transformed, transform(original));
+    }
+
+    @Test
+    public void shouldNotCacheClassDependingOnOtherClasses() throws Exception {
+        for (Class<?> clazz : new Class<?>[] {PropertyLabelClass.class, MergedFramesClass.class}) {
+            byte[] original = bytes(clazz);
+
+            cache = open(1024 * 1024);
+            byte[] transformed = transform(clazz, original);
+            assertNotSame(original, transformed);
+
+            reopen(1024 * 1024);
+            assertNull(cache.get(cache.key(Type.getInternalName(clazz), "", original), original.length));
+            cache.close();
+            cache = null;
+        }
+    }
+
+    private byte[] transform(byte[] classfileBuffer) throws Exception {
+        return transform(CountedClass.class, classfileBuffer);
+    }
+
+    private byte[] transform(Class<?> clazz, byte[] classfileBuffer) throws Exception {
+        return new AnnotatedMetricClassTransformer(Configuration.emptyConfiguration(), true, cache).transform(
+                getClass().getClassLoader(), Type.getInternalName(clazz), null, null, classfileBuffer);
+    }
+
+    private static byte[] bytes(Class<?> clazz) throws Exception {
+        return IOUtils.toByteArray(TransformCacheTest.class.getClassLoader().getResourceAsStream(
+                Type.getInternalName(clazz) + ".class"));
+    }
+
+    private void reopen(long maxSize) throws Exception {
+        cache.close();
+        cache = open(maxSize);
+    }
+
+    private TransformCache open(long maxSize) throws Exception {
+        return TransformCache.open(folder.getRoot(), maxSize, 16);
+    }
+
+    public static class CountedClass {
+
+        @Counted(name = "transform_cache_counted")
+        public void counted() {
+        }
+    }
+
+    public static class PropertyLabelClass {
+
+        // resolved to a direct call of File.getName, which another version of the class may not have
+        @Counted(name = "transform_cache_property_label", labels = {"file:$0.name"})
+        public void counted(File file) {
+        }
+    }
+
+    public static class MergedFramesClass {
+
+        // the frame after the branches merges ArrayList and LinkedList, i.e. needs their common super class
+        @Counted(name = "transform_cache_merged_frames")
+        public int counted(boolean array) {
+            java.util.List<String> list = array ? new java.util.ArrayList<String>() : new java.util.LinkedList<String>();
+            return list.size();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.fleury.metrics.agent.transformer;
+
+import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.annotation.Timed;
+import com.fleury.metrics.agent.reporter.SelfMetrics;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class TransformSelfMetricsTest {
+
+    private final AnnotatedMetricClassTransformer transformer =
+            new AnnotatedMetricClassTransformer(emptyConfiguration(), false, null);
+
+    @Test
+    public void shouldCountClassesByOutcome() throws Exception {
+        double seen = SelfMetrics.CLASSES_SEEN.get();
+        double prefiltered = SelfMetrics.CLASSES_PREFILTERED.get();
+        double scanned = SelfMetrics.CLASSES_SCANNED.get();
+        double instrumented = SelfMetrics.CLASSES_INSTRUMENTED.get();
+        double failures = SelfMetrics.TRANSFORM_FAILURES.get();
+        double counted = injections("Counted");
+        double timed = injections("Timed");
+        double transforms = sample(SelfMetrics.TRANSFORM_DURATION.collect().get(0),
+                "metrics_agent_transform_duration_seconds_count");
+
+        transform(PlainClass.class, bytes(PlainClass.class));
+        transform(MetricsClass.class, bytes(MetricsClass.class));
+        transform(MetricsClass.class, new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 0, 2, 99});
+
+        assertEquals(3, SelfMetrics.CLASSES_SEEN.get() - seen, 0);
+        assertEquals(1, SelfMetrics.CLASSES_PREFILTERED.get() - prefiltered, 0);
+        assertEquals(1, SelfMetrics.CLASSES_SCANNED.get() - scanned, 0);
+        assertEquals(1, SelfMetrics.CLASSES_INSTRUMENTED.get() - instrumented, 0);
+        assertEquals(1, SelfMetrics.TRANSFORM_FAILURES.get() - failures, 0);
+        assertEquals(2, injections("Counted") - counted, 0);
+        assertEquals(1, injections("Timed") - timed, 0);
+        assertEquals(3, sample(SelfMetrics.TRANSFORM_DURATION.collect().get(0),
+                "metrics_agent_transform_duration_seconds_count") - transforms, 0);
+    }
+
+    @Test
+    public void shouldAccountTransformTimeToPremain() throws Exception {
+        double premain = SelfMetrics.TRANSFORM_SECONDS.labels("premain").get();
+        double afterPremain = SelfMetrics.TRANSFORM_SECONDS.labels("after_premain").get();
+
+        SelfMetrics.setInPremain(true);
+        try {
+            transform(MetricsClass.class, bytes(MetricsClass.class));
+        } finally {
+            SelfMetrics.setInPremain(false);
+        }
+
+        assertTrue(SelfMetrics.TRANSFORM_SECONDS.labels("premain").get() > premain);
+        assertEquals(afterPremain, SelfMetrics.TRANSFORM_SECONDS.labels("after_premain").get(), 0);
+    }
+
+    private byte[] transform(Class<?> clazz, byte[] classfileBuffer) throws Exception {
+        return transformer.transform(getClass().getClassLoader(), Type.getInternalName(clazz), null, null,
+                classfileBuffer);
+    }
+
+    private static double injections(String type) {
+        return SelfMetrics.INJECTIONS.labels(type).get();
+    }
+
+    private static double sample(MetricFamilySamples family, String name) {
+        for (Sample sample : family.samples) {
+            if (sample.name.equals(name)) {
+                return sample.value;
+            }
+        }
+        throw new AssertionError("No sample " + name);
+    }
+
+    private static byte[] bytes(Class<?> clazz) throws Exception {
+        return IOUtils.toByteArray(clazz.getClassLoader().getResourceAsStream(Type.getInternalName(clazz) + ".class"));
+    }
+
+    public static class PlainClass {
+
+        public void plain() {
+        }
+    }
+
+    public static class MetricsClass {
+
+        @Counted(name = "self_metrics_counted")
+        public void counted() {
+        }
+
+        @Counted(name = "self_metrics_timed_counted")
+        @Timed(name = "self_metrics_timed")
+        public void timed() {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.fleury.metrics.agent.transformer.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.annotation.ExceptionCounted;
+import com.fleury.metrics.agent.annotation.Gauged;
+import com.fleury.metrics.agent.annotation.Timed;
+import java.nio.charset.Charset;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class ConstantPoolUtilTest {
+
+    @Test
+    public void shouldFindEachMetricAnnotation() throws Exception {
+        assertTrue(mayContainMetricAnnotations(bytes(CountedClass.class)));
+        assertTrue(mayContainMetricAnnotations(bytes(GaugedClass.class)));
+        assertTrue(mayContainMetricAnnotations(bytes(TimedClass.class)));
+        assertTrue(mayContainMetricAnnotations(bytes(ExceptionCountedClass.class)));
+    }
+
+    @Test
+    public void shouldNotFindMetricAnnotationsOnPlainClass() throws Exception {
+        assertFalse(mayContainMetricAnnotations(bytes(PlainClass.class)));
+        assertFalse(mayContainMetricAnnotations(bytes(String.class)));
+    }
+
+    @Test
+    public void shouldSkipWideConstants() throws Exception {
+        byte[] classfile = bytes(WideConstantsClass.class);
+
+        assertTrue(mayContainMetricAnnotations(classfile));
+        assertTrue(containsUtf8(classfile, utf8("afterWideConstants")));
+        assertFalse(containsUtf8(classfile, utf8("notInClass")));
+    }
+
+    private static boolean mayContainMetricAnnotations(byte[] classfile) {
+        return (ConstantPoolUtil.scan(classfile) & ConstantPoolUtil.METRIC_ANNOTATIONS) != 0;
+    }
+
+    private static boolean containsUtf8(byte[] classfile, byte[][] value) {
+        return ConstantPoolUtil.matchUtf8(classfile, value, new int[] {1}) != 0;
+    }
+
+    private static byte[][] utf8(String value) {
+        return new byte[][] {value.getBytes(Charset.forName("UTF-8"))};
+    }
+
+    private static byte[] bytes(Class<?> clazz) throws Exception {
+        String classAsPath = Type.getInternalName(clazz) + ".class";
+        ClassLoader loader = clazz.getClassLoader() == null ? ClassLoader.getSystemClassLoader() : clazz.getClassLoader();
+        return IOUtils.toByteArray(loader.getResourceAsStream(classAsPath));
+    }
+
+    public static class PlainClass {
+
+        public long method(String value) {
+            return value.length() * 31L;
+        }
+    }
+
+    public static class CountedClass {
+
+        @Counted(name = "counted")
+        public void method() {
+        }
+    }
+
+    public static class GaugedClass {
+
+        @Gauged(name = "gauged")
+        public void method() {
+        }
+    }
+
+    public static class TimedClass {
+
+        @Timed(name = "timed")
+        public void method() {
+        }
+    }
+
+    public static class ExceptionCountedClass {
+
+        @ExceptionCounted(name = "exception_counted")
+        public void method() {
+        }
+    }
+
+    public static class WideConstantsClass {
+
+        private long total = 123456789012L;
+        private double ratio = 0.123456789;
+
+        @Timed(name = "timed")
+        public double afterWideConstants() {
+            return total * ratio;
+        }
+    }
+}
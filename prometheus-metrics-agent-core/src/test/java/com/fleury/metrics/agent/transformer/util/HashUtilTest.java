@@ -0,0 +1,31 @@
+package com.fleury.metrics.agent.transformer.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.nio.charset.Charset;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class HashUtilTest {
+
+    @Test
+    public void shouldMatchReferenceImplementation() {
+        assertEquals(0xEF46DB3751D8E999L, HashUtil.xxHash64(bytes(""), 0));
+        assertEquals(0xD24EC4F1A98C6E5BL, HashUtil.xxHash64(bytes("a"), 0));
+        assertEquals(0x44BC2CF5AD770999L, HashUtil.xxHash64(bytes("abc"), 0));
+        assertEquals(0xFBCEA83C8A378BF1L, HashUtil.xxHash64(bytes("Nobody inspects the spammish repetition"), 0));
+    }
+
+    @Test
+    public void shouldDependOnSeed() {
+        assertNotEquals(HashUtil.xxHash64(bytes("abc"), 0), HashUtil.xxHash64(bytes("abc"), 1));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(Charset.forName("UTF-8"));
+    }
+}
@@ -9,11 +9,18 @@ import com.fleury.metrics.agent.transformer.AnnotatedMetricClassTransformer;
 import io.prometheus.client.CollectorRegistry;
 import java.io.PrintWriter;
 import java.lang.instrument.ClassFileTransformer;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.util.CheckClassAdapter;
 import org.objectweb.asm.util.TraceClassVisitor;
 
@@ -35,6 +42,8 @@ public abstract class BaseMetricTest {
 
     private final ByteCodeClassLoader loader = new ByteCodeClassLoader();
 
+    private final Map<String, byte[]> transformed = new HashMap<String, byte[]>();
+
     @SuppressWarnings("unchecked")
     public <T> Class<T> getClassFromBytes(Class<T> clazz, byte[] bytes) {
         return loader.defineClass(clazz.getName(), bytes);
@@ -45,8 +54,11 @@ public abstract class BaseMetricTest {
     }
 
     protected <T> Class<T> execute(Class<T> clazz, Configuration config) throws Exception {
+        return execute(clazz, config, getClassBytes(clazz));
+    }
+
+    protected <T> Class<T> execute(Class<T> clazz, Configuration config, byte[] bytes) throws Exception {
         String className = dotToSlash(clazz.getName());
-        String classAsPath = className + ".class";
 
         ClassFileTransformer cft = new AnnotatedMetricClassTransformer(config, true);
         byte[] classfileBuffer = cft.transform(
@@ -54,11 +66,13 @@ public abstract class BaseMetricTest {
                 className,
                 null,
                 null,
-                IOUtils.toByteArray(clazz.getClassLoader().getResourceAsStream(classAsPath)));
+                bytes);
 
         traceBytecode(classfileBuffer);
         verifyBytecode(classfileBuffer);
 
+        transformed.put(clazz.getName(), classfileBuffer);
+
         return getClassFromBytes(clazz, classfileBuffer);
     }
     
@@ -74,6 +88,129 @@ public abstract class BaseMetricTest {
         cr.accept(new CheckClassAdapter(cw), 0);
     }
 
+    /**
+     * Statistics for the method (of the given name) of the executed class after transformation
+     */
+    protected MethodStats getTransformedMethodStats(Class<?> clazz, String method) {
+        return getMethodStats(transformed.get(clazz.getName()), method);
+    }
+
+    protected MethodStats getOriginalMethodStats(Class<?> clazz, String method) throws Exception {
+        return getMethodStats(getClassBytes(clazz), method);
+    }
+
+    protected static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        String classAsPath = dotToSlash(clazz.getName()) + ".class";
+        return IOUtils.toByteArray(clazz.getClassLoader().getResourceAsStream(classAsPath));
+    }
+
+    private MethodStats getMethodStats(byte[] bytecode, final String method) {
+        final MethodStats stats = new MethodStats();
+
+        new ClassReader(bytecode).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                return name.equals(method) ? stats : null;
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+        return stats;
+    }
+
+    public static class MethodStats extends MethodVisitor {
+
+        public int instructions;
+        public int tryCatchBlocks;
+        public int returns;
+        public int invokeDynamics;
+        private final Map<String, Integer> invocations = new HashMap<String, Integer>();
+
+        public MethodStats() {
+            super(Opcodes.ASM5);
+        }
+
+        public int getInvocations(String name) {
+            Integer count = invocations.get(name);
+            return count == null ? 0 : count;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            instructions++;
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                returns++;
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            instructions++;
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            instructions++;
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            instructions++;
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            instructions++;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            instructions++;
+            invocations.put(name, getInvocations(name) + 1);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            instructions++;
+            invokeDynamics++;
+            invocations.put(name, getInvocations(name) + 1);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            instructions++;
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            instructions++;
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            instructions++;
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            instructions++;
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            instructions++;
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            instructions++;
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            tryCatchBlocks++;
+        }
+    }
+
     public static class ByteCodeClassLoader extends ClassLoader {
 
         public Class defineClass(String name, byte[] bytes) {
@@ -1,13 +1,16 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
 import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+import static com.fleury.metrics.agent.config.Configuration.staticFinalChildFieldName;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import com.fleury.metrics.agent.annotation.Counted;
 import com.fleury.metrics.agent.config.Configuration;
 import com.fleury.metrics.agent.model.Metric;
 import com.fleury.metrics.agent.model.MetricType;
+import io.prometheus.client.Counter;
 import java.util.Arrays;
 import org.junit.Test;
 import org.objectweb.asm.Type;
@@ -71,6 +74,21 @@ public class CounterInjectorTest extends BaseMetricTest {
         assertEquals(1, metrics.getCount("counted", new String[] {"label1"}, new String[]{"value1"}));
     }
 
+    @Test
+    public void shouldResolveConstantLabelsChildOnClassInitialization() throws Exception {
+        Class<CountedMethodWithLabelsClass> clazz = execute(CountedMethodWithLabelsClass.class);
+
+        Metric meta = Metric.builder().type(MetricType.Counted).name("counted").createMetric();
+        Counter.Child child = (Counter.Child) clazz.getField(staticFinalChildFieldName(meta)).get(null);
+        assertNotNull(child);
+
+        Object obj = clazz.newInstance();
+        obj.getClass().getMethod("counted").invoke(obj);
+
+        assertEquals(1, (long) child.get());
+        assertEquals(1, metrics.getCount("counted", new String[] {"label1"}, new String[]{"value1"}));
+    }
+
     @Test
     public void shouldCountMethodWithParametersAndReturnInvocation() throws Exception {
         Class<CountedMethodWithParametersAndReturnClass> clazz = execute(CountedMethodWithParametersAndReturnClass.class);
@@ -0,0 +1,169 @@
+package com.fleury.metrics.agent.transformer.visitors.injectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.annotation.Gauged;
+import com.fleury.metrics.agent.annotation.Timed;
+import com.fleury.metrics.agent.config.Configuration;
+import io.prometheus.client.CollectorRegistry;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Metrics switched on and off at runtime are recorded via invokedynamic, which requires classes compiled for Java 7
+ * or later.
+ *
+ * @author Will Fleury
+ */
+public class DynamicMetricInjectorTest extends BaseMetricTest {
+
+    private static final String SWITCHES = "com.fleury.metrics.agent:type=MetricSwitches";
+
+    @Test
+    public void shouldRecordMetricsViaInvokeDynamic() throws Exception {
+        Class<DynamicClass> clazz = execute(DynamicClass.class, dynamicConfiguration(),
+                java7ClassBytes(DynamicClass.class));
+
+        Object obj = clazz.newInstance();
+        clazz.getMethod("counted").invoke(obj);
+        clazz.getMethod("timed", String.class).invoke(obj, "a");
+        clazz.getMethod("timed", String.class).invoke(obj, "a");
+
+        assertEquals(1, metrics.getCount("dynamic_counted"));
+        assertEquals(0, metrics.getCount("dynamic_gauged"));
+        assertEquals(2, metrics.getTimes("dynamic_timed", new String[] {"arg"}, new String[] {"a"}).count);
+
+        assertEquals(0, clazz.getDeclaredFields().length);
+        assertTrue(getTransformedMethodStats(clazz, "counted").invokeDynamics > 0);
+        assertEquals(1, getTransformedMethodStats(clazz, "counted").getInvocations("recordCount"));
+    }
+
+    @Test
+    public void shouldSwitchMetricOffAndOnViaJmx() throws Exception {
+        Class<SwitchedClass> clazz = execute(SwitchedClass.class, dynamicConfiguration(),
+                java7ClassBytes(SwitchedClass.class));
+
+        // compiled for Java 7 so registered reflectively, as by the agent
+        Class.forName("com.fleury.metrics.agent.reporter.MetricSwitches").getMethod("register").invoke(null);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(SWITCHES);
+
+        Object obj = clazz.newInstance();
+        clazz.getMethod("run").invoke(obj);
+        assertEquals(1, metrics.getCount("dynamic_switched"));
+
+        invoke(server, name, "disable", "dynamic_switched");
+        clazz.getMethod("run").invoke(obj);
+        assertEquals(1, metrics.getCount("dynamic_switched"));
+        assertArrayEquals(new String[] {"dynamic_switched"}, (String[]) server.getAttribute(name, "DisabledMetrics"));
+
+        invoke(server, name, "enable", "dynamic_switched");
+        clazz.getMethod("run").invoke(obj);
+        assertEquals(2, metrics.getCount("dynamic_switched"));
+        assertArrayEquals(new String[0], (String[]) server.getAttribute(name, "DisabledMetrics"));
+    }
+
+    @Test
+    public void shouldNotLookUpLabelledChildOfSwitchedOffMetric() throws Exception {
+        Class<LabelledClass> clazz = execute(LabelledClass.class, dynamicConfiguration(),
+                java7ClassBytes(LabelledClass.class));
+
+        Class.forName("com.fleury.metrics.agent.reporter.MetricSwitches").getMethod("register").invoke(null);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(SWITCHES);
+
+        invoke(server, name, "disable", "dynamic_labelled");
+        try {
+            clazz.getMethod("timed", String.class).invoke(clazz.newInstance(), "b");
+        } finally {
+            invoke(server, name, "enable", "dynamic_labelled");
+        }
+
+        assertNull(CollectorRegistry.defaultRegistry.getSampleValue("dynamic_labelled_count",
+                new String[] {"arg"}, new String[] {"b"}));
+    }
+
+    @Test
+    public void shouldUseStaticFieldsForClassesBeforeJava7() throws Exception {
+        Class<DynamicClass> clazz = execute(DynamicClass.class, dynamicConfiguration(),
+                classBytes(DynamicClass.class, Opcodes.V1_6));
+
+        clazz.getMethod("counted").invoke(clazz.newInstance());
+
+        assertEquals(1, metrics.getCount("dynamic_counted"));
+        assertTrue(clazz.getDeclaredFields().length > 0);
+        assertEquals(0, getTransformedMethodStats(clazz, "counted").invokeDynamics);
+    }
+
+    private static void invoke(MBeanServer server, ObjectName name, String operation, String metric)
+            throws Exception {
+        server.invoke(name, operation, new Object[] {metric}, new String[] {String.class.getName()});
+    }
+
+    private static Configuration dynamicConfiguration() {
+        Map<String, Object> system = Collections.<String, Object>singletonMap("dynamicMetrics", true);
+        return new Configuration(null, null, system, null, null);
+    }
+
+    private static byte[] java7ClassBytes(Class<?> clazz) throws Exception {
+        return classBytes(clazz, Opcodes.V1_7);
+    }
+
+    /**
+     * The test classes may be compiled for an older version, the frames required from Java 7 are computed.
+     */
+    private static byte[] classBytes(Class<?> clazz, final int version) throws Exception {
+        ClassReader cr = new ClassReader(getClassBytes(clazz));
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cr.accept(new ClassVisitor(Opcodes.ASM5, cw) {
+            @Override
+            public void visit(int v, int access, String name, String signature, String superName,
+                    String[] interfaces) {
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+        }, ClassReader.SKIP_FRAMES);
+        return cw.toByteArray();
+    }
+
+    public static class DynamicClass {
+
+        @Counted(name = "dynamic_counted")
+        @Gauged(name = "dynamic_gauged")
+        public void counted() {
+            BaseMetricTest.performBasicTask();
+        }
+
+        @Timed(name = "dynamic_timed", labels = {"arg:$0"})
+        public void timed(String arg) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class LabelledClass {
+
+        @Timed(name = "dynamic_labelled", labels = {"arg:$0"})
+        public void timed(String arg) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class SwitchedClass {
+
+        @Counted(name = "dynamic_switched")
+        public void run() {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+}
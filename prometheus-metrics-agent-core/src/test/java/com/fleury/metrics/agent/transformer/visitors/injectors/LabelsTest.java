@@ -3,6 +3,8 @@ package com.fleury.metrics.agent.transformer.visitors.injectors;
 import static org.junit.Assert.assertEquals;
 
 import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.annotation.Gauged;
+import com.fleury.metrics.agent.annotation.Timed;
 import org.junit.Test;
 
 /**
@@ -60,6 +62,112 @@ public class LabelsTest extends BaseMetricTest {
                 new Object[]{new CountedConstructorWithDynamicNestedNonJavaBeanLabelValueClass.Nester()}, new String[]{"hello"});
     }
 
+    @Test
+    public void shouldCountConstructorInvocationWithDeeplyNestedValue() throws Exception {
+        testInvocationWithArgs(CountedConstructorWithDeeplyNestedLabelValueClass.class,
+                new Object[]{new CountedConstructorWithDeeplyNestedLabelValueClass.Request("/path")}, new String[]{"/path"});
+    }
+
+    @Test
+    public void shouldCountConstructorInvocationWithNullNestedValue() throws Exception {
+        testInvocationWithArgs(CountedConstructorWithDeeplyNestedLabelValueClass.class,
+                new Object[]{new CountedConstructorWithDeeplyNestedLabelValueClass.Request(null)}, new String[]{"null"});
+    }
+
+    @Test
+    public void shouldCountConstructorInvocationWithNullArgumentNestedValue() throws Exception {
+        testInvocationWithArgs(CountedConstructorWithDeeplyNestedLabelValueClass.class,
+                new Object[]{null}, new String[]{"null"});
+    }
+
+    @Test
+    public void shouldCountConstructorInvocationWithDynamicNestedInterfaceValue() throws Exception {
+        testInvocationWithArgs(CountedConstructorWithDynamicNestedInterfaceLabelValueClass.class,
+                new Object[]{new CountedConstructorWithDynamicNestedInterfaceLabelValueClass.Impl()}, new String[]{"true"});
+    }
+
+    @Test
+    public void shouldCountConstructorInvocationWithDynamicNestedPrimitiveValue() throws Exception {
+        testInvocationWithArgs(CountedConstructorWithDynamicNestedPrimitiveLabelValueClass.class,
+                new Object[]{new CountedConstructorWithDynamicNestedPrimitiveLabelValueClass.Nester()}, new String[]{"200"});
+    }
+
+    @Test
+    public void shouldCountConstructorInvocationWithDynamicNestedRuntimeTypeValue() throws Exception {
+        testInvocationWithArgs(CountedConstructorWithDynamicNestedRuntimeTypeLabelValueClass.class,
+                new Object[]{new CountedConstructorWithDynamicNestedLabelValueClass.Nester()}, new String[]{"hello"});
+    }
+
+    @Test
+    public void shouldCountConstructorInvocationWithMultipleDynamicLabelValues() throws Exception {
+        Class<?> clazz = execute(CountedConstructorWithMultipleDynamicLabelValuesClass.class);
+
+        clazz.getConstructors()[0].newInstance("a", 1);
+        clazz.getConstructors()[0].newInstance("a", 1);
+        clazz.getConstructors()[0].newInstance("b", 2);
+
+        String[] labelNames = new String[] {"name1", "name2", "name3"};
+        assertEquals(2, metrics.getCount("constructor", labelNames, new String[] {"a", "value", "1"}));
+        assertEquals(1, metrics.getCount("constructor", labelNames, new String[] {"b", "value", "2"}));
+    }
+
+    @Test
+    public void shouldCountConstructorInvocationWithMoreThanFiveLabels() throws Exception {
+        Class<?> clazz = execute(CountedConstructorWithSixLabelsClass.class);
+
+        clazz.getConstructors()[0].newInstance("a");
+        clazz.getConstructors()[0].newInstance("a");
+
+        assertEquals(2, metrics.getCount("constructor",
+                new String[] {"name1", "name2", "name3", "name4", "name5", "name6"},
+                new String[] {"a", "2", "3", "4", "5", "6"}));
+    }
+
+    @Test
+    public void shouldCountConstructorInvocationBeyondMaxSeriesAsOverflow() throws Exception {
+        Class<?> clazz = execute(CountedConstructorWithMaxSeriesClass.class);
+
+        clazz.getConstructors()[0].newInstance("a");
+        clazz.getConstructors()[0].newInstance("b");
+        clazz.getConstructors()[0].newInstance("c");
+        clazz.getConstructors()[0].newInstance("a");
+
+        assertEquals(2, metrics.getCount("constructor", new String[] {"name1"}, new String[] {"a"}));
+        assertEquals(1, metrics.getCount("constructor", new String[] {"name1"}, new String[] {"b"}));
+        assertEquals(1, metrics.getCount("constructor", new String[] {"name1"}, new String[] {"__overflow__"}));
+    }
+
+    @Test
+    public void shouldDecrementGaugeOnEntryLabelsWhenArgumentModified() throws Exception {
+        Class<?> clazz = execute(GaugedMethodModifyingLabelArgumentClass.class);
+        Object obj = clazz.newInstance();
+
+        obj.getClass().getMethod("method", Holder.class).invoke(obj, new Holder("before"));
+
+        assertEquals(0, metrics.getCount("in_flight", new String[] {"name1"}, new String[] {"before"}));
+        assertEquals(0, metrics.getCount("in_flight", new String[] {"name1"}, new String[] {"after"}));
+    }
+
+    @Test
+    public void shouldEvaluateLabelsOncePerInvocationForAllMetrics() throws Exception {
+        Class<?> clazz = execute(TimedGaugedCountedSameLabelsClass.class);
+        Object obj = clazz.newInstance();
+
+        obj.getClass().getMethod("method", Holder.class, boolean.class).invoke(obj, new Holder("a"), true);
+        obj.getClass().getMethod("method", Holder.class, boolean.class).invoke(obj, new Holder("a"), false);
+
+        String[] labelNames = new String[] {"name1"};
+        String[] labelValues = new String[] {"a"};
+        assertEquals(2, metrics.getCount("counted", labelNames, labelValues));
+        assertEquals(0, metrics.getCount("in_flight", labelNames, labelValues));
+        assertEquals(2, metrics.getTimes("timed", labelNames, labelValues).count);
+
+        MethodStats stats = getTransformedMethodStats(TimedGaugedCountedSameLabelsClass.class, "method");
+        assertEquals(1, stats.getInvocations("getValue"));
+        // children of the gauge and timer are looked up once at entry for all returns
+        assertEquals(2, stats.getInvocations("get"));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void shouldThrowExceptionWhenInvalidParamIndexLabelValue() throws Exception {
         testInvocationWithArgs(CountedConstructorWithInvalidParamIndexLabelValueClass.class,
@@ -188,6 +296,103 @@ public class LabelsTest extends BaseMetricTest {
         }
     }
 
+    public static class CountedConstructorWithDeeplyNestedLabelValueClass {
+
+        public static class Uri {
+            private final String path;
+
+            public Uri(String path) {
+                this.path = path;
+            }
+
+            public String getPath() {
+                return path;
+            }
+        }
+
+        public static class Request {
+            private final Uri uri;
+
+            public Request(String path) {
+                this.uri = path == null ? null : new Uri(path);
+            }
+
+            public Uri getRequestUri() {
+                return uri;
+            }
+        }
+
+        @Counted(name = "constructor", labels = {"name1:$0.requestUri.path"})
+        public CountedConstructorWithDeeplyNestedLabelValueClass(Request request) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class CountedConstructorWithDynamicNestedInterfaceLabelValueClass {
+
+        public interface Flagged {
+            boolean isFlagged();
+        }
+
+        public static class Impl implements Flagged {
+            @Override
+            public boolean isFlagged() {
+                return true;
+            }
+        }
+
+        @Counted(name = "constructor", labels = {"name1:$0.flagged"})
+        public CountedConstructorWithDynamicNestedInterfaceLabelValueClass(Flagged flagged) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class CountedConstructorWithDynamicNestedPrimitiveLabelValueClass {
+
+        public static class Nester {
+            public int status() {
+                return 200;
+            }
+        }
+
+        @Counted(name = "constructor", labels = {"name1:$0.status"})
+        public CountedConstructorWithDynamicNestedPrimitiveLabelValueClass(Nester nester) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class CountedConstructorWithDynamicNestedRuntimeTypeLabelValueClass {
+
+        @Counted(name = "constructor", labels = {"name1:$0.hello"})
+        public CountedConstructorWithDynamicNestedRuntimeTypeLabelValueClass(Object nester) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class CountedConstructorWithMultipleDynamicLabelValuesClass {
+
+        @Counted(name = "constructor", labels = {"name1:$0", "name2:value", "name3:$1"})
+        public CountedConstructorWithMultipleDynamicLabelValuesClass(String value, int code) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class CountedConstructorWithSixLabelsClass {
+
+        @Counted(name = "constructor", labels = {"name1:$0", "name2:2", "name3:3", "name4:4", "name5:5", "name6:6"})
+        public CountedConstructorWithSixLabelsClass(String value) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class CountedConstructorWithMaxSeriesClass {
+
+        @Counted(name = "constructor", labels = {"name1:$0"}, maxSeries = 2)
+        public CountedConstructorWithMaxSeriesClass(String value) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
     public static class CountedConstructorWithInvalidParamIndexLabelValueClass {
 
         @Counted(name = "constructor", labels = {"name1:$5"})
@@ -203,4 +408,43 @@ public class LabelsTest extends BaseMetricTest {
             BaseMetricTest.performBasicTask();
         }
     }
+
+    public static class Holder {
+
+        private String value;
+
+        public Holder(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+    }
+
+    public static class GaugedMethodModifyingLabelArgumentClass {
+
+        @Gauged(name = "in_flight", labels = {"name1:$0.value"})
+        public void method(Holder holder) {
+            holder.setValue("after");
+        }
+    }
+
+    public static class TimedGaugedCountedSameLabelsClass {
+
+        @Timed(name = "timed", labels = {"name1:$0.value"})
+        @Gauged(name = "in_flight", labels = {"name1:$0.value"})
+        @Counted(name = "counted", labels = {"name1:$0.value"})
+        public int method(Holder holder, boolean early) {
+            if (early) {
+                return 1;
+            }
+            BaseMetricTest.performBasicTask();
+            return 2;
+        }
+    }
 }
@@ -6,8 +6,10 @@ import static com.fleury.metrics.agent.reporter.TestMetricReader.TimerResult;
 
 import com.fleury.metrics.agent.annotation.Counted;
 import com.fleury.metrics.agent.annotation.ExceptionCounted;
+import com.fleury.metrics.agent.annotation.Gauged;
 import com.fleury.metrics.agent.annotation.Timed;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
@@ -71,6 +73,50 @@ public class MixedInjectorTest extends BaseMetricTest {
         assertEquals(1, metrics.getCount("timed_count", new String[] {"type"}, new String[]{"counted"}));
     }
 
+    @Test
+    public void shouldRecordAllMetricsWithMultipleReturns() throws Exception {
+        Class<AllMetricsMultipleReturnsClass> clazz = execute(AllMetricsMultipleReturnsClass.class);
+
+        Object obj = clazz.newInstance();
+        Method method = obj.getClass().getMethod("timed", int.class);
+
+        assertEquals(1, method.invoke(obj, 1));
+        assertEquals(2, method.invoke(obj, 2));
+        assertEquals(-1, method.invoke(obj, 3));
+
+        boolean exceptionOccured = false;
+        try {
+            method.invoke(obj, 0);
+        }
+        catch (InvocationTargetException e) {
+            exceptionOccured = true;
+        }
+        assertTrue(exceptionOccured);
+
+        assertEquals(4, metrics.getTimes("all_timed").count);
+        assertEquals(4, metrics.getCount("all_count"));
+        assertEquals(1, metrics.getCount("all_exceptions"));
+        assertEquals(0, metrics.getCount("all_in_flight"));
+    }
+
+    @Test
+    public void shouldShareEntryHandlerAndExitBetweenMetrics() throws Exception {
+        execute(AllMetricsMultipleReturnsClass.class);
+
+        MethodStats original = getOriginalMethodStats(AllMetricsMultipleReturnsClass.class, "timed");
+        MethodStats transformed = getTransformedMethodStats(AllMetricsMultipleReturnsClass.class, "timed");
+
+        // one timestamp at entry plus one for each of the exit path and the exception handler
+        assertEquals(3, transformed.getInvocations("nanoTime"));
+        assertEquals(original.tryCatchBlocks + 1, transformed.tryCatchBlocks);
+        assertEquals(1, transformed.returns);
+
+        // entry: count, gauge inc, timestamp (8), a store and jump per return instead of the return (3),
+        // exit: timer, gauge dec, load and return (11), handler: exception count, timer, gauge dec, throw (13)
+        assertTrue("added " + (transformed.instructions - original.instructions),
+                transformed.instructions - original.instructions <= 35);
+    }
+
     public static class MixedMetricConstructorClass {
 
         @Timed(name = "constructor_timed", labels = {"type:timed"})
@@ -118,4 +164,24 @@ public class MixedInjectorTest extends BaseMetricTest {
             throw new RuntimeException();
         }
     }
+
+    public static class AllMetricsMultipleReturnsClass {
+
+        @Timed(name = "all_timed")
+        @ExceptionCounted(name = "all_exceptions")
+        @Counted(name = "all_count")
+        @Gauged(name = "all_in_flight")
+        public int timed(int value) {
+            if (value == 0) {
+                throw new IllegalArgumentException();
+            }
+            if (value == 1) {
+                return 1;
+            }
+            if (value == 2) {
+                return 2;
+            }
+            return -1;
+        }
+    }
 }
@@ -0,0 +1,84 @@
+package com.fleury.metrics.agent.transformer.visitors.injectors;
+
+import static org.junit.Assert.assertEquals;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.annotation.Timed;
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+/**
+ * Classes instrumented while the configuration is reloaded must be retransformable, i.e. have no fields or methods
+ * added.
+ *
+ * @author Will Fleury
+ */
+public class RetransformableInjectorTest extends BaseMetricTest {
+
+    @Test
+    public void shouldRecordMetricsWithoutAddingFieldsOrMethods() throws Exception {
+        Class<RetransformableClass> clazz = execute(RetransformableClass.class, reloadedConfiguration());
+
+        Object obj = clazz.newInstance();
+        clazz.getMethod("counted").invoke(obj);
+        clazz.getMethod("timed", String.class).invoke(obj, "a");
+        clazz.getMethod("timed", String.class).invoke(obj, "b");
+        clazz.getMethod("timed", String.class).invoke(obj, "a");
+
+        assertEquals(1, metrics.getCount("retransformable_counted"));
+        assertEquals(1, metrics.getTimes("retransformable_constant", new String[] {"kind"}, new String[] {"fixed"}).count);
+        assertEquals(2, metrics.getTimes("retransformable_timed", new String[] {"arg"}, new String[] {"a"}).count);
+        assertEquals(1, metrics.getTimes("retransformable_timed", new String[] {"arg"}, new String[] {"b"}).count);
+
+        assertEquals(0, clazz.getDeclaredFields().length);
+        assertEquals(0, getTransformedMethodStats(clazz, "<clinit>").instructions);
+    }
+
+    @Test
+    public void shouldRecordConfiguredMetricsWithoutAddingFields() throws Exception {
+        Configuration config = reloadedConfiguration();
+        config.addMetric(
+                new Configuration.Key(Type.getInternalName(ConfiguredClass.class), "run", "()V"),
+                Metric.builder().type(MetricType.Counted).name("retransformable_configured").createMetric());
+
+        Class<ConfiguredClass> clazz = execute(ConfiguredClass.class, config);
+
+        Object obj = clazz.newInstance();
+        clazz.getMethod("run").invoke(obj);
+        clazz.getMethod("run").invoke(obj);
+
+        assertEquals(2, metrics.getCount("retransformable_configured"));
+        assertEquals(0, clazz.getDeclaredFields().length);
+    }
+
+    private static Configuration reloadedConfiguration() {
+        Map<String, Object> system = Collections.<String, Object>singletonMap("configReloadInterval", 1);
+        return new Configuration(null, null, system, null, null);
+    }
+
+    public static class RetransformableClass {
+
+        @Counted(name = "retransformable_counted")
+        @Timed(name = "retransformable_constant", labels = {"kind:fixed"})
+        public void counted() {
+            BaseMetricTest.performBasicTask();
+        }
+
+        @Timed(name = "retransformable_timed", labels = {"arg:$0"})
+        public void timed(String arg) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class ConfiguredClass {
+
+        public void run() {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+}
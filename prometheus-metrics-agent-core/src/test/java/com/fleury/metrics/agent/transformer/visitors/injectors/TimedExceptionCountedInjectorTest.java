@@ -52,6 +52,23 @@ public class TimedExceptionCountedInjectorTest extends BaseMetricTest {
         assertEquals(1, metrics.getCount("method_exceptions", new String[] {"type"}, new String[]{"exception"}));
     }
 
+    @Test
+    public void shouldShareTimerBetweenExitAndExceptionHandler() throws Exception {
+        execute(TimedExceptionCountedMethodClassWithException.class);
+
+        MethodStats original = getOriginalMethodStats(TimedExceptionCountedMethodClassWithException.class, "timed");
+        MethodStats transformed = getTransformedMethodStats(TimedExceptionCountedMethodClassWithException.class, "timed");
+
+        assertEquals(3, transformed.getInvocations("nanoTime"));
+        assertEquals(original.tryCatchBlocks + 1, transformed.tryCatchBlocks);
+        assertEquals(1, transformed.returns);
+
+        // entry timestamp (2), the return becomes a jump (0), exit: timer and return (6),
+        // handler: exception count, timer, throw (8). Constant labels are a single load of the child.
+        assertTrue("added " + (transformed.instructions - original.instructions),
+                transformed.instructions - original.instructions <= 16);
+    }
+
     public static class TimedExceptionCountedConstructorClass {
 
         @Timed(name = "constructor_timer", labels = {"type:timed"})
@@ -73,6 +73,35 @@ public class TimerInjectorTest extends BaseMetricTest {
         assertTrue(value.sum >= TimeUnit.NANOSECONDS.toMillis(10L));
     }
 
+    @Test
+    public void shouldTimeMethodInvocationWithCustomBuckets() throws Exception {
+        Class<TimedMethodWithBucketsClass> clazz = execute(TimedMethodWithBucketsClass.class);
+
+        Object obj = clazz.newInstance();
+
+        obj.getClass().getMethod("timed").invoke(obj);
+
+        assertEquals(0, metrics.getBucketCount("timed", "0.001"));
+        assertEquals(1, metrics.getBucketCount("timed", "5.0"));
+        assertEquals(1, metrics.getBucketCount("timed", "+Inf"));
+        assertEquals(0, metrics.getBucketCount("timed", "0.005")); //not a default bucket
+    }
+
+    @Test
+    public void shouldTimeMethodInvocationWithExponentialBuckets() throws Exception {
+        Class<TimedMethodWithExponentialBucketsClass> clazz = execute(TimedMethodWithExponentialBucketsClass.class);
+
+        Object obj = clazz.newInstance();
+
+        obj.getClass().getMethod("timed").invoke(obj);
+
+        assertEquals(0, metrics.getBucketCount("timed", "0.001"));
+        assertEquals(0, metrics.getBucketCount("timed", "0.002"));
+        assertEquals(0, metrics.getBucketCount("timed", "0.004"));
+        assertEquals(0, metrics.getBucketCount("timed", "0.008"));
+        assertEquals(1, metrics.getBucketCount("timed", "+Inf"));
+    }
+
     public static class TimedConstructorClass {
 
         @Timed(name = "constructor")
@@ -126,4 +155,28 @@ public class TimerInjectorTest extends BaseMetricTest {
             throw new RuntimeException();
         }
     }
+
+    public static class TimedMethodWithBucketsClass {
+
+        @Timed(name = "timed", buckets = {0.001, 5})
+        public void timed() {
+            try {
+                Thread.sleep(10L);
+            }
+            catch (InterruptedException e) {
+            }
+        }
+    }
+
+    public static class TimedMethodWithExponentialBucketsClass {
+
+        @Timed(name = "timed", exponentialBuckets = {0.001, 2, 4})
+        public void timed() {
+            try {
+                Thread.sleep(10L);
+            }
+            catch (InterruptedException e) {
+            }
+        }
+    }
 }
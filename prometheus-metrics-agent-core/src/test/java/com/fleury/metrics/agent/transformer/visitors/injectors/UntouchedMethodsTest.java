@@ -0,0 +1,54 @@
+package com.fleury.metrics.agent.transformer.visitors.injectors;
+
+import static org.junit.Assert.assertEquals;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.reporter.SelfMetrics;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class UntouchedMethodsTest extends BaseMetricTest {
+
+    @Test
+    public void shouldCopyMethodsWithoutMetrics() throws Exception {
+        double lookups = hierarchyLookups();
+
+        Class<CountedAndUntouchedMethodsClass> clazz = execute(CountedAndUntouchedMethodsClass.class);
+
+        // computing the frames of the untouched method would need the common super class of its branches
+        assertEquals(lookups, hierarchyLookups(), 0);
+
+        Object obj = clazz.newInstance();
+        obj.getClass().getMethod("counted").invoke(obj);
+        assertEquals("5", obj.getClass().getMethod("untouched", boolean.class).invoke(obj, true).toString());
+
+        assertEquals(1, metrics.getCount("counted"));
+        assertEquals(getOriginalMethodStats(CountedAndUntouchedMethodsClass.class, "untouched").instructions,
+                getTransformedMethodStats(CountedAndUntouchedMethodsClass.class, "untouched").instructions);
+    }
+
+    private static double hierarchyLookups() {
+        return SelfMetrics.CLASS_HIERARCHY_CACHE_HITS.get() + SelfMetrics.CLASS_HIERARCHY_CACHE_MISSES.get();
+    }
+
+    public static class CountedAndUntouchedMethodsClass {
+
+        @Counted(name = "counted")
+        public void counted() {
+            BaseMetricTest.performBasicTask();
+        }
+
+        public CharSequence untouched(boolean builder) {
+            CharSequence value;
+            if (builder) {
+                value = new StringBuilder("5");
+            } else {
+                value = "5";
+            }
+            return value;
+        }
+    }
+}